@@ -1,9 +1,12 @@
 package ray2;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
@@ -18,8 +21,8 @@ import egl.math.Color;
 import egl.math.Colord;
 
 /**
- * Basic image class, containing a 2D array of Colords. Simple functionality for
- * setting pixel colors and writing to a PNG file is provided.
+ * Basic image class, containing a packed array of float RGB pixels. Simple
+ * functionality for setting pixel colors and writing to a PNG file is provided.
  *
  * @author eschweic, nsavva
  */
@@ -31,8 +34,11 @@ public class Image {
 	/** Image height * */
 	protected int height;
 	
-	/** Data array* */
-	protected Colord[][] data;
+	/**
+	 * Pixel data, 3 floats (r, g, b) per pixel, row major: pixel (x, y) starts at
+	 * 3 * (y * width + x).
+	 */
+	protected float[] data;
 	
 	/**
 	 * Create an empty image
@@ -51,22 +57,14 @@ public class Image {
 	 */
 	public Image(Image oldImage) {
 		setSize(oldImage.getWidth(), oldImage.getHeight());
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j].set(oldImage.data[i][j]);
-			}
-		}
+		System.arraycopy(oldImage.data, 0, data, 0, data.length);
 	}
 	
 	/**
 	 * Set the image to black
 	 */
 	public void clear() {
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		Arrays.fill(data, 0f);
 	}
 	
 	/**
@@ -91,12 +89,16 @@ public class Image {
 	public void setSize(int newWidth, int newHeight) {
 		width = newWidth;
 		height = newHeight;
-		data = new Colord[width][height];
-		for (int i=0; i<width; i++) {
-			for (int j=0; j<height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		data = new float[3 * width * height];
+	}
+
+	/**
+	 * @return the index of the red component of pixel (inX, inY) in data
+	 */
+	private int index(int inX, int inY) {
+		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
+			throw new IndexOutOfBoundsException();
+		return 3 * (inY * width + inX);
 	}
 	
 	/**
@@ -107,9 +109,8 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Color outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = index(inX, inY);
+		outPixel.set(toByte(data[i]), toByte(data[i + 1]), toByte(data[i + 2]));
 	}
 	
 	/**
@@ -120,9 +121,8 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Colord outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = index(inX, inY);
+		outPixel.set(data[i], data[i + 1], data[i + 2]);
 	}
 	
 	/**
@@ -132,9 +132,10 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void setPixelColor(Color inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		int i = index(inX, inY);
+		data[i] = (float) (inPixel.r() / 255.0);
+		data[i + 1] = (float) (inPixel.g() / 255.0);
+		data[i + 2] = (float) (inPixel.b() / 255.0);
 	}
 	
 	/**
@@ -144,9 +145,51 @@ public class Image {
 	 * @param inY inY coordinate
 	 */
 	public void setPixelColor(Colord inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		int i = index(inX, inY);
+		data[i] = (float) inPixel.x;
+		data[i + 1] = (float) inPixel.y;
+		data[i + 2] = (float) inPixel.z;
+	}
+
+	/**
+	 * Convert the pixels in [xl, xh) x [yl, yh) to gamma corrected 8-bit RGB, packed
+	 * as in BufferedImage.TYPE_INT_RGB. Rows are written top to bottom, the way they
+	 * are displayed, so that row 0 of out is pixel row yh - 1.
+	 *
+	 * @param out the output, at least (xh - xl) * (yh - yl) long
+	 * @param xl the first column
+	 * @param yl the first row
+	 * @param xh one past the last column
+	 * @param yh one past the last row
+	 * @param gamma the display gamma
+	 */
+	public void getDisplayRGB(int[] out, int xl, int yl, int xh, int yh, double gamma) {
+		double inverseGamma = 1.0 / gamma;
+		int o = 0;
+		for (int y = yh - 1; y >= yl; y--) {
+			int i = 3 * (y * width + xl);
+			for (int x = xl; x < xh; x++, i += 3) {
+				out[o++] = (displayByte(data[i], inverseGamma) << 16)
+						| (displayByte(data[i + 1], inverseGamma) << 8)
+						| displayByte(data[i + 2], inverseGamma);
+			}
+		}
+	}
+
+	/**
+	 * Gamma correct, clamp and round one component, as Colord.gammaCorrect and
+	 * Colord.toColor do.
+	 */
+	private static int displayByte(float v, double inverseGamma) {
+		double c = Math.max(Math.min(Math.pow(v, inverseGamma), 1.0), 0.0);
+		return ((byte) (c * 255d + 0.5)) & 0xFF;
+	}
+
+	/**
+	 * Clamp and round one component, as Color.set(Colord) does.
+	 */
+	private static byte toByte(float v) {
+		return (byte) (Math.min(1.0, Math.max(0.0, v)) * 255 + 0.5);
 	}
 	
 	/**
@@ -157,15 +200,9 @@ public class Image {
 	public void write(String fileName) {
 		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		
-		Colord pixelColor= new Colord();
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				this.getPixelColor(pixelColor, x, y);
-				pixelColor.gammaCorrect(2.2);
-				Color c = pixelColor.toColor();
-				bufferedImage.setRGB(x, (height - 1 - y), c.toIntRGB());
-			}
-		}
+		// Fill the raster directly; TYPE_INT_RGB is backed by one int per pixel, top row first
+		int[] rgb = ((DataBufferInt) bufferedImage.getRaster().getDataBuffer()).getData();
+		getDisplayRGB(rgb, 0, 0, width, height, 2.2);
 		
 		try {
 			ImageIO.write(bufferedImage, "PNG", new File(fileName));
@@ -200,18 +237,13 @@ public class Image {
         channels.insert("G", new Channel(pixelType));
         channels.insert("B", new Channel(pixelType));
         
-		Colord pixelColor= new Colord();
         ByteBuffer pixels = ByteBuffer.allocateDirect(pixelSize * numPixels);
         pixels.order(ByteOrder.LITTLE_ENDIAN);
+        // Rows are already packed RGB floats; copy them top row first
+        FloatBuffer floats = pixels.asFloatBuffer();
         for(int h = height-1; h >= 0; --h) {
-            for (int w = 0; w < width; ++w) {
-            	this.getPixelColor(pixelColor, w, h);
-                pixels.putFloat((float) pixelColor.x);
-                pixels.putFloat((float) pixelColor.y);
-                pixels.putFloat((float) pixelColor.z);
-            }
+            floats.put(data, 3 * h * width, 3 * width);
         }
-        pixels.flip();
         
      // Build the frame buffer
         FrameBuffer frameBuffer = new FrameBuffer();
@@ -0,0 +1,87 @@
+package ray2;
+
+import java.util.ArrayList;
+
+import egl.math.Vector3d;
+
+/**
+ * The values of some animated properties at one frame of a sequence. Groups take
+ * keyframes for their translate, rotate and scale, and cameras for their viewPoint,
+ * viewDir and viewUp:
+ *
+ *   <surface type="Group">
+ *     <key><frame>0</frame><rotate>0 0 0</rotate></key>
+ *     <key><frame>240</frame><rotate>0 360 0</rotate></key>
+ *     ...
+ *   </surface>
+ *
+ * Between two keyframes that set a property, its value is interpolated linearly;
+ * before the first and after the last it stays at their values. A property that no
+ * keyframe sets is not animated.
+ *
+ * @see Scene#setFrames(int)
+ */
+public class Keyframe {
+
+	/** Indices of the properties a keyframe can set. */
+	public static final int TRANSLATE = 0, ROTATE = 1, SCALE = 2, VIEW_POINT = 3, VIEW_DIR = 4, VIEW_UP = 5;
+
+	/** The frame this keyframe applies to. */
+	protected int frame;
+	public void setFrame(int frame) { this.frame = frame; }
+	public int getFrame() { return frame; }
+
+	/** The value of each property, or null where this keyframe does not set it. */
+	protected final Vector3d[] values = new Vector3d[6];
+
+	public void setTranslate(Vector3d translate) { values[TRANSLATE] = new Vector3d(translate); }
+	public void setRotate(Vector3d rotate) { values[ROTATE] = new Vector3d(rotate); }
+	public void setScale(Vector3d scale) { values[SCALE] = new Vector3d(scale); }
+	public void setViewPoint(Vector3d viewPoint) { values[VIEW_POINT] = new Vector3d(viewPoint); }
+	public void setViewDir(Vector3d viewDir) { values[VIEW_DIR] = new Vector3d(viewDir); }
+	public void setViewUp(Vector3d viewUp) { values[VIEW_UP] = new Vector3d(viewUp); }
+
+	/**
+	 * Add key to keys, keeping them sorted by frame.
+	 */
+	public static void insert(ArrayList<Keyframe> keys, Keyframe key) {
+		int i = keys.size();
+		while (i > 0 && keys.get(i - 1).frame > key.frame)
+			i--;
+		keys.add(i, key);
+	}
+
+	/**
+	 * Set out to the value of a property at frame, interpolated between the keyframes
+	 * that set it.
+	 *
+	 * @param keys keyframes sorted by frame
+	 * @param property the index of the property, such as TRANSLATE
+	 * @param frame the frame to evaluate
+	 * @param out the output value
+	 * @return true if some keyframe sets the property, false if out is unchanged
+	 */
+	public static boolean evaluate(ArrayList<Keyframe> keys, int property, int frame, Vector3d out) {
+		Keyframe before = null, after = null;
+		for (Keyframe key : keys) {
+			if (key.values[property] == null)
+				continue;
+			if (key.frame <= frame) {
+				before = key;
+			} else {
+				after = key;
+				break;
+			}
+		}
+		if (before == null && after == null)
+			return false;
+		if (before == null)
+			out.set(after.values[property]);
+		else if (after == null)
+			out.set(before.values[property]);
+		else
+			out.set(before.values[property]).lerp(after.values[property],
+					(frame - before.frame) / (double) (after.frame - before.frame));
+		return true;
+	}
+}
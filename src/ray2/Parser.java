@@ -182,6 +182,15 @@ public class Parser {
 			return new Double(text);
 		}
 
+		else if (c == Boolean.class) {
+			String value = text.trim();
+			if (value.equalsIgnoreCase("true"))
+				return Boolean.TRUE;
+			if (value.equalsIgnoreCase("false"))
+				return Boolean.FALSE;
+			throw new Error("Cannot parse boolean value: " + text);
+		}
+
 		else if ((c.isArray() && c.getComponentType().isPrimitive())) {
 			ArrayList tempArray = parseArray(c.getComponentType(), text);
 			Object result = Array.newInstance(c.getComponentType(), tempArray
@@ -361,6 +370,7 @@ public class Parser {
 		// Check for certain special classes of the current node
 		else if ((c.isArray() && c.getComponentType().isPrimitive())
 				|| c == String.class || c == Integer.class || c == Double.class
+				|| c == Boolean.class
 				|| c == Colord.class || Vector3d.class.isAssignableFrom(c)
 				|| Image.class.isAssignableFrom(c)) {
 
@@ -433,6 +443,8 @@ public class Parser {
 						parameterType = Float.class;
 					} else if (parameterType == Double.TYPE) {
 						parameterType = Double.class;
+					} else if (parameterType == Boolean.TYPE) {
+						parameterType = Boolean.class;
 					} else {
 						throw new Error("Cannot parse primitives of type "
 								+ parameterType);
@@ -36,6 +36,16 @@ public class Ray {
   /** Ending t value of the ray **/
   public double end;
 
+  /**
+   * The reciprocal of each direction component, and 1 for each component that is
+   * negative (0 otherwise). Slab tests against bounding boxes use these instead of
+   * dividing by the direction. They are filled in by computeInverseDirection(), which
+   * acceleration structures call once per query; they are not updated when direction
+   * changes.
+   */
+  public double invDirX, invDirY, invDirZ;
+  public int signX, signY, signZ;
+
   /**
    * Default constructor generates a trivial ray.
    */
@@ -58,6 +68,12 @@ public class Ray {
 	  direction.set(r.direction);
 	  start = r.start;
 	  end = r.end;
+	  invDirX = r.invDirX;
+	  invDirY = r.invDirY;
+	  invDirZ = r.invDirZ;
+	  signX = r.signX;
+	  signY = r.signY;
+	  signZ = r.signZ;
   }
 
   /**
@@ -83,6 +99,20 @@ public class Ray {
     outPoint.set(origin).addMultiple(t, direction);
   }
 
+
+  /**
+   * Computes invDirX/Y/Z and signX/Y/Z from the current direction.  A zero component
+   * gives an infinite reciprocal, whose sign follows the sign of the zero.
+   */
+  public void computeInverseDirection() {
+
+    invDirX = 1 / direction.x;
+    invDirY = 1 / direction.y;
+    invDirZ = 1 / direction.z;
+    signX = invDirX < 0 ? 1 : 0;
+    signY = invDirY < 0 ? 1 : 0;
+    signZ = invDirZ < 0 ? 1 : 0;
+  }
   
   /**
    * Moves the origin of the ray EPISILON units along ray.  Avoids self intersection
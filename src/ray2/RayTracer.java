@@ -1,10 +1,18 @@
 package ray2;
 
+import java.awt.GraphicsEnvironment;
 import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ray2.accel.Bvh;
 import ray2.camera.Camera;
 import ray2.shader.Shader;
 import ray2.viewer.QuickViewer;
@@ -31,6 +39,43 @@ public class RayTracer {
 	protected static int SUB_WIDTH = 32;
 	protected static int SUB_HEIGHT = 32;
 
+	/**
+	 * Number of worker threads used to render the blocks of the spiral.
+	 * Set from the command line with the -t option.
+	 */
+	protected static int numThreads = 1;
+
+	/**
+	 * When true, each scene is rendered once per thread count (1, 2, 4, ... numThreads)
+	 * and the speedup over the single-threaded render is reported. Set with -scaling.
+	 */
+	protected static boolean reportScaling = false;
+
+	/**
+	 * When true, the image is rendered in passes of one sample per pixel that are
+	 * accumulated and shown as they complete. Set with -progressive, or implied by
+	 * -passes and -time.
+	 */
+	protected static boolean progressive = false;
+
+	/**
+	 * Stop a progressive render after this many passes; 0 renders every sample.
+	 * Set with -passes.
+	 */
+	protected static int passBudget = 0;
+
+	/**
+	 * Stop a progressive render after the first pass that ends past this many
+	 * seconds; 0 means no limit. Set with -time.
+	 */
+	protected static double timeBudget = 0;
+
+	/**
+	 * The frames of a sequence to render, or -1 for the first and last frames of the
+	 * scene (see Scene.setFrames). Set with -frames.
+	 */
+	protected static int firstFrame = -1, lastFrame = -1;
+
 	/**
 	 * Widget to draw the image spiral.
 	 */
@@ -125,6 +170,41 @@ public class RayTracer {
 				// Use The CWD
 				currentRoot = null;
 				break;
+			case "-t":
+				// Use A Pool Of Render Threads
+				i++;
+				if(i < args.length) numThreads = parseThreadCount(args[i]);
+				break;
+			case "-scaling":
+				// Report Speedup At Each Thread Count
+				reportScaling = true;
+				break;
+			case "-progressive":
+				// Refine The Whole Image One Sample Per Pixel At A Time
+				progressive = true;
+				break;
+			case "-passes":
+				// Stop Refining After A Number Of Passes
+				i++;
+				if(i < args.length) passBudget = Math.max(0, parseInt(args[i], passBudget));
+				progressive = true;
+				break;
+			case "-time":
+				// Stop Refining After A Number Of Seconds
+				i++;
+				if(i < args.length) timeBudget = Math.max(0, parseDouble(args[i], timeBudget));
+				progressive = true;
+				break;
+			case "-frames":
+				// Render A Range Of Frames Of A Sequence
+				i++;
+				if(i < args.length) parseFrameRange(args[i]);
+				break;
+			case "-cache":
+				// Bound The Memory Of Files Shared Between Scenes
+				i++;
+				if(i < args.length) ResourceCache.setCapacity(Math.max(0, parseInt(args[i], 0)) * (1L << 20));
+				break;
 			default:
 				// This Must Be A File
 				pathArgs.add(new ScenePath(currentRoot, args[i]));
@@ -167,14 +247,66 @@ public class RayTracer {
 		rayTracer.run(scenesToRender);
 	}
 
+	/**
+	 * Parse the argument of the -t option.  A value of 0 means one thread per available core.
+	 *
+	 * @param arg the text following -t
+	 * @return the number of render threads to use
+	 */
+	private static int parseThreadCount(String arg) {
+		int n = parseInt(arg, 0);
+		if (n <= 0)
+			n = Runtime.getRuntime().availableProcessors();
+		return n;
+	}
+
+	/**
+	 * Parse the argument of the -frames option: first:last, or a single frame.
+	 *
+	 * @param arg the text following -frames
+	 */
+	private static void parseFrameRange(String arg) {
+		int colon = arg.indexOf(':');
+		firstFrame = Math.max(0, parseInt(colon < 0 ? arg : arg.substring(0, colon), 0));
+		lastFrame = Math.max(firstFrame, colon < 0 ? firstFrame : parseInt(arg.substring(colon + 1), firstFrame));
+	}
+
+	private static int parseInt(String arg, int fallback) {
+		try {
+			return Integer.parseInt(arg);
+		} catch (NumberFormatException e) {
+			System.err.println("Ignoring invalid number: " + arg);
+			return fallback;
+		}
+	}
+
+	private static double parseDouble(String arg, double fallback) {
+		try {
+			return Double.parseDouble(arg);
+		} catch (NumberFormatException e) {
+			System.err.println("Ignoring invalid number: " + arg);
+			return fallback;
+		}
+	}
+
 	public static void printUsage() {
-		System.out.println("Usage: java RayTracer [-p path] [directory1 directory2 ... | file1 file2 ...]");
+		System.out.println("Usage: java RayTracer [-p path] [-t threads] [-scaling] [-progressive] [-passes n] [-time seconds]");
+		System.out.println("       [-frames first:last] [-cache megabytes]");
+		System.out.println("       [directory1 directory2 ... | file1 file2 ...]");
 		System.out.println("List each scene file you would like to render on the command line separated by spaces.");
 		System.out.println("You may also specify a directory, and all scene files in that directory will be rendered.");
 		System.out.println("By default, all files specified are prepended with a given path. Use the -p option to");
 		System.out.println("override this path. The path may be overriden multiple times or -pnull may be provided to set");
 		System.out.println("the path to the program's working directory. With no -p argument given, this path is: " + directory);
 		System.out.println("NB: the path is relative to the working directory of the application, which is normally the root of the CS4620 project.");
+		System.out.println("Use -t to render blocks on a pool of threads (-t 0 uses one thread per core), and -scaling to");
+		System.out.println("render each scene at 1, 2, 4, ... threads and report the speedup over a single thread.");
+		System.out.println("Use -progressive to render one sample per pixel per pass and refine the whole image as passes");
+		System.out.println("complete; -passes and -time stop early and write out the image rendered so far.");
+		System.out.println("A scene with <frames> is rendered as a sequence of numbered images, <file>.0000.png and on;");
+		System.out.println("-frames first:last renders only those frames, and makes any scene a sequence.");
+		System.out.println("Meshes, textures and cubemaps are loaded once and shared by all the scenes rendered; -cache sets");
+		System.out.println("the most memory they may keep, in megabytes (default " + (ResourceCache.DEFAULT_CAPACITY >> 20) + ", 0 to load them for each scene).");
 	}
 
 	/**
@@ -193,18 +325,74 @@ public class RayTracer {
 			// Parse the input file
 			Scene scene = (Scene) parser.parse(sceneWorkspace.getFile(), Scene.class);
 
+			if (scene.getFrames() > 1 || firstFrame >= 0) {
+				renderSequence(scene);
+				continue;
+			}
+
 			// Initialize the scene
 			scene.init();
 			
 			// Render the scene
-			renderImage(scene);
+			render(scene);
 
 			// Write the image out
-			if (writeHDR)
-				scene.getImage().writeHDR(sceneWorkspace.getFile() + ".exr");
-			else
-				scene.getImage().write(sceneWorkspace.getFile() + ".png");
+			writeImage(scene, sceneWorkspace.getFile());
 		}
+
+		if (args.size() > 1)
+			System.out.println("Loaded " + ResourceCache.getMisses() + " meshes, textures and cubemaps, and reused "
+					+ ResourceCache.getHits() + " (" + (ResourceCache.getSize() >> 20) + " MB cached)");
+	}
+
+	/**
+	 * Render the frames of a scene's sequence, writing each one out as soon as it is
+	 * done. The scene is parsed and its meshes loaded only once; between frames, only
+	 * the camera and the groups that move are updated.
+	 *
+	 * @param scene The scene to be rendered, parsed but not initialized
+	 */
+	public void renderSequence(Scene scene) {
+		int first = firstFrame >= 0 ? firstFrame : 0;
+		int last = lastFrame >= 0 ? lastFrame : scene.getFrames() - 1;
+		long setupTime = 0, renderTime = 0;
+		for (int frame = first; frame <= last; frame++) {
+			long start = System.currentTimeMillis();
+			scene.setFrame(frame);
+			if (frame == first)
+				scene.init();
+			long rendered = System.currentTimeMillis();
+			setupTime += rendered - start;
+			render(scene);
+			writeImage(scene, String.format("%s.%04d", sceneWorkspace.getFile(), frame));
+			renderTime += System.currentTimeMillis() - rendered;
+		}
+		System.out.println("Rendered frames " + first + " to " + last + ": " + (setupTime / 1000.0) + " seconds of setup, "
+				+ (renderTime / 1000.0) + " seconds of rendering");
+	}
+
+	/**
+	 * Render the scene at its current frame with the options given on the command line.
+	 *
+	 * @param scene The scene to be rendered
+	 */
+	private void render(Scene scene) {
+		if (reportScaling)
+			renderScaling(scene);
+		else if (progressive)
+			renderProgressive(scene, numThreads, passBudget, timeBudget);
+		else
+			renderImage(scene, numThreads);
+	}
+
+	/**
+	 * Write the image of the scene out to a file named base with an extension added.
+	 */
+	private static void writeImage(Scene scene, String base) {
+		if (writeHDR)
+			scene.getImage().writeHDR(base + ".exr");
+		else
+			scene.getImage().write(base + ".png");
 	}
 
 	/**
@@ -213,12 +401,26 @@ public class RayTracer {
 	 * @param scene The scene to be rendered
 	 */
 	public void renderImage(Scene scene) {
+		renderImage(scene, 1);
+	}
+
+	/**
+	 * Render the entire scene, handing out the blocks of the spiral to a pool of
+	 * worker threads.  Every block is rendered by exactly one worker, so the output
+	 * is the same as the single-threaded render.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param threads The number of worker threads
+	 * @return the rendering time in milliseconds
+	 */
+	public long renderImage(Scene scene, int threads) {
 
 		// Get the output image
 		Image image = scene.getImage();
 
 		// Setup viewer
-		if(DISPLAY)
+		viewer = null;
+		if(DISPLAY && !GraphicsEnvironment.isHeadless())
 			viewer = QuickViewer.createImageViewer(image);
 
 		System.err.print("Starting render...");
@@ -227,37 +429,267 @@ public class RayTracer {
 		int width = image.getWidth();
 		int height = image.getHeight();
 
-		//Setup the sub-block spiral
-		spiral.initSubblockSpiral(width, height);
-
 		// Timing counters
 		long startTime = System.currentTimeMillis();
+		cameraRays.set(0);
 
 		//Loop over all blocks and render
-		int offsetX, offsetY, sizeX, sizeY;
-		for(int i = 0; i < spiral.totalSubblocks; i++) {
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		try {
+			renderBlocks(scene, image, pool, threads, null, 0);
+		} finally {
+			if (pool != null)
+				pool.shutdownNow();
+		}
 
-			//Increment the block counter
-			spiral.incrementSublockSpiral();
-			offsetX = spiral.curSubX*SUB_WIDTH;
-			offsetY = spiral.curSubY*SUB_HEIGHT;
-			sizeX = Math.min(width-offsetX,SUB_WIDTH);
-			sizeY = Math.min(height-offsetY,SUB_HEIGHT);
-			
-			renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
+		// Output time
+		long totalTime = (System.currentTimeMillis() - startTime);
+		System.out.println("Done.  Total rendering time: "
+				+ (totalTime / 1000.0) + " seconds (" + threads + " thread" + (threads == 1 ? "" : "s") + ")");
+		if (scene.isAdaptive()) {
+			long pixels = (long) width * height;
+			System.out.println(String.format("Adaptive sampling: %d camera rays, %.2f per pixel (%d to %d), %.1f%% of %d per pixel",
+					cameraRays.get(), cameraRays.get() / (double) pixels, adaptiveGrid(scene) * adaptiveGrid(scene),
+					adaptiveMax(scene), 100.0 * cameraRays.get() / (pixels * adaptiveMax(scene)), adaptiveMax(scene)));
+		}
+		reportTraversalStatistics(scene);
+		return totalTime;
+	}
 
-			//Update display
-			if(DISPLAY)
-				viewer.setImage(image, offsetX, offsetY, offsetX+sizeX, offsetY+sizeY);
+	/**
+	 * Render every block of the spiral once, on the calling thread or on a pool of
+	 * worker threads.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param image The output image
+	 * @param pool The pool to run the workers on, or null to render on the calling thread
+	 * @param threads The number of workers to submit to pool
+	 * @param accum The progressive accumulation buffer, or null to render every sample of each pixel
+	 * @param pass The progressive pass to render; ignored if accum is null
+	 */
+	private void renderBlocks(Scene scene, Image image, ExecutorService pool, int threads, double[] accum, int pass) {
+		//Setup the sub-block spiral
+		spiral.initSubblockSpiral(image.getWidth(), image.getHeight());
+		blocksIssued = 0;
+		AtomicInteger blocksDone = new AtomicInteger();
 
-			System.out.println("finished " + (i+1) + "/" + spiral.totalSubblocks + " blocks");
+		if (pool == null) {
+			new BlockWorker(scene, image, blocksDone, accum, pass).run();
+		}
+		else {
+			ArrayList<Future<?>> workers = new ArrayList<>();
+			for (int i = 0; i < threads; i++)
+				workers.add(pool.submit(new BlockWorker(scene, image, blocksDone, accum, pass)));
+			try {
+				for (Future<?> f : workers)
+					f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Render interrupted", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Render worker failed", e.getCause());
+			} finally {
+				// Stop the other workers of a failed pass; this does nothing once all are done
+				for (Future<?> f : workers)
+					f.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Render the scene progressively.  Pass k traces one ray through subpixel
+	 * (k / samples, k % samples) of every pixel, adds it to a running sum per pixel
+	 * and shows the average of the passes so far.  After samples*samples passes the
+	 * image is the same as the one renderImage produces.
+	 *
+	 * Rendering stops early, leaving the average of the completed passes in the
+	 * image, once maxPasses passes are done or a pass ends after maxSeconds.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param threads The number of worker threads
+	 * @param maxPasses The pass budget, or 0 for every sample
+	 * @param maxSeconds The time budget in seconds, or 0 for no limit
+	 * @return the number of passes rendered
+	 */
+	public int renderProgressive(Scene scene, int threads, int maxPasses, double maxSeconds) {
+
+		// Get the output image
+		Image image = scene.getImage();
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		// Setup viewer
+		viewer = null;
+		if(DISPLAY && !GraphicsEnvironment.isHeadless())
+			viewer = QuickViewer.createImageViewer(image);
 
+		int samples = scene.getSamples();
+		int totalPasses = samples * samples;
+		if (maxPasses > 0 && maxPasses < totalPasses)
+			totalPasses = maxPasses;
+
+		// Running sum of the exposed samples of each pixel, 3 per pixel, row major
+		double[] accum = new double[3 * width * height];
+
+		System.err.println("Starting progressive render of " + totalPasses + " of " + (samples * samples) + " passes...");
+		long startTime = System.currentTimeMillis();
+		int pass = 0;
+		// One pool serves every pass
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		try {
+			while (pass < totalPasses) {
+				renderBlocks(scene, image, pool, threads, accum, pass);
+				pass++;
+
+				double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+				System.out.println("finished pass " + pass + "/" + totalPasses + " at " + seconds + " seconds");
+				if (maxSeconds > 0 && seconds >= maxSeconds && pass < totalPasses) {
+					System.out.println("Time budget of " + maxSeconds + " seconds reached; stopping after pass " + pass);
+					break;
+				}
+			}
+		} finally {
+			if (pool != null)
+				pool.shutdownNow();
 		}
 
-		// Output time
 		long totalTime = (System.currentTimeMillis() - startTime);
-		System.out.println("Done.  Total rendering time: "
-				+ (totalTime / 1000.0) + " seconds");
+		System.out.println("Done.  Total rendering time: " + (totalTime / 1000.0) + " seconds (" + pass + " pass"
+				+ (pass == 1 ? "" : "es") + ", " + threads + " thread" + (threads == 1 ? "" : "s") + ")");
+		reportTraversalStatistics(scene);
+		return pass;
+	}
+
+	/**
+	 * Render the scene once for each thread count 1, 2, 4, ... numThreads and log the
+	 * speedup over the single-threaded render.  Each parallel image is checked against
+	 * the single-threaded one; the image left in the scene is the last one rendered.
+	 *
+	 * @param scene The scene to be rendered
+	 */
+	public void renderScaling(Scene scene) {
+		ArrayList<Integer> counts = new ArrayList<>();
+		for (int n = 1; n < numThreads; n *= 2)
+			counts.add(n);
+		counts.add(numThreads);
+
+		Image reference = null;
+		long baseTime = 0;
+		StringBuilder report = new StringBuilder();
+		for (int n : counts) {
+			scene.getImage().clear();
+			long time = renderImage(scene, n);
+			boolean matches = true;
+			if (reference == null) {
+				reference = new Image(scene.getImage());
+				baseTime = Math.max(time, 1);
+			}
+			else {
+				matches = sameImage(reference, scene.getImage());
+			}
+			report.append(String.format("  %3d thread(s): %8.3f s  speedup %6.2fx  %s%n",
+					n, time / 1000.0, baseTime / (double) Math.max(time, 1),
+					matches ? "matches 1-thread image" : "DIFFERS from 1-thread image"));
+		}
+		System.out.println("Scaling for " + sceneWorkspace.getFile() + ":");
+		System.out.print(report);
+	}
+
+	/**
+	 * @return true if both images produce the same output pixels
+	 */
+	private static boolean sameImage(Image a, Image b) {
+		if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+			return false;
+		Colord ca = new Colord(), cb = new Colord();
+		for (int y = 0; y < a.getHeight(); y++) {
+			for (int x = 0; x < a.getWidth(); x++) {
+				a.getPixelColor(ca, x, y);
+				b.getPixelColor(cb, x, y);
+				if (!ca.equals(cb))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Number of camera rays traced by adaptive sampling in the current render.
+	 */
+	private final AtomicLong cameraRays = new AtomicLong();
+
+	/**
+	 * Number of blocks of the spiral handed out so far.  Guarded by the spiral's lock.
+	 */
+	private int blocksIssued;
+
+	/**
+	 * Claim the next block of the spiral.
+	 *
+	 * @param block output: offsetX, offsetY, sizeX, sizeY of the claimed block
+	 * @param width the image width
+	 * @param height the image height
+	 * @return false if every block has already been claimed
+	 */
+	private boolean nextBlock(int[] block, int width, int height) {
+		synchronized (spiral) {
+			if (blocksIssued >= spiral.totalSubblocks)
+				return false;
+			blocksIssued++;
+
+			//Increment the block counter
+			spiral.incrementSublockSpiral();
+			block[0] = spiral.curSubX*SUB_WIDTH;
+			block[1] = spiral.curSubY*SUB_HEIGHT;
+			block[2] = Math.min(width-block[0],SUB_WIDTH);
+			block[3] = Math.min(height-block[1],SUB_HEIGHT);
+			return true;
+		}
+	}
+
+	/**
+	 * Pulls blocks off the spiral and renders them until none are left.  Each worker
+	 * owns its own ray and color scratch space.
+	 */
+	private class BlockWorker implements Runnable {
+		final Scene scene;
+		final Image image;
+		final AtomicInteger blocksDone;
+		final double[] accum;
+		final int pass;
+
+		final Ray ray = new Ray();
+		final Colord pixelColor = new Colord();
+		final Colord rayColor = new Colord();
+
+		BlockWorker(Scene scene, Image image, AtomicInteger blocksDone, double[] accum, int pass) {
+			this.scene = scene;
+			this.image = image;
+			this.blocksDone = blocksDone;
+			this.accum = accum;
+			this.pass = pass;
+		}
+
+		@Override
+		public void run() {
+			int[] block = new int[4];
+			while (nextBlock(block, image.getWidth(), image.getHeight())) {
+				if (accum == null && scene.isAdaptive())
+					cameraRays.addAndGet(renderAdaptiveBlock(scene, image, block[0], block[1], block[2], block[3], ray, pixelColor, rayColor));
+				else if (accum == null)
+					renderBlock(scene, image, block[0], block[1], block[2], block[3], ray, pixelColor, rayColor);
+				else
+					renderPassBlock(scene, image, accum, pass, block[0], block[1], block[2], block[3], ray, pixelColor, rayColor);
+
+				//Update display
+				if(viewer != null)
+					viewer.setImage(image, block[0], block[1], block[0]+block[2], block[1]+block[3]);
+
+				int done = blocksDone.incrementAndGet();
+				if (accum == null)
+					System.out.println("finished " + done + "/" + spiral.totalSubblocks + " blocks");
+			}
+		}
 	}
 
 
@@ -302,12 +734,24 @@ public class RayTracer {
 	 * @param sizeY the height of the block
 	 */
 	public static void renderBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+		renderBlock(scene, outImage, offsetX, offsetY, sizeX, sizeY, new Ray(), new Colord(), new Colord());
+	}
 
-
-		// Do some basic setup
-		Ray ray = new Ray();
-		Colord pixelColor = new Colord();
-		Colord rayColor = new Colord();
+	/**
+	 * Render one block of the output image using caller-owned scratch space.
+	 *
+	 * @param scene The scene data
+	 * @param outImage the output image (write the output pixels here)
+	 * @param offsetX the startingX value of the block
+	 * @param offsetY the startingY value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 * @param ray scratch ray for camera rays
+	 * @param pixelColor scratch color for the pixel being accumulated
+	 * @param rayColor scratch color for a single sample
+	 */
+	public static void renderBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY,
+			Ray ray, Colord pixelColor, Colord rayColor) {
 
 		// Set the camera aspect ratio to match output image
 		int width = outImage.getWidth();
@@ -348,4 +792,194 @@ public class RayTracer {
 			}
 		}
 	}
+
+	/**
+	 * Render one pass of a progressive render over one block: trace a single ray
+	 * per pixel through subpixel (pass / samples, pass % samples), add its exposed
+	 * color to accum, and write the average of passes 0 to pass into outImage.
+	 *
+	 * The sample positions and the order in which they are summed match
+	 * renderBlock, so a pixel that has seen every pass gets exactly the color
+	 * renderBlock gives it.
+	 *
+	 * @param scene The scene data
+	 * @param outImage the output image (write the output pixels here)
+	 * @param accum the running sum of each pixel, 3 per pixel, row major
+	 * @param pass the pass to render, from 0 to samples*samples - 1
+	 * @param offsetX the startingX value of the block
+	 * @param offsetY the startingY value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 * @param ray scratch ray for camera rays
+	 * @param pixelColor scratch color for the averaged pixel
+	 * @param rayColor scratch color for the sample
+	 */
+	public static void renderPassBlock(Scene scene, Image outImage, double[] accum, int pass,
+			int offsetX, int offsetY, int sizeX, int sizeY, Ray ray, Colord pixelColor, Colord rayColor) {
+
+		int width = outImage.getWidth();
+		int height = outImage.getHeight();
+
+		int samples = scene.getSamples();
+		int i = pass / samples;
+		int j = pass % samples;
+		double exposure = scene.getExposure();
+
+		// A complete render must scale exactly as renderBlock does
+		int passes = pass + 1;
+		double scale = passes == samples * samples ? (1.0 / samples) * (1.0 / samples) : 1.0 / passes;
+
+		Camera cam = scene.getCamera();
+
+		for(int x = offsetX; x < (offsetX + sizeX); x++) {
+			for(int y = offsetY; y < (offsetY + sizeY); y++) {
+				float px = (x + (i + 0.5f) / samples) / width;
+				float py = (y + (j + 0.5f) / samples) / height;
+				cam.getRay(ray, px, py);
+				rayColor.setZero();
+				shadeRay(rayColor, scene, ray, 1);
+				rayColor.mul(exposure);
+
+				int k = 3 * (y * width + x);
+				accum[k] += rayColor.x;
+				accum[k + 1] += rayColor.y;
+				accum[k + 2] += rayColor.z;
+
+				pixelColor.set(accum[k], accum[k + 1], accum[k + 2]).mul(scale);
+				outImage.setPixelColor(pixelColor, x, y);
+			}
+		}
+	}
+
+	/**
+	 * If the scene's BVH collects traversal statistics, print and reset them.
+	 */
+	static void reportTraversalStatistics(Scene scene) {
+		if (!(scene.getAccelStruct() instanceof Bvh))
+			return;
+		Bvh bvh = (Bvh) scene.getAccelStruct();
+		if (bvh.getHitStatistics() == null)
+			return;
+		System.out.println("BVH traversal, intersect: " + bvh.getHitStatistics());
+		System.out.println("BVH traversal, occluded:  " + bvh.getOcclusionStatistics());
+		bvh.getHitStatistics().reset();
+		bvh.getOcclusionStatistics().reset();
+	}
+
+	/**
+	 * @return the side of the stratified grid every pixel starts with when sampling adaptively
+	 */
+	static int adaptiveGrid(Scene scene) {
+		return Math.max(1, (int) Math.round(Math.sqrt(scene.getMinSamples())));
+	}
+
+	/**
+	 * @return the most samples any pixel gets when sampling adaptively
+	 */
+	static int adaptiveMax(Scene scene) {
+		int grid = adaptiveGrid(scene);
+		return Math.max(grid * grid, scene.getMaxSamples());
+	}
+
+	/**
+	 * Render one block of the output image with adaptive supersampling.
+	 *
+	 * Each pixel first takes the samples of a stratified grid of about
+	 * scene.getMinSamples() subpixels. It then keeps taking samples at the points
+	 * of the (2, 3) Halton sequence until the estimated variance of its mean,
+	 * var / n, drops to scene.getVarianceThreshold() or it reaches
+	 * scene.getMaxSamples(). The variance is tracked on the value that ends up in
+	 * the PNG: the luminance of each sample clamped to [0, 1] and gamma corrected,
+	 * so that saturated highlights do not ask for more rays.
+	 *
+	 * @param scene The scene data
+	 * @param outImage the output image (write the output pixels here)
+	 * @param offsetX the startingX value of the block
+	 * @param offsetY the startingY value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 * @param ray scratch ray for camera rays
+	 * @param pixelColor scratch color for the pixel being accumulated
+	 * @param rayColor scratch color for a single sample
+	 * @return the number of camera rays traced
+	 */
+	public static long renderAdaptiveBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY,
+			Ray ray, Colord pixelColor, Colord rayColor) {
+
+		int width = outImage.getWidth();
+		int height = outImage.getHeight();
+
+		int grid = adaptiveGrid(scene);
+		int gridSamples = grid * grid;
+		int minSamples = Math.max(gridSamples, 2);
+		int maxSamples = adaptiveMax(scene);
+		double threshold = scene.getVarianceThreshold();
+		double exposure = scene.getExposure();
+
+		Camera cam = scene.getCamera();
+		long rays = 0;
+
+		for(int x = offsetX; x < (offsetX + sizeX); x++) {
+			for(int y = offsetY; y < (offsetY + sizeY); y++) {
+
+				pixelColor.setZero();
+				int n = 0;
+				double mean = 0, m2 = 0;
+				while (n < maxSamples) {
+					double sx, sy;
+					if (n < gridSamples) {
+						sx = (n / grid + 0.5) / grid;
+						sy = (n % grid + 0.5) / grid;
+					} else {
+						int h = n - gridSamples + 1;
+						sx = halton(h, 2);
+						sy = halton(h, 3);
+					}
+					cam.getRay(ray, (x + sx) / width, (y + sy) / height);
+					rayColor.setZero();
+					shadeRay(rayColor, scene, ray, 1);
+					rayColor.mul(exposure);
+					pixelColor.add(rayColor);
+					n++;
+
+					// Welford's running mean and variance of the displayed value
+					double v = displayValue(rayColor);
+					double delta = v - mean;
+					mean += delta / n;
+					m2 += delta * (v - mean);
+					if (n >= minSamples && m2 / (n - 1) / n <= threshold)
+						break;
+				}
+				pixelColor.mul(1.0 / n);
+				outImage.setPixelColor(pixelColor, x, y);
+				rays += n;
+			}
+		}
+		return rays;
+	}
+
+	/**
+	 * @return the luminance of c as it is written to a PNG: clamped to [0, 1] and gamma corrected
+	 */
+	private static double displayValue(Colord c) {
+		double l = 0.2126 * c.x + 0.7152 * c.y + 0.0722 * c.z;
+		if (l <= 0)
+			return 0;
+		if (l >= 1)
+			return 1;
+		return Math.pow(l, 1 / 2.2);
+	}
+
+	/**
+	 * @return element index of the radical inverse sequence in the given base, in [0, 1)
+	 */
+	static double halton(int index, int base) {
+		double result = 0;
+		double f = 1.0 / base;
+		for (int i = index; i > 0; i /= base) {
+			result += f * (i % base);
+			f /= base;
+		}
+		return result;
+	}
 }
@@ -0,0 +1,143 @@
+package ray2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A process-wide cache of data loaded from files, such as parsed meshes, cubemaps and
+ * texture images, so that scenes rendered one after another in the same run share
+ * them instead of reading and parsing the same files again.
+ *
+ * Entries are keyed by the kind of data and the canonical path of the file, and hold
+ * the modification time and length the file had when it was loaded; a file that has
+ * changed since is loaded again. The cache holds at most capacity bytes, as estimated
+ * by the loaders, and evicts the least recently used entries to stay below it.
+ *
+ * Cached data is shared between everything that asks for the same file, so it must
+ * not be modified once loaded.
+ */
+public class ResourceCache {
+
+	/**
+	 * Loads one kind of data from a file, and estimates its size.
+	 */
+	public static abstract class Loader<T> {
+		/** The name of the kind of data this loader loads, such as "mesh". */
+		protected final String kind;
+
+		protected Loader(String kind) {
+			this.kind = kind;
+		}
+
+		/**
+		 * @param file the file to load
+		 * @return the data of file
+		 */
+		public abstract T load(File file) throws IOException;
+
+		/**
+		 * @return the approximate number of bytes value takes in memory
+		 */
+		public abstract long size(T value);
+	}
+
+	/** A loaded value, and the state of its file when it was loaded. */
+	private static class Entry {
+		final Object value;
+		final long modified, length, size;
+
+		Entry(Object value, long modified, long length, long size) {
+			this.value = value;
+			this.modified = modified;
+			this.length = length;
+			this.size = size;
+		}
+	}
+
+	/** The default capacity, in bytes. */
+	public static final long DEFAULT_CAPACITY = 512L << 20;
+
+	/** The most bytes of data the cache holds; 0 turns it off. */
+	private static long capacity = DEFAULT_CAPACITY;
+
+	/** The estimated bytes of data in the cache. */
+	private static long size = 0;
+
+	/** Counts of lookups served from the cache and loaded from files. */
+	private static int hits = 0, misses = 0;
+
+	/** The entries by key, least recently used first. */
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	public static synchronized void setCapacity(long bytes) {
+		capacity = Math.max(0, bytes);
+		evict();
+	}
+	public static synchronized long getCapacity() { return capacity; }
+	public static synchronized long getSize() { return size; }
+	public static synchronized int getHits() { return hits; }
+	public static synchronized int getMisses() { return misses; }
+
+	/**
+	 * Get the data of file, loading it with loader unless the cache holds it from a
+	 * load of the same file as it is now.
+	 *
+	 * @param file the file to load
+	 * @param loader the loader of the kind of data wanted
+	 * @return the data of file
+	 * @throws IOException if file cannot be loaded
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T get(File file, Loader<T> loader) throws IOException {
+		String key = loader.kind + ":" + file.getCanonicalPath();
+		long modified = file.lastModified(), length = file.length();
+		synchronized (ResourceCache.class) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.modified == modified && entry.length == length) {
+				hits++;
+				return (T) entry.value;
+			}
+			if (entry != null) {
+				entries.remove(key);
+				size -= entry.size;
+			}
+			misses++;
+		}
+
+		// Load outside the lock, so that loading one file does not hold up others.
+		T value = loader.load(file);
+		long valueSize = loader.size(value);
+		synchronized (ResourceCache.class) {
+			if (valueSize <= capacity) {
+				Entry old = entries.put(key, new Entry(value, modified, length, valueSize));
+				if (old != null)
+					size -= old.size;
+				size += valueSize;
+				evict();
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public static synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Remove the least recently used entries until the cache fits its capacity.
+	 */
+	private static void evict() {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (size > capacity && it.hasNext()) {
+			size -= it.next().getValue().size;
+			it.remove();
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package ray2;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 
@@ -13,6 +14,9 @@ import ray2.light.Cubemap;
 import ray2.light.Light;
 import ray2.shader.Shader;
 import ray2.shader.Texture;
+import ray2.surface.AccelSurface;
+import ray2.surface.Group;
+import ray2.surface.Prototype;
 import ray2.surface.Surface;
 
 /**
@@ -57,6 +61,14 @@ public class Scene {
 	public void addSurface(Surface toAdd) { surfaces.add(toAdd); }
 	public List<Surface> getSurfaces() { return this.surfaces; }
 	public void setSurfaces(ArrayList<Surface> s) { surfaces = s; }
+
+	/**
+	 * Prototypes declared at the top level of the scene. They are not rendered
+	 * themselves, only through the Instances that refer to them.
+	 */
+	protected ArrayList<Prototype> prototypes = new ArrayList<Prototype>();
+	public void addPrototype(Prototype toAdd) { prototypes.add(toAdd); }
+	public List<Prototype> getPrototypes() { return this.prototypes; }
 	
 	/** The list of textures for the scene. */
 	protected ArrayList<Texture> textures = new ArrayList<Texture>();
@@ -83,10 +95,102 @@ public class Scene {
 	public int getSamples() { return this.samples==0 ? 1 : this.samples; }
 	public void setSamples(int n) {	samples = (int)Math.round(Math.sqrt(n)); }
 
+	/**
+	 * Adaptive sampling. When maxSamples is set, every pixel first gets a grid of
+	 * about minSamples samples and then more samples, up to maxSamples, until the
+	 * estimated variance of its displayed value falls below varianceThreshold.
+	 * samples is then ignored by the regular (non-progressive) renderer.
+	 */
+	protected int minSamples = 9;
+	public int getMinSamples() { return this.minSamples; }
+	public void setMinSamples(int n) { minSamples = Math.max(n, 1); }
+
+	protected int maxSamples = 0;
+	public int getMaxSamples() { return this.maxSamples; }
+	public void setMaxSamples(int n) { maxSamples = Math.max(n, 0); }
+
+	protected double varianceThreshold = 3e-5;
+	public double getVarianceThreshold() { return this.varianceThreshold; }
+	public void setVarianceThreshold(double t) { varianceThreshold = t; }
+
+	public boolean isAdaptive() { return maxSamples > 0; }
+
 	/** The acceleration structure **/
 	protected AccelStruct accelStruct = new Bvh();
 	public void setAccelStruct(AccelStruct accelStruct) { this.accelStruct = accelStruct; }
 	public AccelStruct getAccelStruct() { return accelStruct; }
+
+	/**
+	 * The number of frames of the sequence the scene describes, numbered from 0. With
+	 * more than one, the camera and groups may be animated by keyframes (see
+	 * Keyframe), and RayTracer renders every frame into a numbered image, loading the
+	 * scene once.
+	 */
+	protected int frames = 1;
+	public void setFrames(int frames) { this.frames = Math.max(frames, 1); }
+	public int getFrames() { return frames; }
+
+	/** The frame of the sequence the scene is at. */
+	protected int frame = 0;
+	public int getFrame() { return frame; }
+
+	/**
+	 * Move the scene to a frame of its sequence: move the camera and the groups to
+	 * their keyframed positions, and if any group moved, update the acceleration
+	 * structure (refitting it where possible, see update()). Before init(), this only
+	 * sets the frame init() starts from.
+	 *
+	 * @param frame the frame to move to
+	 */
+	public void setFrame(int frame) {
+		long start = System.currentTimeMillis();
+		this.frame = frame;
+		if (moveToFrame() && builtStruct != null)
+			update();
+		if (builtStruct != null)
+			System.out.println("Set up frame " + frame + " in " + ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+	}
+
+	/**
+	 * Move the camera and the groups to their keyframed positions at the current frame.
+	 *
+	 * @return true if any group moved
+	 */
+	private boolean moveToFrame() {
+		if (getCamera() != null)
+			getCamera().setFrame(frame);
+		boolean moved = false;
+		for (Surface surface : getSurfaces()) {
+			if (surface instanceof Group && ((Group) surface).setFrame(frame))
+				moved = true;
+		}
+		return moved;
+	}
+
+	/**
+	 * Whether the acceleration structure has two levels. Each top-level Group then keeps
+	 * its children in a structure of its own, in the space of the group, and so does
+	 * each other top-level surface made of many, such as a Mesh; the structure of the
+	 * scene only holds these and the remaining simple surfaces. After groups move,
+	 * update() rebuilds just that small top-level structure; a group whose children
+	 * changed (see Group.invalidate) rebuilds its own as well.
+	 */
+	protected boolean twoLevel = false;
+	public void setTwoLevel(boolean twoLevel) { this.twoLevel = twoLevel; }
+	public boolean isTwoLevel() { return twoLevel; }
+
+	/**
+	 * What each top-level surface other than a group stands for in a two-level scene:
+	 * its bottom-level structure, or its only renderable surface.
+	 */
+	protected HashMap<Surface, Surface> bottomLevels = new HashMap<Surface, Surface>();
+
+	/**
+	 * The acceleration structure as last built, and the surfaces it was built over in
+	 * the order they were given, so that update() can tell when refitting it will do.
+	 */
+	protected AccelStruct builtStruct;
+	protected ArrayList<Surface> builtSurfaces;
 	
 	/**
 	 * Initialize transformation matrices for entire tree hierarchy
@@ -96,24 +200,77 @@ public class Scene {
 		id.setIdentity();
 		for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
 			Surface currSurface = iter.next();
+			if (currSurface instanceof Group)
+				((Group) currSurface).setTwoLevel(twoLevel);
+			else if (twoLevel && bottomLevels.containsKey(currSurface))
+				continue;
 			currSurface.setTransformation(id, id, id);
 		}
 	}
 
-	public void init() {
-		// Propagate transformation matrix through the tree hierarchy
+	/**
+	 * Propagate transformations through the tree hierarchy and build the acceleration
+	 * structure over the renderable surfaces. Call again after moving groups: if the
+	 * renderable surfaces are the same as before, as in a two-level scene or one of
+	 * simple surfaces, a Bvh is only refitted (see Bvh.refit).
+	 */
+	public void update() {
 		setTransform();
 
-		// Create the acceleration structure.
 		ArrayList<Surface> renderableSurfaces = new ArrayList<Surface>();
-		List<Surface> surfaces = getSurfaces();
-		for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
-			iter.next().appendRenderableSurfaces(renderableSurfaces);
+		for (Surface surface : getSurfaces()) {
+			if (twoLevel && !(surface instanceof Group))
+				appendBottomLevel(surface, renderableSurfaces);
+			else
+				surface.appendRenderableSurfaces(renderableSurfaces);
+		}
+
+		// The same surfaces as last time, only moved: refit the tree built over them.
+		long buildStart = System.currentTimeMillis();
+		if (getAccelStruct() instanceof Bvh && getAccelStruct() == builtStruct
+				&& renderableSurfaces.equals(builtSurfaces)) {
+			Bvh bvh = (Bvh) getAccelStruct();
+			if (bvh.refit()) {
+				System.out.println(String.format("Refitted %s over %d surfaces in %.3f seconds, SAH cost %.2f times as built",
+						bvh.getClass().getSimpleName(), renderableSurfaces.size(),
+						(System.currentTimeMillis() - buildStart) / 1000.0, bvh.getDegradation()));
+				return;
+			}
+			System.out.println(String.format("Refitting %s raised its SAH cost to %.2f times as built; rebuilding",
+					bvh.getClass().getSimpleName(), bvh.getDegradation()));
+		} else {
+			Surface surfaceArray[] = new Surface[renderableSurfaces.size()];
+			renderableSurfaces.toArray(surfaceArray);
+			getAccelStruct().build(surfaceArray);
 		}
+		builtStruct = getAccelStruct();
+		builtSurfaces = renderableSurfaces;
+		System.out.println("Built " + getAccelStruct().getClass().getSimpleName() + " over " + renderableSurfaces.size()
+				+ " surfaces in " + ((System.currentTimeMillis() - buildStart) / 1000.0) + " seconds");
+		if (getAccelStruct() instanceof Bvh)
+			System.out.println("  " + ((Bvh) getAccelStruct()).getStatistics());
+	}
 
-		Surface surfaceArray[] = new Surface[renderableSurfaces.size()];
-		renderableSurfaces.toArray(surfaceArray);
-		getAccelStruct().build(surfaceArray);
+	/**
+	 * Append surface to a two-level scene, as the structure of its own that it is
+	 * built into the first time if it is made of many renderable surfaces.
+	 */
+	private void appendBottomLevel(Surface surface, ArrayList<Surface> in) {
+		Surface bottom = bottomLevels.get(surface);
+		if (bottom == null) {
+			ArrayList<Surface> surfaces = new ArrayList<Surface>();
+			surface.appendRenderableSurfaces(surfaces);
+			if (surfaces.isEmpty())
+				return;
+			bottom = surfaces.size() == 1 ? surfaces.get(0) : AccelSurface.build(surfaces);
+			bottomLevels.put(surface, bottom);
+		}
+		in.add(bottom);
+	}
+
+	public void init() {
+		moveToFrame();
+		update();
 
 		// initialize camera
 		getCamera().init();
@@ -150,13 +307,13 @@ public class Scene {
 	
 	/**
 	 * Shadow ray calculations can be considerably accelerated by not bothering to find the
-	 * first intersection.  This record returns any intersection of the ray and the surfaces
-	 * and returns true if one is found.
+	 * first intersection.  This method returns true if the ray intersects any surface, without
+	 * computing where; see AccelStruct.occluded().
 	 * @param ray the ray to intersect
 	 * @return true if any intersection is found
 	 */
 	public boolean getAnyIntersection(Ray ray) {
-		return accelStruct.intersect(new IntersectionRecord(), ray, true);	
+		return accelStruct.occluded(ray);
 	}
 	
 }
\ No newline at end of file
@@ -29,4 +29,14 @@ public interface AccelStruct {
 	 * @return true if the ray intersects a surface in the scene; false otherwise.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection);
+
+	/**
+	 * Determine whether anything in the scene blocks the segment [ray.start, ray.end] of
+	 * the given ray. This is the query used for shadow rays: no intersection record is
+	 * filled in, the ray is not modified, and the search stops at the first blocker found.
+	 * 
+	 * @param ray The ray that is tested against the scene.
+	 * @return true if the ray intersects a surface in the scene; false otherwise.
+	 */
+	public boolean occluded(Ray ray);
 }
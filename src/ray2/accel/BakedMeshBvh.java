@@ -0,0 +1,263 @@
+package ray2.accel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import egl.math.Matrix4d;
+import ray2.mesh.TriangleSoup;
+import ray2.shader.Shader;
+import ray2.surface.SoupTriangle;
+import ray2.surface.Surface;
+
+/**
+ * A LinearBvh over the triangles of one baked mesh, that can be written to a cache
+ * file and read back instead of parsing, baking and building again.
+ *
+ * The triangles of the soup are stored in the order the leaves of the tree refer
+ * to them, so a cache file is just the soup arrays followed by the flattened node
+ * arrays. Files are keyed by a hash of the mesh file's contents, of its
+ * transformation and of the build settings; a file whose key does not match is
+ * ignored and rebuilt.
+ *
+ * The triangles are only ever intersected through this tree, so their bounds are
+ * not computed when a tree is read back.
+ */
+public class BakedMeshBvh extends LinearBvh {
+
+	/** The first bytes of a cache file: "RBVH" in little-endian order. */
+	static final int MAGIC = 0x48564252;
+
+	/** Bumped whenever the layout of a cache file changes. */
+	static final int VERSION = 1;
+
+	/** The length of a key, in bytes. */
+	static final int KEY_LENGTH = 20;
+
+	/**
+	 * The length of the header: magic, version, key, flags, triangle and node counts,
+	 * depth, and padding so that the arrays after it are 8-byte aligned.
+	 */
+	static final int HEADER_LENGTH = 4 + 4 + KEY_LENGTH + 4 + 4 + 4 + 4 + 4;
+
+	/** The triangles, in tree order. */
+	TriangleSoup soup;
+
+	public BakedMeshBvh() {
+		setSplitMethod("sah");
+	}
+
+	/** @return the triangles, in the order the leaves refer to them */
+	public TriangleSoup getSoup() { return soup; }
+
+	/**
+	 * Build a tree over the triangles of soup with the binned SAH.
+	 *
+	 * @param soup the baked triangles
+	 * @param shader the shader of the triangles
+	 * @return the tree, holding a copy of soup reordered to match it
+	 */
+	public static BakedMeshBvh build(TriangleSoup soup, Shader shader) {
+		Surface[] triangles = new Surface[soup.size];
+		for (int i = 0; i < soup.size; i++) {
+			triangles[i] = new SoupTriangle(soup, i, shader);
+			triangles[i].computeBoundingBox();
+		}
+		BakedMeshBvh bvh = new BakedMeshBvh();
+		bvh.build(triangles);
+
+		int[] order = new int[soup.size];
+		for (int i = 0; i < order.length; i++)
+			order[i] = ((SoupTriangle) bvh.surfaces[i]).getIndex();
+		bvh.soup = soup.permute(order);
+		bvh.surfaces = triangles(bvh.soup, shader);
+		return bvh;
+	}
+
+	private static Surface[] triangles(TriangleSoup soup, Shader shader) {
+		Surface[] triangles = new Surface[soup.size];
+		for (int i = 0; i < soup.size; i++)
+			triangles[i] = new SoupTriangle(soup, i, shader);
+		return triangles;
+	}
+
+	/**
+	 * Compute the cache key of a mesh file: a SHA-1 hash of its contents, of the
+	 * transformation it is baked with, of the settings build() builds the tree with
+	 * and of the cache format version.
+	 */
+	public static byte[] key(File meshFile, Matrix4d tMat) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		RandomAccessFile in = new RandomAccessFile(meshFile, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			long length = channel.size();
+			// Map the file in pieces so that files over 2GB can be hashed too.
+			for (long position = 0; position < length; position += Integer.MAX_VALUE) {
+				long size = Math.min(Integer.MAX_VALUE, length - position);
+				digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+			}
+		} finally {
+			in.close();
+		}
+		BakedMeshBvh builder = new BakedMeshBvh();
+		byte[] split = builder.splitMethod.getBytes("US-ASCII");
+		ByteBuffer settings = ByteBuffer.allocate(8 * tMat.m.length + 4 + split.length + 4 + 4 + 8 + 8 + 4)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		for (double v : tMat.m)
+			settings.putDouble(v);
+		settings.putInt(split.length).put(split);
+		settings.putInt(builder.bins).putInt(builder.maxLeafSize);
+		settings.putDouble(builder.traversalCost).putDouble(builder.intersectionCost);
+		settings.putInt(VERSION);
+		settings.flip();
+		digest.update(settings);
+		return digest.digest();
+	}
+
+	/**
+	 * @return the cache file for meshFile with the given key, next to meshFile
+	 */
+	public static File cacheFile(File meshFile, byte[] key) {
+		StringBuilder name = new StringBuilder(meshFile.getName()).append('.');
+		for (int i = 0; i < 8; i++)
+			name.append(String.format("%02x", key[i]));
+		return new File(meshFile.getAbsoluteFile().getParentFile(), name.append(".bvh").toString());
+	}
+
+	/**
+	 * Read a tree written by write() by memory-mapping the file.
+	 *
+	 * @param file the cache file
+	 * @param key the key the file must have been written with
+	 * @param shader the shader of the triangles
+	 * @return the tree, or null if the file does not exist or was written with another
+	 * key or format version
+	 */
+	public static BakedMeshBvh read(File file, byte[] key, Shader shader) throws IOException {
+		if (!file.isFile())
+			return null;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() < HEADER_LENGTH)
+				return null;
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			if (map.getInt() != MAGIC || map.getInt() != VERSION)
+				return null;
+			byte[] fileKey = new byte[KEY_LENGTH];
+			map.get(fileKey);
+			if (!Arrays.equals(fileKey, key))
+				return null;
+			boolean withUVs = map.getInt() != 0;
+			int size = map.getInt();
+			int nodeCount = map.getInt();
+			int depth = map.getInt();
+			map.getInt();
+			long expected = HEADER_LENGTH + 8L * (27 + (withUVs ? 6 : 0)) * size + 8L * 6 * nodeCount
+					+ 4L * 2 * nodeCount + size;
+			if (channel.size() != expected)
+				return null;
+
+			TriangleSoup soup = new TriangleSoup(size, withUVs);
+			for (double[] array : soupArrays(soup))
+				getDoubles(map, array);
+			double[] bounds = new double[6 * nodeCount];
+			getDoubles(map, bounds);
+			int[] offsets = new int[nodeCount], counts = new int[nodeCount];
+			map.asIntBuffer().get(offsets);
+			map.position(map.position() + 4 * nodeCount);
+			map.asIntBuffer().get(counts);
+			map.position(map.position() + 4 * nodeCount);
+			for (int i = 0; i < size; i++)
+				soup.hasUVs[i] = map.get() != 0;
+
+			BakedMeshBvh bvh = new BakedMeshBvh();
+			bvh.soup = soup;
+			bvh.setTree(triangles(soup, shader), bounds, offsets, counts, depth);
+			return bvh;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write this tree and its triangles to file, replacing it.
+	 *
+	 * @param file the cache file
+	 * @param key the key to write it with; see key()
+	 */
+	public void write(File file, byte[] key) throws IOException {
+		boolean withUVs = soup.uvs != null;
+		long length = HEADER_LENGTH + 8L * (27 + (withUVs ? 6 : 0)) * soup.size + 8L * 6 * nodeCount
+				+ 4L * 2 * nodeCount + soup.size;
+		// Write to a temporary file first, so that an interrupted write never leaves
+		// a truncated cache file behind under the real name.
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		try {
+			out.setLength(length);
+			MappedByteBuffer map = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			map.putInt(MAGIC);
+			map.putInt(VERSION);
+			map.put(key, 0, KEY_LENGTH);
+			map.putInt(withUVs ? 1 : 0);
+			map.putInt(soup.size);
+			map.putInt(nodeCount);
+			map.putInt(depth);
+			map.putInt(0);
+			for (double[] array : soupArrays(soup))
+				putDoubles(map, array);
+			putDoubles(map, bounds);
+			map.asIntBuffer().put(offsets, 0, nodeCount);
+			map.position(map.position() + 4 * nodeCount);
+			map.asIntBuffer().put(counts, 0, nodeCount);
+			map.position(map.position() + 4 * nodeCount);
+			for (int i = 0; i < soup.size; i++)
+				map.put((byte) (soup.hasUVs[i] ? 1 : 0));
+			map.force();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Could not rename " + tmp + " to " + file);
+			}
+		}
+	}
+
+	/**
+	 * @return the double arrays of soup, in the order they are stored in a cache file
+	 */
+	private static double[][] soupArrays(TriangleSoup soup) {
+		double[][] arrays = { soup.v0x, soup.v0y, soup.v0z, soup.ax, soup.ay, soup.az,
+				soup.bx, soup.by, soup.bz, soup.normals, soup.bounds, soup.centroids, soup.uvs };
+		return soup.uvs != null ? arrays : Arrays.copyOf(arrays, arrays.length - 1);
+	}
+
+	private static void getDoubles(ByteBuffer map, double[] array) {
+		map.asDoubleBuffer().get(array);
+		map.position(map.position() + 8 * array.length);
+	}
+
+	private static void putDoubles(ByteBuffer map, double[] array) {
+		map.asDoubleBuffer().put(array);
+		map.position(map.position() + 8 * array.length);
+	}
+}
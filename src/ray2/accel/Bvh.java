@@ -1,8 +1,9 @@
 
 package ray2.accel;
 
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import egl.math.Vector3d;
 import ray2.IntersectionRecord;
@@ -18,14 +19,89 @@ public class Bvh implements AccelStruct {
 	/** A shared surfaces array that will be used across every node in the tree. */
 	public Surface[] surfaces;
 
-	/** A comparator class that can sort surfaces by x, y, or z coordinate.
-	 *  See the subclass declaration below for details.
-	 */
-	static MyComparator cmp = new MyComparator();
-	
 	/** The root of the BVH tree. */
 	BvhNode root;
 
+	/**
+	 * How nodes are split: "median" splits at the median along the widest axis
+	 * with at most 10 surfaces per leaf, "sah" uses the binned surface area heuristic.
+	 */
+	protected String splitMethod = "median";
+	public void setSplitMethod(String splitMethod) {
+		if (splitMethod.trim().equalsIgnoreCase("sah") || splitMethod.trim().equalsIgnoreCase("median"))
+			this.splitMethod = splitMethod.trim().toLowerCase();
+		else
+			System.err.println("Unknown BVH split method '" + splitMethod + "', using " + this.splitMethod);
+	}
+
+	/** The number of bins per axis used by the SAH builder. */
+	protected int bins = 16;
+	public void setBins(int bins) { this.bins = bins; }
+
+	/** SAH cost of visiting an interior node, relative to intersectionCost. */
+	protected double traversalCost = 1.0;
+	public void setTraversalCost(double traversalCost) { this.traversalCost = traversalCost; }
+
+	/** SAH cost of intersecting a single surface. */
+	protected double intersectionCost = 2.0;
+	public void setIntersectionCost(double intersectionCost) { this.intersectionCost = intersectionCost; }
+
+	/** The SAH builder always splits nodes with more surfaces than this. */
+	protected int maxLeafSize = 8;
+	public void setMaxLeafSize(int maxLeafSize) { this.maxLeafSize = maxLeafSize; }
+
+	/**
+	 * If true, intersect() visits the two children of a node in the order the ray enters
+	 * their boxes, so that a hit in the nearer child shortens the ray and the farther one
+	 * is skipped if it starts beyond that hit. If false, children are always visited
+	 * left to right.
+	 */
+	protected boolean orderedTraversal = true;
+	public void setOrderedTraversal(boolean orderedTraversal) { this.orderedTraversal = orderedTraversal; }
+
+	/**
+	 * If true, build() constructs subtrees over at least parallelThreshold surfaces
+	 * in parallel on the common ForkJoinPool. The tree is the same either way.
+	 */
+	protected boolean parallelBuild = true;
+	public void setParallelBuild(boolean parallelBuild) { this.parallelBuild = parallelBuild; }
+
+	/** The smallest number of surfaces whose subtree is built as a separate task. */
+	protected int parallelThreshold = 4096;
+	public void setParallelThreshold(int parallelThreshold) { this.parallelThreshold = Math.max(parallelThreshold, 1); }
+
+	/** Counters for intersect() and occluded() calls, or null if not collected. */
+	protected TraversalStats hitStats, occlusionStats;
+	public void setTraversalStatistics(boolean collect) {
+		hitStats = collect ? new TraversalStats() : null;
+		occlusionStats = collect ? new TraversalStats() : null;
+	}
+	/** @return the counters for intersect() calls, or null if they are not collected */
+	public TraversalStats getHitStatistics() { return hitStats; }
+	/** @return the counters for occluded() calls, or null if they are not collected */
+	public TraversalStats getOcclusionStatistics() { return occlusionStats; }
+
+	/** Quality statistics of the last tree built. */
+	protected BvhStats stats;
+	public BvhStats getStatistics() { return stats; }
+
+	/**
+	 * refit() rebuilds the tree instead once its SAH cost has grown to more than this
+	 * many times the cost of the tree as built.
+	 */
+	protected double rebuildThreshold = 1.5;
+	public void setRebuildThreshold(double rebuildThreshold) { this.rebuildThreshold = rebuildThreshold; }
+
+	/** The SAH cost of the tree when it was built, and after the last refit. */
+	protected double builtSahCost, refitSahCost;
+
+	/**
+	 * @return how many times the SAH cost of the tree has grown through refitting
+	 * since it was built; after a refit() that rebuilt the tree, how many times it had
+	 * grown when refit() gave up on it
+	 */
+	public double getDegradation() { return builtSahCost > 0 ? refitSahCost / builtSahCost : 1; }
+
 	public Bvh() { }
 
 	/**
@@ -39,7 +115,16 @@ public class Bvh implements AccelStruct {
 	 * @return true if and intersection is found.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
-		return intersectHelper(root, outRecord, rayIn, anyIntersection);
+		if (hitStats != null)
+			hitStats.addRay();
+		rayIn.computeInverseDirection();
+		if (!orderedTraversal)
+			return intersectHelper(root, outRecord, rayIn, anyIntersection);
+		if (root == null)
+			return false;
+		if (hitStats != null)
+			hitStats.addNode();
+		return root.entryDistance(rayIn) != Double.POSITIVE_INFINITY && orderedHelper(root, outRecord, rayIn, anyIntersection);
 	}
 	
 	/**
@@ -58,18 +143,11 @@ public class Bvh implements AccelStruct {
 		// Hint: For a leaf node, use a normal linear search. Otherwise, search in the left and right children.
 		// Another hint: save time by checking if the ray intersects the node first before checking the childrens
 		if (node == null) {return false;}
-		if (node.intersects(rayIn)) {
+		if (hitStats != null)
+			hitStats.addNode();
+		if (node.entryDistance(rayIn) != Double.POSITIVE_INFINITY) {
 			if (node.isLeaf()) {
-				boolean ret = false;
-				// intersect with surfaces
-				for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++){
-					if (surfaces[i].intersect(outRecord, rayIn)) {
-						if (anyIntersection) {return true;}
-						rayIn.end = outRecord.t;
-						ret = true;
-					}
-				}
-				return ret;
+				return intersectLeaf(node, outRecord, rayIn, anyIntersection);
 			} else {
 				boolean ri = intersectHelper(node.child[0], outRecord, rayIn, anyIntersection);
 				boolean li = intersectHelper(node.child[1], outRecord, rayIn, anyIntersection);
@@ -80,19 +158,169 @@ public class Bvh implements AccelStruct {
 		return false;
 	}
 
+	/**
+	 * Like intersectHelper, but visits the children of node nearest first and skips
+	 * a child whose box the ray enters only after the closest hit found so far.
+	 * The caller has already checked that rayIn intersects the box of node.
+	 */
+	private boolean orderedHelper(BvhNode node, IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		if (node.isLeaf())
+			return intersectLeaf(node, outRecord, rayIn, anyIntersection);
+
+		BvhNode near = node.child[0], far = node.child[1];
+		double tNear = near.entryDistance(rayIn), tFar = far.entryDistance(rayIn);
+		if (hitStats != null) {
+			hitStats.addNode();
+			hitStats.addNode();
+		}
+		if (tFar < tNear) {
+			BvhNode n = near; near = far; far = n;
+			double t = tNear; tNear = tFar; tFar = t;
+		}
+
+		boolean ret = false;
+		if (tNear != Double.POSITIVE_INFINITY) {
+			ret = orderedHelper(near, outRecord, rayIn, anyIntersection);
+			if (ret && anyIntersection) {return true;}
+		}
+		// A hit in the nearer child has shortened rayIn.
+		if (tFar != Double.POSITIVE_INFINITY && tFar <= rayIn.end)
+			ret |= orderedHelper(far, outRecord, rayIn, anyIntersection);
+		return ret;
+	}
+
+	/**
+	 * Intersect rayIn with the surfaces of a leaf, shortening it at every hit.
+	 */
+	private boolean intersectLeaf(BvhNode node, IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		boolean ret = false;
+		for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++){
+			if (hitStats != null)
+				hitStats.addSurface();
+			if (surfaces[i].intersect(outRecord, rayIn)) {
+				if (anyIntersection) {return true;}
+				rayIn.end = outRecord.t;
+				ret = true;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Return true if any surface intersects ray. Surfaces are intersected without
+	 * an IntersectionRecord and the search stops at the first hit.
+	 *
+	 * @param ray the ray to test
+	 * @return true if an intersection is found.
+	 */
+	public boolean occluded(Ray ray) {
+		if (occlusionStats != null)
+			occlusionStats.addRay();
+		ray.computeInverseDirection();
+		return occludedHelper(root, ray);
+	}
+
+	/**
+	 * A helper method to occluded() that tests the surfaces under the given node.
+	 */
+	private boolean occludedHelper(BvhNode node, Ray ray) {
+		if (node == null)
+			return false;
+		if (occlusionStats != null)
+			occlusionStats.addNode();
+		if (node.entryDistance(ray) == Double.POSITIVE_INFINITY)
+			return false;
+		if (node.isLeaf()) {
+			for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
+				if (occlusionStats != null)
+					occlusionStats.addSurface();
+				if (surfaces[i].intersect(null, ray))
+					return true;
+			}
+			return false;
+		}
+		return occludedHelper(node.child[0], ray) || occludedHelper(node.child[1], ray);
+	}
+
 
 	@Override
 	public void build(Surface[] surfaces) {
 		this.surfaces = surfaces;
-		root = createTree(0, surfaces.length);
+		int threshold = parallelBuild ? parallelThreshold : 0;
+		if (splitMethod.equals("sah"))
+			root = new SahBuilder(bins, traversalCost, intersectionCost, maxLeafSize, threshold).build(surfaces);
+		else if (parallelBuild && surfaces.length >= parallelThreshold)
+			root = ForkJoinPool.commonPool().invoke(new MedianTask(0, surfaces.length));
+		else
+			root = createTree(0, surfaces.length);
+		stats = BvhStats.compute(root, traversalCost, intersectionCost);
+		builtSahCost = refitSahCost = stats.sahCost;
+	}
+
+	/**
+	 * Update the tree after the surfaces it was built over have moved: recompute the
+	 * bounds of every node bottom-up from the current bounds of its surfaces, keeping
+	 * the structure of the tree. Moving surfaces apart makes nodes overlap and the
+	 * tree slower to trace, so once its SAH cost (relative to the area of the root)
+	 * exceeds rebuildThreshold times the cost of the tree as built, the tree is
+	 * rebuilt instead.
+	 *
+	 * @return true if the tree was refitted, false if it was rebuilt
+	 */
+	public boolean refit() {
+		refitBounds();
+		refitSahCost = sahCost();
+		if (refitSahCost <= rebuildThreshold * builtSahCost)
+			return true;
+		double degradation = getDegradation();
+		build(surfaces);
+		refitSahCost = degradation * builtSahCost;
+		return false;
+	}
+
+	/**
+	 * Recompute the bounds of every node from the current bounds of its surfaces.
+	 */
+	protected void refitBounds() {
+		refitNode(root);
+	}
+
+	private void refitNode(BvhNode node) {
+		if (node.isLeaf()) {
+			node.minBound.set(Double.POSITIVE_INFINITY);
+			node.maxBound.set(Double.NEGATIVE_INFINITY);
+			for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
+				Vector3d min = surfaces[i].getMinBound(), max = surfaces[i].getMaxBound();
+				node.minBound.set(Math.min(node.minBound.x, min.x), Math.min(node.minBound.y, min.y),
+						Math.min(node.minBound.z, min.z));
+				node.maxBound.set(Math.max(node.maxBound.x, max.x), Math.max(node.maxBound.y, max.y),
+						Math.max(node.maxBound.z, max.z));
+			}
+			return;
+		}
+		BvhNode l = node.child[0], r = node.child[1];
+		refitNode(l);
+		refitNode(r);
+		node.minBound.set(Math.min(l.minBound.x, r.minBound.x), Math.min(l.minBound.y, r.minBound.y),
+				Math.min(l.minBound.z, r.minBound.z));
+		node.maxBound.set(Math.max(l.maxBound.x, r.maxBound.x), Math.max(l.maxBound.y, r.maxBound.y),
+				Math.max(l.maxBound.z, r.maxBound.z));
+	}
+
+	/**
+	 * @return the SAH cost of the tree with its current bounds, as in BvhStats
+	 */
+	protected double sahCost() {
+		return BvhStats.compute(root, traversalCost, intersectionCost).sahCost;
 	}
 	
 	/**
 	 * Create a BVH [sub]tree.  This tree node will be responsible for storing
 	 * and processing surfaces[start] to surfaces[end-1]. If the range is small enough,
-	 * this will create a leaf BvhNode. Otherwise, the surfaces will be sorted according
-	 * to the axis of the axis-aligned bounding box that is widest, and split into 2
-	 * children.
+	 * this will create a leaf BvhNode. Otherwise, the surfaces will be split at their
+	 * median along the axis of the axis-aligned bounding box that is widest, into 2
+	 * children. The left child is built by a separate task if the range is large
+	 * enough and the build runs in a ForkJoinPool.
 	 * 
 	 * @param start The start index of surfaces
 	 * @param end The end index of surfaces
@@ -129,19 +357,80 @@ public class Bvh implements AccelStruct {
 		int widestDim = (dx > dy && dx > dz) ? 0 : dy > dz ? 1 : 2;
 		
 		// ==== Step 4 ====
-		// Sort surfaces according to the widest dimension.
-		cmp.setIndex(widestDim);
-		Arrays.sort(surfaces, start, end, cmp);
+		// Move the half of the surfaces with the larger average position along the
+		// widest dimension to the front. Only the split matters, so the surfaces are
+		// partitioned around the median instead of sorted.
+		int mid = (start + end) / 2;
+		select(start, end, mid, widestDim);
 
 		// ==== Step 5 ====
 		// Recursively create left and right children.
-		int mid = (start + end) / 2;
-		BvhNode l = createTree(start, mid);
-		BvhNode r = createTree(mid, end);
+		BvhNode l, r;
+		if (parallelBuild && end - start >= parallelThreshold && ForkJoinTask.inForkJoinPool()) {
+			MedianTask left = new MedianTask(start, mid);
+			left.fork();
+			r = createTree(mid, end);
+			l = left.join();
+		} else {
+			l = createTree(start, mid);
+			r = createTree(mid, end);
+		}
 		BvhNode root = new BvhNode(minBound, maxBound, l, r, start, end);
 
 		return root;
 	}
+
+	/**
+	 * Reorder surfaces[start] to surfaces[end-1] so that surfaces[start] to surfaces[k-1]
+	 * have an average position along axis no smaller than any of surfaces[k] to
+	 * surfaces[end-1] (quickselect).
+	 */
+	private void select(int start, int end, int k, int axis) {
+		int lo = start, hi = end - 1;
+		while (lo < hi) {
+			double pivot = medianOfThree(key(lo, axis), key((lo + hi) >>> 1, axis), key(hi, axis));
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (key(i, axis) > pivot) i++;
+				while (key(j, axis) < pivot) j--;
+				if (i <= j) {
+					Surface s = surfaces[i];
+					surfaces[i++] = surfaces[j];
+					surfaces[j--] = s;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private double key(int i, int axis) {
+		return surfaces[i].getAveragePosition().get(axis);
+	}
+
+	private static double medianOfThree(double a, double b, double c) {
+		return a < b ? (b < c ? b : Math.max(a, c)) : (a < c ? a : Math.max(b, c));
+	}
+
+	/** Builds a median split subtree in a ForkJoinPool. */
+	@SuppressWarnings("serial")
+	private class MedianTask extends RecursiveTask<BvhNode> {
+		final int start, end;
+
+		MedianTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected BvhNode compute() {
+			return createTree(start, end);
+		}
+	}
 	
 
 	private Vector3d minVec(Vector3d v1, Vector3d v2) {
@@ -161,27 +450,3 @@ public class Bvh implements AccelStruct {
 	}
 	
 }
-
-/**
- * A subclass that compares the average position two surfaces by a given
- * axis. Use the setIndex(i) method to select which axis should be considered.
- * i=0 -> x-axis, i=1 -> y-axis, and i=2 -> z-axis.  
- *
- */
-class MyComparator implements Comparator<Surface> {
-	int index;
-	public MyComparator() {  }
-
-	public void setIndex(int index) {
-		this.index = index;
-	}
-
-	public int compare(Surface o1, Surface o2) {
-		double v1 = o1.getAveragePosition().get(index);
-		double v2 = o2.getAveragePosition().get(index);
-		if(v1 < v2) return 1;
-		if(v1 > v2) return -1;
-		return 0;
-	}
-
-}
@@ -83,28 +83,42 @@ public class BvhNode {
 	 * @return true if ray intersects the bounding box
 	 */
 	public boolean intersects(Ray ray) {
-		// TODO#A7: fill in this function.
-		// looks like the tmp is not necessary -- no need to have it ordered
-		double tEnterXtmp = (this.minBound.x - ray.origin.x) / ray.direction.x;
-		double tExitXtmp = (this.maxBound.x - ray.origin.x) / ray.direction.x;
-		double tEnterX = tEnterXtmp < tExitXtmp ? tEnterXtmp : tExitXtmp;
-		double tExitX = tEnterXtmp > tExitXtmp ? tEnterXtmp : tExitXtmp;
-		
-		double tEnterYtmp = (this.minBound.y - ray.origin.y) / ray.direction.y;
-		double tExitYtmp = (this.maxBound.y - ray.origin.y) / ray.direction.y;
-		double tEnterY = tEnterYtmp < tExitYtmp ? tEnterYtmp : tExitYtmp;
-		double tExitY = tEnterYtmp > tExitYtmp ? tEnterYtmp : tExitYtmp;
-		
-		double tEnterZtmp = (this.minBound.z - ray.origin.z) / ray.direction.z;
-		double tExitZtmp = (this.maxBound.z - ray.origin.z) / ray.direction.z;
-		double tEnterZ = tEnterZtmp < tExitZtmp ? tEnterZtmp : tExitZtmp;
-		double tExitZ = tEnterZtmp > tExitZtmp ? tEnterZtmp : tExitZtmp;
-		
-		double tEnter = tEnterY > tEnterZ ? tEnterY : tEnterZ;
-		tEnter = tEnter > tEnterX ? tEnter : tEnterX;
-		double tExit = tExitY < tExitZ ? tExitY : tExitZ;
-		tExit = tExit < tExitX ? tExit : tExitX;
-		return tExit >= tEnter && tEnter <= ray.end && tExit >= ray.start;
+		ray.computeInverseDirection();
+		return entryDistance(ray) != Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Find where the ray enters the bounding box. This uses the reciprocal direction
+	 * cached in the ray, so ray.computeInverseDirection() must have been called since
+	 * the direction was last changed.
+	 * @param ray
+	 * @return the ray parameter at which the segment [ray.start, ray.end] enters the
+	 * bounding box, which is ray.start if it starts inside it, or positive infinity if
+	 * the segment misses the box
+	 */
+	public double entryDistance(Ray ray) {
+		// The sign of the direction picks the near and far plane of each slab, so the
+		// two distances need no sorting. For a ray parallel to a slab the reciprocal is
+		// infinite, and if the origin lies exactly on one of its planes the distance is
+		// NaN; the comparisons are written so that a NaN leaves the interval unchanged.
+		double tEnter = ray.start, tExit = ray.end;
+
+		double t0 = ((ray.signX == 0 ? minBound.x : maxBound.x) - ray.origin.x) * ray.invDirX;
+		double t1 = ((ray.signX == 0 ? maxBound.x : minBound.x) - ray.origin.x) * ray.invDirX;
+		tEnter = t0 > tEnter ? t0 : tEnter;
+		tExit = t1 < tExit ? t1 : tExit;
+
+		t0 = ((ray.signY == 0 ? minBound.y : maxBound.y) - ray.origin.y) * ray.invDirY;
+		t1 = ((ray.signY == 0 ? maxBound.y : minBound.y) - ray.origin.y) * ray.invDirY;
+		tEnter = t0 > tEnter ? t0 : tEnter;
+		tExit = t1 < tExit ? t1 : tExit;
+
+		t0 = ((ray.signZ == 0 ? minBound.z : maxBound.z) - ray.origin.z) * ray.invDirZ;
+		t1 = ((ray.signZ == 0 ? maxBound.z : minBound.z) - ray.origin.z) * ray.invDirZ;
+		tEnter = t0 > tEnter ? t0 : tEnter;
+		tExit = t1 < tExit ? t1 : tExit;
+
+		return tEnter <= tExit ? tEnter : Double.POSITIVE_INFINITY;
 	}
 	
 }
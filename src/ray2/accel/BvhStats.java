@@ -0,0 +1,84 @@
+package ray2.accel;
+
+/**
+ * Summary of the quality of a built BVH: its expected cost under the surface area
+ * heuristic, its depth, and the distribution of leaf sizes.
+ */
+public class BvhStats {
+
+	/** Number of interior nodes and leaves. */
+	public int interiorNodes, leaves;
+
+	/** Depth of the deepest leaf (the root is at depth 1). */
+	public int maxDepth;
+
+	/** Average depth of a leaf, weighted by the number of surfaces in it. */
+	public double averageLeafDepth;
+
+	/** Smallest, largest and mean number of surfaces in a leaf. */
+	public int minLeafSize, maxLeafSize;
+	public double averageLeafSize;
+
+	/**
+	 * Expected cost of tracing a ray through the tree: the sum over nodes of
+	 * SA(node) / SA(root) times traversalCost for interior nodes, or times
+	 * intersectionCost * size for leaves.
+	 */
+	public double sahCost;
+
+	/**
+	 * Walk the tree under root and collect its statistics.
+	 *
+	 * @param root the root of the tree
+	 * @param traversalCost the cost of visiting an interior node
+	 * @param intersectionCost the cost of intersecting one surface
+	 * @return the statistics of the tree
+	 */
+	public static BvhStats compute(BvhNode root, double traversalCost, double intersectionCost) {
+		BvhStats stats = new BvhStats();
+		stats.minLeafSize = Integer.MAX_VALUE;
+		double rootArea = area(root);
+		stats.visit(root, 1, rootArea > 0 ? 1 / rootArea : 0, traversalCost, intersectionCost);
+
+		int surfaces = root.surfaceIndexEnd - root.surfaceIndexStart;
+		stats.averageLeafSize = stats.leaves > 0 ? surfaces / (double) stats.leaves : 0;
+		stats.averageLeafDepth = surfaces > 0 ? stats.averageLeafDepth / surfaces : 0;
+		if (stats.leaves == 0)
+			stats.minLeafSize = 0;
+		return stats;
+	}
+
+	private void visit(BvhNode node, int depth, double invRootArea, double traversalCost, double intersectionCost) {
+		double relativeArea = invRootArea > 0 ? area(node) * invRootArea : 1;
+		maxDepth = Math.max(maxDepth, depth);
+		if (node.isLeaf()) {
+			int size = node.surfaceIndexEnd - node.surfaceIndexStart;
+			leaves++;
+			minLeafSize = Math.min(minLeafSize, size);
+			maxLeafSize = Math.max(maxLeafSize, size);
+			averageLeafDepth += (double) depth * size;
+			sahCost += relativeArea * intersectionCost * size;
+			return;
+		}
+		interiorNodes++;
+		sahCost += relativeArea * traversalCost;
+		visit(node.child[0], depth + 1, invRootArea, traversalCost, intersectionCost);
+		visit(node.child[1], depth + 1, invRootArea, traversalCost, intersectionCost);
+	}
+
+	private static double area(BvhNode node) {
+		double dx = node.maxBound.x - node.minBound.x;
+		double dy = node.maxBound.y - node.minBound.y;
+		double dz = node.maxBound.z - node.minBound.z;
+		if (dx < 0 || dy < 0 || dz < 0)
+			return 0;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	public String toString() {
+		return String.format("%d interior nodes, %d leaves, depth %d (avg leaf depth %.1f), "
+				+ "leaf size %d..%d (avg %.1f), SAH cost %.2f",
+				interiorNodes, leaves, maxDepth, averageLeafDepth,
+				minLeafSize, maxLeafSize, averageLeafSize, sahCost);
+	}
+}
@@ -1,6 +1,8 @@
 package ray2.accel;
 
+import java.io.File;
 import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -9,6 +11,8 @@ import org.junit.Test;
 
 import ray2.mesh.OBJMesh;
 import ray2.mesh.OBJFace;
+import ray2.mesh.TriangleSoup;
+import ray2.IntersectionRecord;
 import ray2.Ray;
 import ray2.surface.Mesh;
 import ray2.surface.Sphere;
@@ -286,6 +290,39 @@ public class BvhTests {
                 + "bbox: \nmin<-6, 1, 0> \nmax<1, 2, 2>.", !node.intersects(ray));
     }
     
+    @Test
+    public void testAxisParallelRays() {
+        BvhNode node = new BvhNode(new Vector3d(0, 0, 0), new Vector3d(1, 1, 1), null, null, 0, 0);
+        Ray ray = new Ray(new Vector3d(0.5, 0.5, -1), new Vector3d(0, 0, 1));
+        ray.makeOffsetRay();
+        ray.computeInverseDirection();
+        assertEquals("Ray along +z through the box", 1, node.entryDistance(ray), 1e-12);
+        
+        // Origins on a face plane give 0 * infinity = NaN in the slab test; the ray
+        // should still count as touching the box.
+        ray.origin.set(0, 0.5, -1);
+        assertEquals("Ray along +z in the plane x = 0", 1, node.entryDistance(ray), 1e-12);
+        ray.origin.set(1, 1, -1);
+        assertEquals("Ray along +z on the edge x = y = 1", 1, node.entryDistance(ray), 1e-12);
+        ray.origin.set(-0.1, 0.5, -1);
+        assertEquals("Ray along +z beside the box", Double.POSITIVE_INFINITY, node.entryDistance(ray), 0);
+        
+        ray.origin.set(0.5, 0.5, 2);
+        ray.direction.set(-0.0, 0, -1);
+        ray.computeInverseDirection();
+        assertEquals("Ray along -z with a negative zero component", 1, node.entryDistance(ray), 1e-12);
+        ray.origin.set(0.5, 0, 2);
+        assertEquals("Ray along -z in the plane y = 0", 1, node.entryDistance(ray), 1e-12);
+        
+        ray.origin.set(0.5, 0.5, 0.5);
+        ray.direction.set(1, 0, 0);
+        assertTrue("Ray starting inside the box", node.intersects(ray));
+        assertEquals("Ray starting inside the box", ray.start, node.entryDistance(ray), 0);
+        ray.end = 0.25;
+        ray.origin.set(-0.5, 0.5, 0.5);
+        assertFalse("Segment ending before the box", node.intersects(ray));
+    }
+    
     @Test
     /**
      * This test will only work if the student has decided that they should have at most 10
@@ -560,6 +597,263 @@ public class BvhTests {
                     !vectorsEqual(bvh40.root.child[0].child[0].maxBound, new Vector3d(31, 20, 1))));
     }
     
+    @Test
+    public void testLinearBvhMatchesBvh() {
+        LinearBvh linear = new LinearBvh();
+        linear.build(Arrays.copyOf(surfaces40, 40));
+        assertRaysAgree("LinearBvh", bvh40, linear);
+    }
+
+    @Test
+    public void testParallelBuild() {
+        for (String split : new String[] { "median", "sah" }) {
+            Bvh serial = new Bvh();
+            serial.setSplitMethod(split);
+            serial.setMaxLeafSize(2);
+            serial.setParallelBuild(false);
+            serial.build(Arrays.copyOf(surfaces40, 40));
+            Bvh parallel = new Bvh();
+            parallel.setSplitMethod(split);
+            parallel.setMaxLeafSize(2);
+            parallel.setParallelThreshold(4);
+            parallel.build(Arrays.copyOf(surfaces40, 40));
+            assertArrayEquals("Parallel " + split + " build ordered the surfaces differently",
+                    serial.surfaces, parallel.surfaces);
+            assertSameTree(split, serial.root, parallel.root);
+            assertRaysAgree("Parallel " + split + " Bvh", bvh40, parallel);
+        }
+    }
+
+    private void assertSameTree(String name, BvhNode expected, BvhNode actual) {
+        assertEquals(name + " tree differs in shape", expected.isLeaf(), actual.isLeaf());
+        assertEquals(name + " tree differs in ranges", expected.surfaceIndexStart, actual.surfaceIndexStart);
+        assertEquals(name + " tree differs in ranges", expected.surfaceIndexEnd, actual.surfaceIndexEnd);
+        assertTrue(name + " tree differs in bounds", vectorsEqual(expected.minBound, actual.minBound)
+                && vectorsEqual(expected.maxBound, actual.maxBound));
+        if (!expected.isLeaf()) {
+            assertSameTree(name, expected.child[0], actual.child[0]);
+            assertSameTree(name, expected.child[1], actual.child[1]);
+        }
+    }
+
+    @Test
+    public void testBakedMeshBvhCache() throws Exception {
+        // A cloud of random triangles, so that the tree has many levels
+        Random rand = new Random(4620);
+        OBJMesh md = new OBJMesh();
+        for (int i = 0; i < 300; ++i) {
+            float x = rand.nextFloat() * 10, y = rand.nextFloat() * 10, z = rand.nextFloat() * 10;
+            OBJFace face = new OBJFace(3, false, false);
+            for (int k = 0; k < 3; ++k) {
+                md.positions.add(new Vector3(x + rand.nextFloat(), y + rand.nextFloat(), z + rand.nextFloat()));
+                face.positions[k] = 3 * i + k;
+            }
+            md.faces.add(face);
+        }
+        Matrix4d m = Matrix4d.createRotationY(0.4);
+        TriangleSoup soup = new TriangleSoup(md, m, m.clone().invert().transpose());
+        BakedMeshBvh built = BakedMeshBvh.build(soup, null);
+        
+        File meshFile = File.createTempFile("bvhcache", ".obj");
+        meshFile.deleteOnExit();
+        byte[] key = BakedMeshBvh.key(meshFile, m);
+        File cacheFile = BakedMeshBvh.cacheFile(meshFile, key);
+        cacheFile.deleteOnExit();
+        built.write(cacheFile, key);
+        BakedMeshBvh read = BakedMeshBvh.read(cacheFile, key, null);
+        assertNotNull("Could not read back a BVH cache file", read);
+        assertNull("A BVH cache file was read with the wrong key",
+                BakedMeshBvh.read(cacheFile, BakedMeshBvh.key(meshFile, new Matrix4d()), null));
+        
+        IntersectionRecord expected = new IntersectionRecord();
+        IntersectionRecord actual = new IntersectionRecord();
+        int hits = 0;
+        for (int i = 0; i < 2000; ++i) {
+            Ray ray1 = new Ray(new Vector3d(rand.nextDouble() * 14 - 2, rand.nextDouble() * 14 - 2, -5),
+                    new Vector3d(rand.nextDouble() - 0.5, rand.nextDouble() - 0.5, 1).normalize());
+            ray1.makeOffsetRay();
+            Ray ray2 = new Ray(ray1);
+            Ray ray3 = new Ray(ray1);
+            boolean hit = built.intersect(expected, ray1, false);
+            assertEquals("Cached BVH disagrees on ray " + i, hit, read.intersect(actual, ray2, false));
+            assertEquals("Cached BVH occluded disagrees on ray " + i, hit, read.occluded(ray3));
+            if (hit) {
+                hits++;
+                assertEquals("Cached BVH found a different t on ray " + i, expected.t, actual.t, 0);
+                assertTrue("Cached BVH found a different normal on ray " + i, vectorsEqual(expected.normal, actual.normal));
+            }
+        }
+        assertTrue("Too few rays hit the triangles: " + hits, hits > 100);
+    }
+
+    @Test
+    public void testWideBvhMatchesBvh() {
+        for (int width : new int[] { 2, 4, 8 }) {
+            for (String split : new String[] { "median", "sah" }) {
+                WideBvh wide = new WideBvh();
+                wide.setWidth(width);
+                wide.setSplitMethod(split);
+                wide.setMaxLeafSize(2);
+                wide.build(Arrays.copyOf(surfaces40, 40));
+                assertTrue("WideBvh[" + split + "," + width + "] has nodes with more than " + width + " children",
+                        wide.getMeanArity() <= width);
+                assertRaysAgree("WideBvh[" + split + "," + width + "]", bvh40, wide);
+                wide.setOrderedTraversal(false);
+                assertRaysAgree("Unordered WideBvh[" + split + "," + width + "]", bvh40, wide);
+            }
+        }
+    }
+
+    @Test
+    public void testSahBvhMatchesBvh() {
+        Bvh sah = new Bvh();
+        sah.setSplitMethod("sah");
+        sah.build(Arrays.copyOf(surfaces40, 40));
+        assertTrue("SAH leaves should not exceed maxLeafSize, got " + sah.getStatistics(),
+                sah.getStatistics().maxLeafSize <= sah.maxLeafSize);
+        assertRaysAgree("SAH Bvh", bvh40, sah);
+    }
+    
+    /**
+     * Move the spheres to the given centers, as a Group would when it moves.
+     */
+    private static void moveSpheres(Sphere[] spheres, Vector3d[] centers) {
+        for (int i = 0; i < spheres.length; ++i) {
+            spheres[i].setCenter(centers[i]);
+            spheres[i].setTransformation(new Matrix4d(), new Matrix4d(), new Matrix4d());
+        }
+    }
+
+    @Test
+    public void testRefit() {
+        Sphere[] spheres = new Sphere[40];
+        Vector3d[] centers = new Vector3d[40];
+        for (int i = 0; i < 40; ++i) {
+            spheres[i] = new Sphere();
+            centers[i] = new Vector3d(30 * (i % 2), i / 2, 0);
+        }
+        moveSpheres(spheres, centers);
+        Bvh[] bvhs = { new Bvh(), new LinearBvh(), new WideBvh() };
+        for (Bvh bvh : bvhs) {
+            bvh.setSplitMethod("sah");
+            bvh.setMaxLeafSize(2);
+            bvh.build(Arrays.copyOf(spheres, 40));
+        }
+
+        // A small motion keeps the tree good enough to refit
+        Random rand = new Random(4620);
+        for (int i = 0; i < 40; ++i)
+            centers[i].add(rand.nextDouble() * 0.2, rand.nextDouble() * 0.2, rand.nextDouble() * 0.2);
+        moveSpheres(spheres, centers);
+        Bvh reference = new Bvh();
+        reference.build(Arrays.copyOf(spheres, 40));
+        for (Bvh bvh : bvhs) {
+            String name = "Refitted " + bvh.getClass().getSimpleName();
+            assertTrue(name + " was rebuilt after a small motion", bvh.refit());
+            assertRaysAgree(name, reference, bvh);
+        }
+
+        // Scattering the spheres makes the nodes overlap, and the monitor rebuild the tree
+        for (int i = 0; i < 40; ++i)
+            centers[i].set(rand.nextDouble() * 30, rand.nextDouble() * 20, 0);
+        moveSpheres(spheres, centers);
+        reference.build(Arrays.copyOf(spheres, 40));
+        for (Bvh bvh : bvhs) {
+            String name = "Rebuilt " + bvh.getClass().getSimpleName();
+            assertFalse(name + " was refitted after the spheres were scattered", bvh.refit());
+            assertTrue(name + " reports the refit it gave up on", bvh.getDegradation() > 1.5);
+            assertEquals(name + " should be as good as built", bvh.builtSahCost, bvh.sahCost(), 1e-9);
+            assertRaysAgree(name, reference, bvh);
+        }
+
+        // The empty tree and a tree of one sphere are both a single leaf
+        for (int n = 0; n < 2; ++n) {
+            LinearBvh single = new LinearBvh();
+            single.build(Arrays.copyOf(spheres, n));
+            assertEquals(1, single.nodeCount);
+            assertTrue("A tree of " + n + " spheres was rebuilt", single.refit());
+            Vector3d min = n > 0 ? spheres[0].getMinBound() : new Vector3d(Double.POSITIVE_INFINITY);
+            Vector3d max = n > 0 ? spheres[0].getMaxBound() : new Vector3d(Double.NEGATIVE_INFINITY);
+            assertArrayEquals("A tree of " + n + " spheres refitted to the wrong bounds",
+                    new double[] { min.x, min.y, min.z, max.x, max.y, max.z }, single.bounds, 0);
+        }
+    }
+
+    @Test
+    public void testOrderedTraversal() {
+        // Rays along the column of spheres in surfaces20, from both ends, so that
+        // the nearer child is the left one for half of them and the right one for
+        // the other half.
+        LinearBvh unordered = new LinearBvh();
+        unordered.setSplitMethod("sah");
+        unordered.setMaxLeafSize(2);
+        unordered.setOrderedTraversal(false);
+        unordered.setTraversalStatistics(true);
+        unordered.build(Arrays.copyOf(surfaces20, 20));
+        LinearBvh ordered = new LinearBvh();
+        ordered.setSplitMethod("sah");
+        ordered.setMaxLeafSize(2);
+        ordered.setTraversalStatistics(true);
+        ordered.build(Arrays.copyOf(surfaces20, 20));
+        
+        Random rand = new Random(4620);
+        IntersectionRecord expected = new IntersectionRecord();
+        IntersectionRecord actual = new IntersectionRecord();
+        for (int i = 0; i < 1000; ++i) {
+            double sign = i % 2 == 0 ? 1 : -1;
+            Vector3d origin = new Vector3d(rand.nextDouble() - 0.5, 9.5 + sign * 50, rand.nextDouble() - 0.5);
+            Ray ray1 = new Ray(origin, new Vector3d(0, -sign, 0));
+            ray1.makeOffsetRay();
+            Ray ray2 = new Ray(ray1);
+            assertTrue(unordered.intersect(expected, ray1, false));
+            assertTrue(ordered.intersect(actual, ray2, false));
+            assertEquals("Ordered traversal found a different t on ray " + i, expected.t, actual.t, 1e-9);
+            assertTrue("Ordered traversal found a different surface on ray " + i, expected.surface == actual.surface);
+        }
+        
+        TraversalStats before = unordered.getHitStatistics(), after = ordered.getHitStatistics();
+        assertEquals(1000, after.getRays());
+        assertTrue("Ordered traversal should visit fewer nodes: " + after + " vs " + before,
+                after.getNodesPerRay() < before.getNodesPerRay());
+        assertTrue("Ordered traversal should test fewer surfaces: " + after + " vs " + before,
+                after.getSurfacesPerRay() < before.getSurfacesPerRay());
+    }
+    
+    /**
+     * Shoot a fixed set of random rays through the region covered by surfaces40 and
+     * check that accel finds the same hits as the reference BVH.
+     */
+    private void assertRaysAgree(String name, AccelStruct reference, AccelStruct accel) {
+        Random rand = new Random(4620);
+        IntersectionRecord expected = new IntersectionRecord();
+        IntersectionRecord actual = new IntersectionRecord();
+        for (int i = 0; i < 2000; ++i) {
+            Vector3d origin = new Vector3d(rand.nextDouble() * 50 - 10, rand.nextDouble() * 40 - 10, 10);
+            Vector3d target = new Vector3d(rand.nextDouble() * 32 - 1, rand.nextDouble() * 22 - 1, 0);
+            Ray ray1 = new Ray(origin, target.sub(origin).normalize());
+            ray1.makeOffsetRay();
+            Ray ray2 = new Ray(ray1);
+            Ray ray3 = new Ray(ray1);
+            Ray ray4 = new Ray(ray1);
+            Ray ray5 = new Ray(ray1);
+            Ray ray6 = new Ray(ray1);
+            
+            boolean hit = reference.intersect(expected, ray1, false);
+            assertEquals(name + " disagrees on ray " + i, hit, accel.intersect(actual, ray2, false));
+            if (hit) {
+                assertEquals(name + " found a different t on ray " + i, expected.t, actual.t, 1e-9);
+                assertTrue(name + " found a different surface on ray " + i, expected.surface == actual.surface);
+            }
+            assertEquals(name + " any-hit disagrees on ray " + i, hit,
+                    accel.intersect(new IntersectionRecord(), ray3, true));
+            assertEquals(name + " reference any-hit disagrees on ray " + i, hit,
+                    reference.intersect(new IntersectionRecord(), ray4, true));
+            assertEquals(name + " occluded disagrees on ray " + i, hit, accel.occluded(ray5));
+            assertEquals(name + " occluded modified ray " + i, ray6.end, ray5.end, 0);
+            assertEquals(name + " reference occluded disagrees on ray " + i, hit, reference.occluded(ray6));
+        }
+    }
+    
     // Simple element-wise comparison.
     private boolean vectorsEqual(Vector3d v0, Vector3d v1) {
         double epsilon = 1e-4;
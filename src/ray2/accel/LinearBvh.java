@@ -0,0 +1,402 @@
+package ray2.accel;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.surface.Surface;
+import egl.math.Vector3d;
+
+/**
+ * A BVH that is built exactly like {@link Bvh} but then flattened into primitive
+ * arrays, so that traversal walks contiguous memory instead of chasing BvhNode,
+ * Vector3d and child[] pointers.
+ *
+ * Nodes are laid out depth-first: the left child of an interior node is always the
+ * node right after it, and only the index of the right child is stored. Traversal
+ * uses an explicit stack instead of recursion.
+ *
+ * Select it in a scene file with <accelStruct type="LinearBvh"/>.
+ */
+public class LinearBvh extends Bvh {
+
+	/** Node bounds, 6 per node: minX, minY, minZ, maxX, maxY, maxZ. */
+	double[] bounds;
+
+	/**
+	 * For an interior node, the index of its right child. For a leaf, the index of
+	 * its first surface.
+	 */
+	int[] offsets;
+
+	/** The number of surfaces under a leaf, or 0 for an interior node. */
+	int[] counts;
+
+	/** The number of nodes in the flattened tree. */
+	int nodeCount;
+
+	/** Length of the longest root-to-leaf path, counting both ends. */
+	int depth;
+
+	/** Per-thread traversal stacks, sized for the current tree. */
+	private ThreadLocal<int[]> stacks;
+
+	/** Per-thread stacks of the distances at which the ray enters the nodes on stacks. */
+	private ThreadLocal<double[]> distanceStacks;
+
+	public LinearBvh() { }
+
+	@Override
+	public void build(Surface[] surfaces) {
+		super.build(surfaces);
+		flatten(root);
+		// The pointer tree is no longer needed once it has been flattened.
+		root = null;
+	}
+
+	/**
+	 * Copy the pointer-based tree under node into the packed arrays.
+	 *
+	 * @param node the root of the tree to flatten
+	 */
+	void flatten(BvhNode node) {
+		nodeCount = countNodes(node);
+		bounds = new double[6 * nodeCount];
+		offsets = new int[nodeCount];
+		counts = new int[nodeCount];
+		depth = 0;
+		flattenHelper(node, 0, 1);
+		allocateStacks();
+	}
+
+	/**
+	 * Adopt a tree that has already been flattened, such as one read back from a
+	 * cache file by BakedMeshBvh, instead of building one.
+	 *
+	 * @param surfaces the surfaces, in the order the leaves refer to them
+	 */
+	void setTree(Surface[] surfaces, double[] bounds, int[] offsets, int[] counts, int depth) {
+		this.surfaces = surfaces;
+		this.root = null;
+		this.bounds = bounds;
+		this.offsets = offsets;
+		this.counts = counts;
+		this.nodeCount = counts.length;
+		this.depth = depth;
+		allocateStacks();
+		builtSahCost = refitSahCost = sahCost();
+	}
+
+	/**
+	 * Children follow their parent in the arrays, so one backward pass over the nodes
+	 * refits every child before its parent.
+	 */
+	@Override
+	protected void refitBounds() {
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			if (isLeaf(node)) {
+				refitLeaf(node);
+				continue;
+			}
+			int b = 6 * node, l = 6 * (node + 1), r = 6 * offsets[node];
+			for (int k = 0; k < 3; k++) {
+				bounds[b + k] = Math.min(bounds[l + k], bounds[r + k]);
+				bounds[b + k + 3] = Math.max(bounds[l + k + 3], bounds[r + k + 3]);
+			}
+		}
+	}
+
+	/**
+	 * A count of 0 marks an interior node everywhere except in an empty tree, whose root
+	 * is a leaf of no surfaces. Interior nodes always have two children, so a tree of one
+	 * node is a single leaf either way.
+	 */
+	private boolean isLeaf(int node) {
+		return counts[node] > 0 || nodeCount == 1;
+	}
+
+	/**
+	 * Set the bounds of a leaf to those of its surfaces, or to empty bounds if it has none.
+	 */
+	private void refitLeaf(int node) {
+		int b = 6 * node;
+		for (int k = 0; k < 3; k++) {
+			bounds[b + k] = Double.POSITIVE_INFINITY;
+			bounds[b + k + 3] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = offsets[node]; i < offsets[node] + counts[node]; i++) {
+			Vector3d min = surfaces[i].getMinBound(), max = surfaces[i].getMaxBound();
+			bounds[b] = Math.min(bounds[b], min.x);
+			bounds[b + 1] = Math.min(bounds[b + 1], min.y);
+			bounds[b + 2] = Math.min(bounds[b + 2], min.z);
+			bounds[b + 3] = Math.max(bounds[b + 3], max.x);
+			bounds[b + 4] = Math.max(bounds[b + 4], max.y);
+			bounds[b + 5] = Math.max(bounds[b + 5], max.z);
+		}
+	}
+
+	@Override
+	protected double sahCost() {
+		double rootArea = area(0);
+		double cost = 0;
+		for (int node = 0; node < nodeCount; node++) {
+			double relativeArea = rootArea > 0 ? area(node) / rootArea : 1;
+			cost += relativeArea * (isLeaf(node) ? intersectionCost * counts[node] : traversalCost);
+		}
+		return cost;
+	}
+
+	/**
+	 * @return the surface area of the box of node, or 0 if it is empty
+	 */
+	private double area(int node) {
+		int b = 6 * node;
+		if (bounds[b + 3] < bounds[b] || bounds[b + 4] < bounds[b + 1] || bounds[b + 5] < bounds[b + 2])
+			return 0;
+		return SahBuilder.area(bounds, b);
+	}
+
+	/**
+	 * Create the per-thread traversal stacks for a tree of the current depth.
+	 */
+	private void allocateStacks() {
+		final int stackSize = depth + 1;
+		stacks = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[stackSize];
+			}
+		};
+		distanceStacks = new ThreadLocal<double[]>() {
+			@Override
+			protected double[] initialValue() {
+				return new double[stackSize];
+			}
+		};
+	}
+
+	private static int countNodes(BvhNode node) {
+		if (node.isLeaf())
+			return 1;
+		return 1 + countNodes(node.child[0]) + countNodes(node.child[1]);
+	}
+
+	/**
+	 * Write node and its subtree starting at index.
+	 *
+	 * @return the index just past the last node written
+	 */
+	private int flattenHelper(BvhNode node, int index, int level) {
+		depth = Math.max(depth, level);
+		int b = 6 * index;
+		bounds[b] = node.minBound.x;
+		bounds[b + 1] = node.minBound.y;
+		bounds[b + 2] = node.minBound.z;
+		bounds[b + 3] = node.maxBound.x;
+		bounds[b + 4] = node.maxBound.y;
+		bounds[b + 5] = node.maxBound.z;
+
+		if (node.isLeaf()) {
+			offsets[index] = node.surfaceIndexStart;
+			counts[index] = node.surfaceIndexEnd - node.surfaceIndexStart;
+			return index + 1;
+		}
+
+		int right = flattenHelper(node.child[0], index + 1, level + 1);
+		offsets[index] = right;
+		counts[index] = 0;
+		return flattenHelper(node.child[1], right, level + 1);
+	}
+
+	/**
+	 * Set outRecord to the first intersection of ray with the scene. Return true
+	 * if there was an intersection and false otherwise. If no intersection was
+	 * found outRecord is unchanged.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @return true if and intersection is found.
+	 */
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		rayIn.computeInverseDirection();
+		if (!orderedTraversal)
+			return intersectLeftFirst(outRecord, rayIn, anyIntersection);
+
+		int[] stack = stacks.get();
+		double[] distances = distanceStacks.get();
+		int nodesTested = 1, surfacesTested = 0;
+		int top = 0;
+		double tRoot = entryDistance(0, rayIn);
+		if (tRoot != Double.POSITIVE_INFINITY) {
+			stack[top] = 0;
+			distances[top++] = tRoot;
+		}
+
+		boolean ret = false;
+		while (top > 0) {
+			int node = stack[--top];
+			// Skip nodes that the ray enters only after the closest hit found so far.
+			if (distances[top] > rayIn.end)
+				continue;
+
+			int count = counts[node];
+			if (count > 0) {
+				int end = offsets[node] + count;
+				for (int i = offsets[node]; i < end; i++) {
+					surfacesTested++;
+					if (surfaces[i].intersect(outRecord, rayIn)) {
+						if (anyIntersection) {
+							if (hitStats != null)
+								hitStats.add(nodesTested, surfacesTested);
+							return true;
+						}
+						rayIn.end = outRecord.t;
+						ret = true;
+					}
+				}
+			} else {
+				// Push the children that the ray hits, the nearer one last so that it is
+				// visited first.
+				int near = node + 1, far = offsets[node];
+				double tNear = entryDistance(near, rayIn), tFar = entryDistance(far, rayIn);
+				nodesTested += 2;
+				if (tFar < tNear) {
+					int n = near; near = far; far = n;
+					double t = tNear; tNear = tFar; tFar = t;
+				}
+				if (tFar != Double.POSITIVE_INFINITY) {
+					stack[top] = far;
+					distances[top++] = tFar;
+				}
+				if (tNear != Double.POSITIVE_INFINITY) {
+					stack[top] = near;
+					distances[top++] = tNear;
+				}
+			}
+		}
+		if (hitStats != null)
+			hitStats.add(nodesTested, surfacesTested);
+		return ret;
+	}
+
+	/**
+	 * The traversal used when orderedTraversal is off: children are always visited
+	 * left to right.
+	 */
+	private boolean intersectLeftFirst(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		int[] stack = stacks.get();
+		int top = 0;
+		stack[top++] = 0;
+		int nodesTested = 0, surfacesTested = 0;
+
+		boolean ret = false;
+		while (top > 0) {
+			int node = stack[--top];
+			nodesTested++;
+			if (!intersectsNode(node, rayIn))
+				continue;
+
+			int count = counts[node];
+			if (count > 0) {
+				int end = offsets[node] + count;
+				for (int i = offsets[node]; i < end; i++) {
+					surfacesTested++;
+					if (surfaces[i].intersect(outRecord, rayIn)) {
+						if (anyIntersection) {
+							if (hitStats != null)
+								hitStats.add(nodesTested, surfacesTested);
+							return true;
+						}
+						rayIn.end = outRecord.t;
+						ret = true;
+					}
+				}
+			} else {
+				// Push the right child first so the left child is visited first.
+				stack[top++] = offsets[node];
+				stack[top++] = node + 1;
+			}
+		}
+		if (hitStats != null)
+			hitStats.add(nodesTested, surfacesTested);
+		return ret;
+	}
+
+	/**
+	 * Return true if any surface intersects ray, stopping at the first hit.
+	 *
+	 * @param ray the ray to test
+	 * @return true if an intersection is found.
+	 */
+	@Override
+	public boolean occluded(Ray ray) {
+		ray.computeInverseDirection();
+		int[] stack = stacks.get();
+		int top = 0;
+		stack[top++] = 0;
+
+		int nodesTested = 0, surfacesTested = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			nodesTested++;
+			if (!intersectsNode(node, ray))
+				continue;
+
+			int count = counts[node];
+			if (count > 0) {
+				int end = offsets[node] + count;
+				for (int i = offsets[node]; i < end; i++) {
+					surfacesTested++;
+					if (surfaces[i].intersect(null, ray)) {
+						if (occlusionStats != null)
+							occlusionStats.add(nodesTested, surfacesTested);
+						return true;
+					}
+				}
+			} else {
+				stack[top++] = offsets[node];
+				stack[top++] = node + 1;
+			}
+		}
+		if (occlusionStats != null)
+			occlusionStats.add(nodesTested, surfacesTested);
+		return false;
+	}
+
+	/**
+	 * Slab test of the ray against the bounding box of a packed node.
+	 */
+	private boolean intersectsNode(int node, Ray ray) {
+		return entryDistance(node, ray) != Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Slab test of the ray against the bounding box of a packed node, using the
+	 * reciprocal direction cached in the ray. See BvhNode.entryDistance().
+	 *
+	 * @return the ray parameter at which the segment [ray.start, ray.end] enters the
+	 * box, or positive infinity if it misses the box
+	 */
+	private double entryDistance(int node, Ray ray) {
+		int b = 6 * node;
+		double tEnter = ray.start, tExit = ray.end;
+
+		// bounds[b + 3 * sign] is the near plane of a slab, bounds[b + 3 - 3 * sign] the far one.
+		double t0 = (bounds[b + 3 * ray.signX] - ray.origin.x) * ray.invDirX;
+		double t1 = (bounds[b + 3 - 3 * ray.signX] - ray.origin.x) * ray.invDirX;
+		tEnter = t0 > tEnter ? t0 : tEnter;
+		tExit = t1 < tExit ? t1 : tExit;
+
+		t0 = (bounds[b + 1 + 3 * ray.signY] - ray.origin.y) * ray.invDirY;
+		t1 = (bounds[b + 4 - 3 * ray.signY] - ray.origin.y) * ray.invDirY;
+		tEnter = t0 > tEnter ? t0 : tEnter;
+		tExit = t1 < tExit ? t1 : tExit;
+
+		t0 = (bounds[b + 2 + 3 * ray.signZ] - ray.origin.z) * ray.invDirZ;
+		t1 = (bounds[b + 5 - 3 * ray.signZ] - ray.origin.z) * ray.invDirZ;
+		tEnter = t0 > tEnter ? t0 : tEnter;
+		tExit = t1 < tExit ? t1 : tExit;
+
+		return tEnter <= tExit ? tEnter : Double.POSITIVE_INFINITY;
+	}
+}
@@ -42,6 +42,20 @@ public class NaiveAccelStruct implements AccelStruct {
 		}
 		return ret;
 	}
+
+	/**
+	 * Return true as soon as any surface intersects ray.
+	 *
+	 * @param ray the ray to test
+	 * @return true if an intersection is found.
+	 */
+	public boolean occluded(Ray ray) {
+		for(int i = 0; i < surfaces.length; i++) {
+			if(surfaces[i].intersect(null, ray))
+				return true;
+		}
+		return false;
+	}
 	
 	@Override
 	public void build(Surface[] surfaces) {
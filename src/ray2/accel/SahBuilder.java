@@ -0,0 +1,388 @@
+package ray2.accel;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import egl.math.Vector3d;
+import ray2.surface.Surface;
+
+/**
+ * Builds a BVH using the surface area heuristic (SAH) evaluated over a fixed
+ * number of bins per axis.
+ *
+ * For every node the centroids are dropped into equally sized bins along each axis,
+ * and every boundary between two bins is scored with
+ *
+ *   cost = traversalCost + intersectionCost * (SA(L) * |L| + SA(R) * |R|) / SA(node)
+ *
+ * The cheapest split is taken unless making the node a leaf costs no more
+ * (intersectionCost * n) and the node is no larger than maxLeafSize.
+ *
+ * The builder works on primitive copies of the surface bounds and centroids and a
+ * permutation of surface indices; the surfaces array is reordered once at the end.
+ *
+ * Nodes over at least parallelThreshold surfaces are built in parallel on the
+ * common ForkJoinPool: their two subtrees are built by separate tasks, and their
+ * bounds and bins are computed over chunks of the range that are then merged.
+ * Merging takes minima, maxima and sums, so the tree is the same as a serial build.
+ */
+class SahBuilder {
+
+	/** The number of bins per axis. */
+	final int bins;
+
+	/** Cost of visiting an interior node, relative to intersectionCost. */
+	final double traversalCost;
+
+	/** Cost of intersecting one surface. */
+	final double intersectionCost;
+
+	/** Nodes with more surfaces than this are always split. */
+	final int maxLeafSize;
+
+	/** Nodes over at least this many surfaces are built in parallel; 0 builds serially. */
+	final int parallelThreshold;
+
+	/** Per-surface bounds, 6 per surface: minX, minY, minZ, maxX, maxY, maxZ. */
+	double[] primBounds;
+
+	/** Per-surface centroids, 3 per surface. */
+	double[] centroids;
+
+	/** Surface indices, permuted as the tree is built. */
+	int[] order;
+
+	SahBuilder(int bins, double traversalCost, double intersectionCost, int maxLeafSize) {
+		this(bins, traversalCost, intersectionCost, maxLeafSize, 0);
+	}
+
+	SahBuilder(int bins, double traversalCost, double intersectionCost, int maxLeafSize, int parallelThreshold) {
+		this.bins = Math.max(bins, 2);
+		this.traversalCost = traversalCost;
+		this.intersectionCost = intersectionCost;
+		this.maxLeafSize = Math.max(maxLeafSize, 1);
+		this.parallelThreshold = Math.max(parallelThreshold, 0);
+	}
+
+	/**
+	 * Build a tree over surfaces and reorder surfaces so that every node covers a
+	 * contiguous range of it.
+	 *
+	 * @param surfaces the surfaces to build over; reordered in place
+	 * @return the root of the tree
+	 */
+	BvhNode build(Surface[] surfaces) {
+		int n = surfaces.length;
+		primBounds = new double[6 * n];
+		centroids = new double[3 * n];
+		order = new int[n];
+		for (int i = 0; i < n; i++) {
+			Vector3d min = surfaces[i].getMinBound();
+			Vector3d max = surfaces[i].getMaxBound();
+			Vector3d avg = surfaces[i].getAveragePosition();
+			primBounds[6 * i] = min.x;
+			primBounds[6 * i + 1] = min.y;
+			primBounds[6 * i + 2] = min.z;
+			primBounds[6 * i + 3] = max.x;
+			primBounds[6 * i + 4] = max.y;
+			primBounds[6 * i + 5] = max.z;
+			centroids[3 * i] = avg.x;
+			centroids[3 * i + 1] = avg.y;
+			centroids[3 * i + 2] = avg.z;
+			order[i] = i;
+		}
+
+		BvhNode root = parallel(n) ? ForkJoinPool.commonPool().invoke(new TreeTask(0, n)) : createTree(0, n);
+
+		Surface[] sorted = new Surface[n];
+		for (int i = 0; i < n; i++)
+			sorted[i] = surfaces[order[i]];
+		System.arraycopy(sorted, 0, surfaces, 0, n);
+
+		primBounds = null;
+		centroids = null;
+		order = null;
+		return root;
+	}
+
+	/**
+	 * Create the subtree for the surfaces order[start] to order[end-1].
+	 */
+	BvhNode createTree(int start, int end) {
+		// Bounds of the node and of the centroids in it
+		double[] bounds = forkable(end - start) ? new BoundsTask(start, end).invoke() : bounds(start, end);
+		double[] box = Arrays.copyOfRange(bounds, 0, 6);
+		double[] cbox = Arrays.copyOfRange(bounds, 6, 12);
+		Vector3d minBound = new Vector3d(box[0], box[1], box[2]);
+		Vector3d maxBound = new Vector3d(box[3], box[4], box[5]);
+
+		int n = end - start;
+		if (n <= 1)
+			return new BvhNode(minBound, maxBound, null, null, start, end);
+
+		// Drop the centroids into the bins of all three axes at once
+		double[] scales = new double[3];
+		for (int axis = 0; axis < 3; axis++) {
+			double extent = cbox[axis + 3] - cbox[axis];
+			scales[axis] = extent > 0 ? bins / extent : 0;
+		}
+		Bins binned = forkable(n) ? new BinTask(start, end, cbox, scales).invoke() : new Bins().add(start, end, cbox, scales);
+
+		// Find the cheapest bin boundary over all three axes
+		double nodeArea = area(box, 0);
+		double bestCost = Double.POSITIVE_INFINITY;
+		int bestAxis = -1, bestSplit = -1;
+		double[] rightArea = new double[bins];
+		double[] sweep = new double[6];
+		for (int axis = 0; axis < 3; axis++) {
+			if (scales[axis] == 0)
+				continue;
+			int[] counts = binned.counts;
+			double[] binBoxes = binned.boxes;
+			int c = axis * bins;
+
+			// Right-to-left sweep: area of bins [b, bins)
+			setEmpty(sweep, 0);
+			for (int b = bins - 1; b > 0; b--) {
+				growBox(sweep, 0, binBoxes, 6 * (c + b));
+				rightArea[b] = area(sweep, 0);
+			}
+
+			// Left-to-right sweep, scoring the boundary before bin b
+			setEmpty(sweep, 0);
+			int leftCount = 0;
+			for (int b = 1; b < bins; b++) {
+				growBox(sweep, 0, binBoxes, 6 * (c + b - 1));
+				leftCount += counts[c + b - 1];
+				int rightCount = n - leftCount;
+				if (leftCount == 0 || rightCount == 0)
+					continue;
+				double cost = traversalCost + intersectionCost
+						* (area(sweep, 0) * leftCount + rightArea[b] * rightCount) / nodeArea;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestSplit = b;
+				}
+			}
+		}
+
+		double leafCost = intersectionCost * n;
+		if (n <= maxLeafSize && (bestAxis < 0 || leafCost <= bestCost))
+			return new BvhNode(minBound, maxBound, null, null, start, end);
+
+		int mid;
+		if (bestAxis < 0) {
+			// All centroids coincide; any split is as good as another.
+			mid = (start + end) / 2;
+		} else {
+			mid = partition(start, end, bestAxis, bestSplit, cbox[bestAxis], bins / (cbox[bestAxis + 3] - cbox[bestAxis]));
+			if (mid == start || mid == end)
+				mid = (start + end) / 2;
+		}
+
+		BvhNode l, r;
+		if (forkable(n)) {
+			TreeTask left = new TreeTask(start, mid);
+			left.fork();
+			r = createTree(mid, end);
+			l = left.join();
+		} else {
+			l = createTree(start, mid);
+			r = createTree(mid, end);
+		}
+		return new BvhNode(minBound, maxBound, l, r, start, end);
+	}
+
+	boolean parallel(int n) {
+		return parallelThreshold > 0 && n >= parallelThreshold;
+	}
+
+	/**
+	 * @return true if the work on n surfaces should be split into tasks: n is large
+	 * enough and the build is already running in a ForkJoinPool
+	 */
+	boolean forkable(int n) {
+		return parallel(n) && ForkJoinTask.inForkJoinPool();
+	}
+
+	/**
+	 * @return the bounds of the surfaces order[start] to order[end-1] in elements 0-5
+	 * and the bounds of their centroids in elements 6-11
+	 */
+	double[] bounds(int start, int end) {
+		double[] bounds = new double[12];
+		setEmpty(bounds, 0);
+		setEmpty(bounds, 6);
+		for (int i = start; i < end; i++) {
+			int p = order[i];
+			growBox(bounds, 0, primBounds, 6 * p);
+			growPoint(bounds, 6, centroids, 3 * p);
+		}
+		return bounds;
+	}
+
+	/**
+	 * The number of centroids in each bin of the three axes, and the bounds of their
+	 * surfaces. Bin b of axis a is entry a * bins + b.
+	 */
+	class Bins {
+		final int[] counts = new int[3 * bins];
+		final double[] boxes = new double[18 * bins];
+
+		Bins() {
+			for (int b = 0; b < 3 * bins; b++)
+				setEmpty(boxes, 6 * b);
+		}
+
+		/**
+		 * Add the surfaces order[start] to order[end-1] to the bins of every axis with
+		 * a nonzero scale.
+		 */
+		Bins add(int start, int end, double[] cbox, double[] scales) {
+			for (int axis = 0; axis < 3; axis++) {
+				if (scales[axis] == 0)
+					continue;
+				int c = axis * bins;
+				for (int i = start; i < end; i++) {
+					int p = order[i];
+					int b = c + binIndex(centroids[3 * p + axis], cbox[axis], scales[axis]);
+					counts[b]++;
+					growBox(boxes, 6 * b, primBounds, 6 * p);
+				}
+			}
+			return this;
+		}
+
+		Bins merge(Bins other) {
+			for (int b = 0; b < 3 * bins; b++) {
+				counts[b] += other.counts[b];
+				growBox(boxes, 6 * b, other.boxes, 6 * b);
+			}
+			return this;
+		}
+	}
+
+	/** Builds the subtree over a range of order in a ForkJoinPool. */
+	@SuppressWarnings("serial")
+	class TreeTask extends RecursiveTask<BvhNode> {
+		final int start, end;
+
+		TreeTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected BvhNode compute() {
+			return createTree(start, end);
+		}
+	}
+
+	/** Computes bounds() over a range of order, splitting it while it is large. */
+	@SuppressWarnings("serial")
+	class BoundsTask extends RecursiveTask<double[]> {
+		final int start, end;
+
+		BoundsTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected double[] compute() {
+			if (end - start < parallelThreshold)
+				return bounds(start, end);
+			int mid = (start + end) >>> 1;
+			BoundsTask left = new BoundsTask(start, mid);
+			left.fork();
+			double[] bounds = new BoundsTask(mid, end).compute();
+			double[] other = left.join();
+			growBox(bounds, 0, other, 0);
+			growBox(bounds, 6, other, 6);
+			return bounds;
+		}
+	}
+
+	/** Bins a range of order, splitting it while it is large. */
+	@SuppressWarnings("serial")
+	class BinTask extends RecursiveTask<Bins> {
+		final int start, end;
+		final double[] cbox, scales;
+
+		BinTask(int start, int end, double[] cbox, double[] scales) {
+			this.start = start;
+			this.end = end;
+			this.cbox = cbox;
+			this.scales = scales;
+		}
+
+		@Override
+		protected Bins compute() {
+			if (end - start < parallelThreshold)
+				return new Bins().add(start, end, cbox, scales);
+			int mid = (start + end) >>> 1;
+			BinTask left = new BinTask(start, mid, cbox, scales);
+			left.fork();
+			Bins bins = new BinTask(mid, end, cbox, scales).compute();
+			return bins.merge(left.join());
+		}
+	}
+
+	/**
+	 * Move the surfaces whose centroid falls in a bin before split to the front of
+	 * the range.
+	 *
+	 * @return the index of the first surface in the right half
+	 */
+	int partition(int start, int end, int axis, int split, double cmin, double scale) {
+		int i = start, j = end - 1;
+		while (i <= j) {
+			if (binIndex(centroids[3 * order[i] + axis], cmin, scale) < split) {
+				i++;
+			} else {
+				int tmp = order[i];
+				order[i] = order[j];
+				order[j] = tmp;
+				j--;
+			}
+		}
+		return i;
+	}
+
+	int binIndex(double c, double cmin, double scale) {
+		int b = (int) ((c - cmin) * scale);
+		return b < 0 ? 0 : b >= bins ? bins - 1 : b;
+	}
+
+	static void setEmpty(double[] box, int o) {
+		box[o] = box[o + 1] = box[o + 2] = Double.POSITIVE_INFINITY;
+		box[o + 3] = box[o + 4] = box[o + 5] = Double.NEGATIVE_INFINITY;
+	}
+
+	static void growBox(double[] box, int o, double[] src, int s) {
+		for (int k = 0; k < 3; k++) {
+			if (src[s + k] < box[o + k]) box[o + k] = src[s + k];
+			if (src[s + k + 3] > box[o + k + 3]) box[o + k + 3] = src[s + k + 3];
+		}
+	}
+
+	static void growPoint(double[] box, int o, double[] src, int s) {
+		for (int k = 0; k < 3; k++) {
+			if (src[s + k] < box[o + k]) box[o + k] = src[s + k];
+			if (src[s + k] > box[o + k + 3]) box[o + k + 3] = src[s + k];
+		}
+	}
+
+	/**
+	 * @return the surface area of the box stored at box[o..o+5]
+	 */
+	static double area(double[] box, int o) {
+		double dx = box[o + 3] - box[o];
+		double dy = box[o + 4] - box[o + 1];
+		double dz = box[o + 5] - box[o + 2];
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+}
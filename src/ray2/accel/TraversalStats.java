@@ -0,0 +1,58 @@
+package ray2.accel;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the work done by BVH traversal: the number of rays traced, and the
+ * number of nodes and surfaces they were tested against. The counters can be
+ * updated from several render threads at once.
+ *
+ * A Bvh only keeps these counters when enabled with setTraversalStatistics(true),
+ * since counting slows traversal down.
+ */
+public class TraversalStats {
+
+	private final LongAdder rays = new LongAdder();
+	private final LongAdder nodes = new LongAdder();
+	private final LongAdder surfaces = new LongAdder();
+
+	/**
+	 * Record one traced ray.
+	 *
+	 * @param nodes the number of nodes whose box was tested against the ray
+	 * @param surfaces the number of surfaces intersected with the ray
+	 */
+	public void add(int nodes, int surfaces) {
+		this.rays.increment();
+		this.nodes.add(nodes);
+		this.surfaces.add(surfaces);
+	}
+
+	void addRay() { rays.increment(); }
+	void addNode() { nodes.increment(); }
+	void addSurface() { surfaces.increment(); }
+
+	public long getRays() { return rays.sum(); }
+
+	public double getNodesPerRay() {
+		long n = rays.sum();
+		return n > 0 ? nodes.sum() / (double) n : 0;
+	}
+
+	public double getSurfacesPerRay() {
+		long n = rays.sum();
+		return n > 0 ? surfaces.sum() / (double) n : 0;
+	}
+
+	public void reset() {
+		rays.reset();
+		nodes.reset();
+		surfaces.reset();
+	}
+
+	public String toString() {
+		return String.format(Locale.ROOT, "%d rays, %.2f nodes and %.2f surfaces per ray",
+				getRays(), getNodesPerRay(), getSurfacesPerRay());
+	}
+}
@@ -0,0 +1,439 @@
+package ray2.accel;
+
+import java.util.Arrays;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.surface.Surface;
+import egl.math.Vector3d;
+
+/**
+ * A BVH that is built exactly like {@link Bvh} and then collapsed into a tree of
+ * up to width children per node, so that a ray visits fewer, wider nodes.
+ *
+ * Each binary interior node is turned into a wide node by repeatedly replacing
+ * its child with the largest surface area by that child's own two children,
+ * until it has width children or only leaves are left. The bounds of the
+ * children of a wide node are stored together in one array, one run of width
+ * values per coordinate (all minX, then all minY, ..., then all maxZ), so a
+ * node visit tests the ray against all of its children in one loop over
+ * contiguous memory.
+ *
+ * Select it in a scene file with <accelStruct type="WideBvh"><width>8</width></accelStruct>.
+ */
+public class WideBvh extends Bvh {
+
+	/** The largest number of children a node can have. */
+	public static final int MAX_WIDTH = 8;
+
+	/** The number of children of each node, from 2 to MAX_WIDTH. */
+	protected int width = 4;
+	public void setWidth(int width) {
+		if (width >= 2 && width <= MAX_WIDTH)
+			this.width = width;
+		else
+			System.err.println("Wide BVH width must be between 2 and " + MAX_WIDTH + ", using " + this.width);
+	}
+
+	/**
+	 * Child bounds, 6 * width per node: the minX of each child slot, then the minY,
+	 * minZ, maxX, maxY and maxZ. Unused slots are never tested.
+	 */
+	double[] childBounds;
+
+	/**
+	 * Per child slot (width per node): for an interior child, the index of its node.
+	 * For a leaf, the index of its first surface.
+	 */
+	int[] offsets;
+
+	/** Per child slot: the number of surfaces under a leaf, or 0 for an interior child. */
+	int[] counts;
+
+	/** The number of children each node uses, from slot 0. */
+	int[] arity;
+
+	/** The number of nodes in the collapsed tree. */
+	int nodeCount;
+
+	/** Length of the longest root-to-leaf path, counting wide nodes only. */
+	int depth;
+
+	/**
+	 * Per-thread traversal stacks, sized for the current tree. A node is pushed as its
+	 * index, a leaf as -(slot + 1) for the child slot holding it.
+	 */
+	private ThreadLocal<int[]> stacks;
+
+	/** Per-thread stacks of the distances at which the ray enters the entries on stacks. */
+	private ThreadLocal<double[]> distanceStacks;
+
+	public WideBvh() { }
+
+	/**
+	 * @return the number of nodes of the collapsed tree
+	 */
+	public int getNodeCount() { return nodeCount; }
+
+	/**
+	 * @return the mean number of children per node of the collapsed tree
+	 */
+	public double getMeanArity() {
+		long sum = 0;
+		for (int i = 0; i < nodeCount; i++)
+			sum += arity[i];
+		return nodeCount > 0 ? sum / (double) nodeCount : 0;
+	}
+
+	@Override
+	public void build(Surface[] surfaces) {
+		super.build(surfaces);
+		collapse(root);
+		// The binary tree is no longer needed once it has been collapsed.
+		root = null;
+		builtSahCost = refitSahCost = sahCost();
+	}
+
+	/**
+	 * Children are written after their parent, so one backward pass over the nodes
+	 * refits every child before its parent.
+	 */
+	@Override
+	protected void refitBounds() {
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			for (int i = 0; i < arity[node]; i++) {
+				int slot = width * node + i;
+				int b = 6 * width * node + i;
+				double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+				double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+				if (counts[slot] > 0) {
+					for (int j = offsets[slot]; j < offsets[slot] + counts[slot]; j++) {
+						Vector3d min = surfaces[j].getMinBound(), max = surfaces[j].getMaxBound();
+						minX = Math.min(minX, min.x);
+						minY = Math.min(minY, min.y);
+						minZ = Math.min(minZ, min.z);
+						maxX = Math.max(maxX, max.x);
+						maxY = Math.max(maxY, max.y);
+						maxZ = Math.max(maxZ, max.z);
+					}
+				} else {
+					int child = offsets[slot];
+					int c = 6 * width * child;
+					for (int k = 0; k < arity[child]; k++) {
+						minX = Math.min(minX, childBounds[c + k]);
+						minY = Math.min(minY, childBounds[c + k + width]);
+						minZ = Math.min(minZ, childBounds[c + k + 2 * width]);
+						maxX = Math.max(maxX, childBounds[c + k + 3 * width]);
+						maxY = Math.max(maxY, childBounds[c + k + 4 * width]);
+						maxZ = Math.max(maxZ, childBounds[c + k + 5 * width]);
+					}
+				}
+				childBounds[b] = minX;
+				childBounds[b + width] = minY;
+				childBounds[b + 2 * width] = minZ;
+				childBounds[b + 3 * width] = maxX;
+				childBounds[b + 4 * width] = maxY;
+				childBounds[b + 5 * width] = maxZ;
+			}
+		}
+	}
+
+	/**
+	 * The SAH cost of the wide tree: traversalCost for the root, and for each child
+	 * slot its area relative to that of the root times traversalCost or the cost of
+	 * intersecting its surfaces.
+	 */
+	@Override
+	protected double sahCost() {
+		if (nodeCount == 0)
+			return 0;
+		double[] rootBox = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+				Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (int i = 0; i < arity[0]; i++)
+			for (int k = 0; k < 3; k++) {
+				rootBox[k] = Math.min(rootBox[k], childBounds[i + k * width]);
+				rootBox[k + 3] = Math.max(rootBox[k + 3], childBounds[i + (k + 3) * width]);
+			}
+		double rootArea = SahBuilder.area(rootBox, 0);
+		double cost = traversalCost;
+		for (int node = 0; node < nodeCount; node++) {
+			for (int i = 0; i < arity[node]; i++) {
+				int slot = width * node + i;
+				int b = 6 * width * node + i;
+				double dx = childBounds[b + 3 * width] - childBounds[b];
+				double dy = childBounds[b + 4 * width] - childBounds[b + width];
+				double dz = childBounds[b + 5 * width] - childBounds[b + 2 * width];
+				double relativeArea = rootArea > 0 ? 2 * (dx * dy + dy * dz + dz * dx) / rootArea : 1;
+				cost += relativeArea * (counts[slot] > 0 ? intersectionCost * counts[slot] : traversalCost);
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * Collapse the binary tree under node into the wide node arrays.
+	 *
+	 * @param node the root of the binary tree
+	 */
+	void collapse(BvhNode node) {
+		// Every wide node but a leaf root consumes at least one binary interior node.
+		int maxNodes = Math.max(1, countInteriorNodes(node));
+		childBounds = new double[6 * width * maxNodes];
+		offsets = new int[width * maxNodes];
+		counts = new int[width * maxNodes];
+		arity = new int[maxNodes];
+		nodeCount = 0;
+		depth = 0;
+		collapseHelper(node, 1);
+
+		childBounds = Arrays.copyOf(childBounds, 6 * width * nodeCount);
+		offsets = Arrays.copyOf(offsets, width * nodeCount);
+		counts = Arrays.copyOf(counts, width * nodeCount);
+		arity = Arrays.copyOf(arity, nodeCount);
+
+		// Each node on the path to the current one leaves at most width - 1 siblings
+		// on the stack, and the current one pushes at most width children.
+		final int stackSize = depth * (width - 1) + 1;
+		stacks = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[stackSize];
+			}
+		};
+		distanceStacks = new ThreadLocal<double[]>() {
+			@Override
+			protected double[] initialValue() {
+				return new double[stackSize];
+			}
+		};
+	}
+
+	private static int countInteriorNodes(BvhNode node) {
+		if (node.isLeaf())
+			return 0;
+		return 1 + countInteriorNodes(node.child[0]) + countInteriorNodes(node.child[1]);
+	}
+
+	/**
+	 * Write the wide node for the binary subtree under node, and the wide nodes under
+	 * it.
+	 *
+	 * @return the index of the node written
+	 */
+	private int collapseHelper(BvhNode node, int level) {
+		depth = Math.max(depth, level);
+		int index = nodeCount++;
+
+		BvhNode[] kids = new BvhNode[width];
+		int n = 0;
+		if (node.isLeaf()) {
+			kids[n++] = node;
+		} else {
+			kids[n++] = node.child[0];
+			kids[n++] = node.child[1];
+		}
+		while (n < width) {
+			// Open up the interior child with the largest surface area, keeping the
+			// children in left to right order.
+			int open = -1;
+			double largest = -1;
+			for (int i = 0; i < n; i++) {
+				if (!kids[i].isLeaf() && area(kids[i]) > largest) {
+					open = i;
+					largest = area(kids[i]);
+				}
+			}
+			if (open < 0)
+				break;
+			BvhNode opened = kids[open];
+			System.arraycopy(kids, open + 1, kids, open + 2, n - open - 1);
+			kids[open] = opened.child[0];
+			kids[open + 1] = opened.child[1];
+			n++;
+		}
+
+		int slots = 0;
+		for (int i = 0; i < n; i++) {
+			BvhNode kid = kids[i];
+			// An empty leaf is never hit, so it does not need a slot.
+			if (kid.isLeaf() && kid.surfaceIndexEnd <= kid.surfaceIndexStart)
+				continue;
+			int b = 6 * width * index + slots;
+			childBounds[b] = kid.minBound.x;
+			childBounds[b + width] = kid.minBound.y;
+			childBounds[b + 2 * width] = kid.minBound.z;
+			childBounds[b + 3 * width] = kid.maxBound.x;
+			childBounds[b + 4 * width] = kid.maxBound.y;
+			childBounds[b + 5 * width] = kid.maxBound.z;
+			int slot = width * index + slots;
+			if (kid.isLeaf()) {
+				offsets[slot] = kid.surfaceIndexStart;
+				counts[slot] = kid.surfaceIndexEnd - kid.surfaceIndexStart;
+			} else {
+				offsets[slot] = collapseHelper(kid, level + 1);
+				counts[slot] = 0;
+			}
+			slots++;
+		}
+		arity[index] = slots;
+		return index;
+	}
+
+	private static double area(BvhNode node) {
+		double dx = node.maxBound.x - node.minBound.x;
+		double dy = node.maxBound.y - node.minBound.y;
+		double dz = node.maxBound.z - node.minBound.z;
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/**
+	 * Set outRecord to the first intersection of ray with the scene. Return true
+	 * if there was an intersection and false otherwise. If no intersection was
+	 * found outRecord is unchanged.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @return true if and intersection is found.
+	 */
+	@Override
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		rayIn.computeInverseDirection();
+		int[] stack = stacks.get();
+		double[] distances = distanceStacks.get();
+		int nodesTested = 0, surfacesTested = 0;
+		int top = 0;
+		stack[top] = 0;
+		distances[top++] = rayIn.start;
+
+		boolean ret = false;
+		while (top > 0) {
+			int entry = stack[--top];
+			// Skip entries that the ray enters only after the closest hit found so far.
+			if (distances[top] > rayIn.end)
+				continue;
+
+			if (entry < 0) {
+				int slot = -entry - 1;
+				int end = offsets[slot] + counts[slot];
+				for (int i = offsets[slot]; i < end; i++) {
+					surfacesTested++;
+					if (surfaces[i].intersect(outRecord, rayIn)) {
+						if (anyIntersection) {
+							if (hitStats != null)
+								hitStats.add(nodesTested, surfacesTested);
+							return true;
+						}
+						rayIn.end = outRecord.t;
+						ret = true;
+					}
+				}
+			} else {
+				int first = top;
+				top = pushChildren(entry, rayIn, stack, distances, top);
+				nodesTested += arity[entry];
+				if (orderedTraversal) {
+					// Sort the children just pushed by decreasing entry distance, so that
+					// the nearest is visited first. Ties keep the left child on top.
+					for (int i = first + 1; i < top; i++) {
+						int e = stack[i];
+						double d = distances[i];
+						int j = i - 1;
+						while (j >= first && distances[j] < d) {
+							stack[j + 1] = stack[j];
+							distances[j + 1] = distances[j];
+							j--;
+						}
+						stack[j + 1] = e;
+						distances[j + 1] = d;
+					}
+				}
+			}
+		}
+		if (hitStats != null)
+			hitStats.add(nodesTested, surfacesTested);
+		return ret;
+	}
+
+	/**
+	 * Return true if any surface intersects ray, stopping at the first hit.
+	 *
+	 * @param ray the ray to test
+	 * @return true if an intersection is found.
+	 */
+	@Override
+	public boolean occluded(Ray ray) {
+		ray.computeInverseDirection();
+		int[] stack = stacks.get();
+		double[] distances = distanceStacks.get();
+		int top = 0;
+		stack[top++] = 0;
+
+		int nodesTested = 0, surfacesTested = 0;
+		while (top > 0) {
+			int entry = stack[--top];
+			if (entry < 0) {
+				int slot = -entry - 1;
+				int end = offsets[slot] + counts[slot];
+				for (int i = offsets[slot]; i < end; i++) {
+					surfacesTested++;
+					if (surfaces[i].intersect(null, ray)) {
+						if (occlusionStats != null)
+							occlusionStats.add(nodesTested, surfacesTested);
+						return true;
+					}
+				}
+			} else {
+				top = pushChildren(entry, ray, stack, distances, top);
+				nodesTested += arity[entry];
+			}
+		}
+		if (occlusionStats != null)
+			occlusionStats.add(nodesTested, surfacesTested);
+		return false;
+	}
+
+	/**
+	 * Slab test of the ray against the boxes of all children of node, using the
+	 * reciprocal direction cached in the ray. Each child the segment
+	 * [ray.start, ray.end] intersects is pushed with its entry distance, the last
+	 * slot first, so that without sorting the children are visited left to right.
+	 *
+	 * @return the new top of the stack
+	 */
+	private int pushChildren(int node, Ray ray, int[] stack, double[] distances, int top) {
+		int b = 6 * width * node;
+		// The near planes of a slab are 3 * width values after the far ones if the
+		// direction is negative along that axis.
+		int nearX = b + 3 * width * ray.signX, farX = b + 3 * width * (1 - ray.signX);
+		int nearY = b + width + 3 * width * ray.signY, farY = b + width + 3 * width * (1 - ray.signY);
+		int nearZ = b + 2 * width + 3 * width * ray.signZ, farZ = b + 2 * width + 3 * width * (1 - ray.signZ);
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double ix = ray.invDirX, iy = ray.invDirY, iz = ray.invDirZ;
+
+		for (int i = arity[node] - 1; i >= 0; i--) {
+			double tEnter = ray.start, tExit = ray.end;
+			double t0 = (childBounds[nearX + i] - ox) * ix;
+			double t1 = (childBounds[farX + i] - ox) * ix;
+			tEnter = t0 > tEnter ? t0 : tEnter;
+			tExit = t1 < tExit ? t1 : tExit;
+
+			t0 = (childBounds[nearY + i] - oy) * iy;
+			t1 = (childBounds[farY + i] - oy) * iy;
+			tEnter = t0 > tEnter ? t0 : tEnter;
+			tExit = t1 < tExit ? t1 : tExit;
+
+			t0 = (childBounds[nearZ + i] - oz) * iz;
+			t1 = (childBounds[farZ + i] - oz) * iz;
+			tEnter = t0 > tEnter ? t0 : tEnter;
+			tExit = t1 < tExit ? t1 : tExit;
+
+			if (tEnter <= tExit) {
+				int slot = width * node + i;
+				stack[top] = counts[slot] > 0 ? -slot - 1 : offsets[slot];
+				distances[top++] = tEnter;
+			}
+		}
+		return top;
+	}
+}
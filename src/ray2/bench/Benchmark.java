@@ -0,0 +1,50 @@
+package ray2.bench;
+
+/**
+ * A single micro-benchmark run by BenchmarkRunner.
+ *
+ * A benchmark prepares a fixed input in setup() (seeded rays, a built
+ * acceleration structure, a scene, ...) and then performs one pass over that
+ * input in each call to run(). The runner calls run() repeatedly, first to warm
+ * up the JIT and then to measure, and reports the time per operation.
+ *
+ * Results computed by run() should be passed to consume(), so that the JIT cannot
+ * prove the work is unused and remove it.
+ */
+public abstract class Benchmark {
+
+	/** The name the benchmark is reported and filtered by, e.g. "Bvh.intersect/bunnyNV". */
+	public final String name;
+
+	/**
+	 * Accumulates consumed results. It is a field, which outlives each call to run(),
+	 * so the JIT has to keep the stores to it and the work that feeds them.
+	 */
+	private long sink;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Build the fixed input of this benchmark. Called once before it is run.
+	 */
+	public void setup() throws Exception {
+		// do nothing
+	}
+
+	/**
+	 * Perform one pass over the input.
+	 *
+	 * @return the number of operations performed
+	 */
+	public abstract int run();
+
+	protected final void consume(boolean b) {
+		sink += b ? 1 : 0;
+	}
+
+	protected final void consume(double d) {
+		sink += Double.doubleToRawLongBits(d);
+	}
+}
@@ -0,0 +1,189 @@
+package ray2.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmarks in RayBenchmarks and reports the time per operation.
+ *
+ * Each benchmark is set up once, run for a number of warmup iterations whose
+ * results are discarded, and then for a number of measured iterations. An
+ * iteration calls Benchmark.run() until at least the iteration time has passed.
+ * The mean and standard deviation of the time per operation over the measured
+ * iterations are reported.
+ *
+ * Results can be written to a CSV file with -o, and a later run can be compared
+ * against such a file with -b. Any benchmark more than the tolerance slower than
+ * its baseline is reported as a regression and makes the runner exit with status 1,
+ * so a build can fail on it.
+ *
+ * Usage: java -cp bin:deps/lib/* ray2.bench.BenchmarkRunner [options]
+ */
+public class BenchmarkRunner {
+
+	String dataDir = "data";
+	Pattern filter = null;
+	int warmupIterations = 3;
+	int iterations = 5;
+	long iterationMillis = 500;
+	String outputFile = null;
+	String baselineFile = null;
+	double tolerance = 0.10;
+	boolean listOnly = false;
+
+	public static void main(String[] args) {
+		BenchmarkRunner runner = new BenchmarkRunner();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-d")) runner.dataDir = args[++i];
+				else if (args[i].equals("-f")) runner.filter = Pattern.compile(args[++i]);
+				else if (args[i].equals("-w")) runner.warmupIterations = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-i")) runner.iterations = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-t")) runner.iterationMillis = Long.parseLong(args[++i]);
+				else if (args[i].equals("-o")) runner.outputFile = args[++i];
+				else if (args[i].equals("-b")) runner.baselineFile = args[++i];
+				else if (args[i].equals("-tolerance")) runner.tolerance = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-l")) runner.listOnly = true;
+				else {
+					printUsage();
+					System.exit(2);
+				}
+			}
+		} catch (RuntimeException e) {
+			printUsage();
+			System.exit(2);
+		}
+		System.exit(runner.run() ? 0 : 1);
+	}
+
+	public static void printUsage() {
+		System.out.println("Usage: java ray2.bench.BenchmarkRunner [options]");
+		System.out.println("  -d <dir>          data directory holding meshes/ (default data)");
+		System.out.println("  -f <regex>        only run benchmarks whose name contains a match");
+		System.out.println("  -w <n>            warmup iterations (default 3)");
+		System.out.println("  -i <n>            measured iterations (default 5)");
+		System.out.println("  -t <ms>           minimum time per iteration (default 500)");
+		System.out.println("  -o <file>         write results as CSV");
+		System.out.println("  -b <file>         compare against a CSV written by -o");
+		System.out.println("  -tolerance <f>    allowed slowdown against the baseline (default 0.10)");
+		System.out.println("  -l                list the benchmarks and exit");
+	}
+
+	/**
+	 * @return false if a benchmark regressed against the baseline
+	 */
+	boolean run() {
+		List<Benchmark> benchmarks = RayBenchmarks.all(dataDir);
+		Map<String, Double> baseline = baselineFile == null ? null : readResults(baselineFile);
+		Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+		boolean ok = true;
+
+		for (Benchmark b : benchmarks) {
+			if (filter != null && !filter.matcher(b.name).find())
+				continue;
+			if (listOnly) {
+				System.out.println(b.name);
+				continue;
+			}
+
+			try {
+				b.setup();
+			} catch (Exception e) {
+				System.err.println(b.name + ": setup failed: " + e);
+				ok = false;
+				continue;
+			}
+
+			for (int i = 0; i < warmupIterations; i++)
+				iteration(b);
+			double[] samples = new double[iterations];
+			for (int i = 0; i < iterations; i++)
+				samples[i] = iteration(b);
+
+			double mean = 0;
+			for (double s : samples)
+				mean += s;
+			mean /= samples.length;
+			double variance = 0;
+			for (double s : samples)
+				variance += (s - mean) * (s - mean);
+			double error = samples.length > 1 ? Math.sqrt(variance / (samples.length - 1)) : 0;
+			results.put(b.name, new double[] { mean, error });
+
+			String line = String.format(Locale.ROOT, "%-40s %12.1f ns/op  +- %8.1f  %10.3f Mops/s",
+					b.name, mean, error, 1e3 / mean);
+			if (baseline != null && baseline.containsKey(b.name)) {
+				double change = mean / baseline.get(b.name) - 1;
+				line += String.format(Locale.ROOT, "  %+6.1f%%", 100 * change);
+				if (change > tolerance) {
+					line += "  REGRESSION";
+					ok = false;
+				}
+			}
+			System.out.println(line);
+		}
+
+		if (outputFile != null && !listOnly)
+			writeResults(outputFile, results);
+		return ok;
+	}
+
+	/**
+	 * Run b until iterationMillis have passed.
+	 *
+	 * @return the time per operation in nanoseconds
+	 */
+	double iteration(Benchmark b) {
+		long budget = iterationMillis * 1000000L;
+		long ops = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			ops += b.run();
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < budget);
+		return (double) elapsed / ops;
+	}
+
+	static void writeResults(String file, Map<String, double[]> results) {
+		try {
+			PrintWriter out = new PrintWriter(file);
+			try {
+				out.println("benchmark,ns_per_op,error");
+				for (Map.Entry<String, double[]> e : results.entrySet())
+					out.println(String.format(Locale.ROOT, "%s,%.3f,%.3f", e.getKey(), e.getValue()[0], e.getValue()[1]));
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write " + file + ": " + e.getMessage());
+		}
+	}
+
+	static Map<String, Double> readResults(String file) {
+		Map<String, Double> results = new LinkedHashMap<String, Double>();
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				String line = in.readLine(); // header
+				while ((line = in.readLine()) != null) {
+					String[] fields = line.split(",");
+					if (fields.length >= 2)
+						results.put(fields[0], Double.parseDouble(fields[1]));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not read baseline " + file + ": " + e.getMessage());
+		}
+		return results;
+	}
+}
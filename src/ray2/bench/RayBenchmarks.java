@@ -0,0 +1,612 @@
+package ray2.bench;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.RayTracer;
+import ray2.Scene;
+import ray2.accel.AccelStruct;
+import ray2.accel.Bvh;
+import ray2.accel.BvhNode;
+import ray2.accel.LinearBvh;
+import ray2.accel.WideBvh;
+import ray2.camera.PerspectiveCamera;
+import ray2.light.Cubemap;
+import ray2.light.PointLight;
+import ray2.mesh.OBJMesh;
+import ray2.mesh.OBJParser;
+import ray2.shader.CookTorrance;
+import ray2.shader.Glass;
+import ray2.shader.Glazed;
+import ray2.shader.Lambertian;
+import ray2.shader.Phong;
+import ray2.shader.RGBNormals;
+import ray2.shader.Shader;
+import ray2.surface.Box;
+import ray2.surface.Mesh;
+import ray2.surface.Sphere;
+import ray2.surface.Surface;
+import egl.math.Colord;
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
+
+/**
+ * The benchmark suite: box tests, acceleration structure traversal on the
+ * bundled meshes, single-surface intersection, cubemap lookups and shading.
+ *
+ * Every benchmark works on a ray set generated from a fixed seed, so two runs on
+ * the same build perform exactly the same work.
+ */
+public class RayBenchmarks {
+
+	/** The seed all ray sets are generated from. */
+	static final long SEED = 42;
+
+	/** The number of rays in each ray set. */
+	static final int RAYS = 4096;
+
+	/** The meshes to run the traversal benchmarks on, relative to the mesh directory. */
+	static final String[] MESHES = { "bunnyNV.obj", "bunny10k_norms.obj", "horse_norms.obj" };
+
+	/**
+	 * A fixed set of rays stored as primitives, copied into a scratch Ray for each
+	 * test so that benchmarks that shorten ray.end do not affect later passes.
+	 */
+	static class RaySet {
+		final int size;
+		final double[] origins, directions;
+
+		RaySet(int size) {
+			this.size = size;
+			origins = new double[3 * size];
+			directions = new double[3 * size];
+		}
+
+		/**
+		 * Rays starting on a sphere around the box [min, max] and aimed at random
+		 * points inside it.
+		 */
+		static RaySet aimedAt(Vector3d min, Vector3d max, int size, long seed) {
+			Random random = new Random(seed);
+			RaySet set = new RaySet(size);
+			Vector3d center = new Vector3d(min).add(max).mul(0.5);
+			double radius = 2 * new Vector3d(max).sub(min).len();
+			Vector3d o = new Vector3d(), d = new Vector3d();
+			for (int i = 0; i < size; i++) {
+				randomDirection(random, o).mul(radius).add(center);
+				d.set(min.x + random.nextDouble() * (max.x - min.x),
+						min.y + random.nextDouble() * (max.y - min.y),
+						min.z + random.nextDouble() * (max.z - min.z)).sub(o).normalize();
+				set.set(i, o, d);
+			}
+			return set;
+		}
+
+		void set(int i, Vector3d o, Vector3d d) {
+			origins[3 * i] = o.x;
+			origins[3 * i + 1] = o.y;
+			origins[3 * i + 2] = o.z;
+			directions[3 * i] = d.x;
+			directions[3 * i + 1] = d.y;
+			directions[3 * i + 2] = d.z;
+		}
+
+		Ray load(int i, Ray ray) {
+			ray.origin.set(origins[3 * i], origins[3 * i + 1], origins[3 * i + 2]);
+			ray.direction.set(directions[3 * i], directions[3 * i + 1], directions[3 * i + 2]);
+			ray.start = Ray.EPSILON;
+			ray.end = Double.POSITIVE_INFINITY;
+			return ray;
+		}
+	}
+
+	static Vector3d randomDirection(Random random, Vector3d out) {
+		double z = 2 * random.nextDouble() - 1;
+		double phi = 2 * Math.PI * random.nextDouble();
+		double r = Math.sqrt(1 - z * z);
+		return out.set(r * Math.cos(phi), r * Math.sin(phi), z);
+	}
+
+	/**
+	 * Load a mesh from the mesh directory and return its triangles, or null if the
+	 * file does not exist.
+	 */
+	static Surface[] loadTriangles(String meshDir, String file, boolean bake) throws IOException {
+		if (!new File(meshDir, file).exists())
+			return null;
+		RayTracer.sceneWorkspace = new RayTracer.ScenePath(null, new File(meshDir, "bench.xml").getPath());
+		Mesh mesh = new Mesh();
+		mesh.setData(file);
+		mesh.setBake(bake);
+		Matrix4d id = new Matrix4d();
+		mesh.setTransformation(id, id, id);
+		ArrayList<Surface> surfaces = new ArrayList<Surface>();
+		mesh.appendRenderableSurfaces(surfaces);
+		return surfaces.toArray(new Surface[surfaces.size()]);
+	}
+
+	static Vector3d[] bounds(Surface[] surfaces) {
+		Vector3d min = new Vector3d(Double.POSITIVE_INFINITY);
+		Vector3d max = new Vector3d(Double.NEGATIVE_INFINITY);
+		for (Surface s : surfaces) {
+			Vector3d lo = s.getMinBound(), hi = s.getMaxBound();
+			min.set(Math.min(min.x, lo.x), Math.min(min.y, lo.y), Math.min(min.z, lo.z));
+			max.set(Math.max(max.x, hi.x), Math.max(max.y, hi.y), Math.max(max.z, hi.z));
+		}
+		return new Vector3d[] { min, max };
+	}
+
+	static Bvh wideBvh(int width) {
+		WideBvh b = new WideBvh();
+		b.setSplitMethod("sah");
+		b.setWidth(width);
+		return b;
+	}
+
+	static String baseName(String file) {
+		int dot = file.lastIndexOf('.');
+		return dot < 0 ? file : file.substring(0, dot);
+	}
+
+	/**
+	 * @param dataDir the directory holding meshes/ and scenes/
+	 * @return all benchmarks whose inputs are available under dataDir
+	 */
+	public static List<Benchmark> all(String dataDir) {
+		final String meshDir = new File(dataDir, "meshes").getPath();
+		List<Benchmark> list = new ArrayList<Benchmark>();
+
+		list.add(new BoxBenchmark());
+		list.add(new SlabBenchmark());
+		for (final String mesh : MESHES) {
+			if (!new File(meshDir, mesh).exists()) {
+				System.err.println("Skipping benchmarks on missing mesh " + mesh);
+				continue;
+			}
+			String m = baseName(mesh);
+			list.add(new AccelBenchmark("Bvh.intersect/" + m, meshDir, mesh, false) {
+				AccelStruct create() { return new Bvh(); }
+			});
+			list.add(new AccelBenchmark("Bvh[sah].intersect/" + m, meshDir, mesh, false) {
+				AccelStruct create() { Bvh b = new Bvh(); b.setSplitMethod("sah"); return b; }
+			});
+			list.add(new AccelBenchmark("LinearBvh[sah].intersect/" + m, meshDir, mesh, false) {
+				AccelStruct create() { Bvh b = new LinearBvh(); b.setSplitMethod("sah"); return b; }
+			});
+			list.add(new AccelBenchmark("LinearBvh[sah].anyHit/" + m, meshDir, mesh, true) {
+				AccelStruct create() { Bvh b = new LinearBvh(); b.setSplitMethod("sah"); return b; }
+			});
+			for (final int width : new int[] { 4, 8 }) {
+				list.add(new AccelBenchmark("WideBvh[sah," + width + "].intersect/" + m, meshDir, mesh, false) {
+					AccelStruct create() { return wideBvh(width); }
+				});
+				list.add(new OcclusionBenchmark("WideBvh[sah," + width + "].occluded/" + m, meshDir, mesh) {
+					AccelStruct create() { return wideBvh(width); }
+				});
+			}
+			list.add(new OcclusionBenchmark("Bvh[sah].occluded/" + m, meshDir, mesh) {
+				AccelStruct create() { Bvh b = new Bvh(); b.setSplitMethod("sah"); return b; }
+			});
+			list.add(new OcclusionBenchmark("LinearBvh[sah].occluded/" + m, meshDir, mesh) {
+				AccelStruct create() { Bvh b = new LinearBvh(); b.setSplitMethod("sah"); return b; }
+			});
+		}
+		for (String mesh : MESHES) {
+			if (!new File(meshDir, mesh).exists())
+				continue;
+			for (String split : new String[] { "median", "sah" }) {
+				list.add(new BuildBenchmark(meshDir, mesh, split, true));
+				list.add(new BuildBenchmark(meshDir, mesh, split, false));
+			}
+			for (String mode : new String[] { "", "split", "chunked" })
+				list.add(new ParseBenchmark(meshDir, mesh, mode));
+		}
+		if (new File(meshDir, MESHES[0]).exists()) {
+			list.add(new TriangleBenchmark("Triangle.intersect", meshDir, false));
+			list.add(new TriangleBenchmark("SoupTriangle.intersect", meshDir, true));
+		}
+		list.add(new SphereBenchmark());
+		list.add(new CubemapBenchmark());
+		if (new File(meshDir, MESHES[0]).exists()) {
+			list.add(new ShaderBenchmark(meshDir, "Lambertian") {
+				Shader create() { return new Lambertian(); }
+			});
+			list.add(new ShaderBenchmark(meshDir, "Phong") {
+				Shader create() { Phong p = new Phong(); p.setExponent(20); return p; }
+			});
+			list.add(new ShaderBenchmark(meshDir, "CookTorrance") {
+				Shader create() { CookTorrance c = new CookTorrance(); c.setRoughness(0.3); c.setRefractiveIndex(1.5); return c; }
+			});
+			list.add(new ShaderBenchmark(meshDir, "Glass") {
+				Shader create() { Glass g = new Glass(); g.setRefractiveIndex(1.5); return g; }
+			});
+			list.add(new ShaderBenchmark(meshDir, "Glazed") {
+				Shader create() { Glazed g = new Glazed(); g.setRefractiveIndex(1.5); g.setSubstrate(new Lambertian()); return g; }
+			});
+			list.add(new ShaderBenchmark(meshDir, "RGBNormals") {
+				Shader create() { return new RGBNormals(); }
+			});
+		}
+		return list;
+	}
+
+	/**
+	 * BvhNode.intersects on random boxes in [-1, 1]^3.
+	 */
+	static class BoxBenchmark extends Benchmark {
+		BvhNode[] nodes;
+		RaySet rays;
+		final Ray ray = new Ray();
+
+		BoxBenchmark() {
+			this("BvhNode.intersects");
+		}
+
+		BoxBenchmark(String name) {
+			super(name);
+		}
+
+		public void setup() {
+			Random random = new Random(SEED);
+			nodes = new BvhNode[1024];
+			for (int i = 0; i < nodes.length; i++) {
+				Vector3d min = new Vector3d(random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1);
+				Vector3d max = new Vector3d(min).add(0.05 + 0.45 * random.nextDouble());
+				nodes[i] = new BvhNode(min, max, null, null, 0, 0);
+			}
+			rays = RaySet.aimedAt(new Vector3d(-1), new Vector3d(1), RAYS, SEED);
+		}
+
+		public int run() {
+			int mask = nodes.length - 1;
+			for (int i = 0; i < rays.size; i++)
+				consume(nodes[i & mask].intersects(rays.load(i, ray)));
+			return rays.size;
+		}
+	}
+
+	/**
+	 * BvhNode.entryDistance of each ray against 16 boxes, with the reciprocal direction
+	 * computed once per ray as traversal does. Every box test counts as an operation.
+	 */
+	static class SlabBenchmark extends BoxBenchmark {
+		static final int BOXES_PER_RAY = 16;
+
+		SlabBenchmark() {
+			super("BvhNode.entryDistance");
+		}
+
+		public int run() {
+			int mask = nodes.length - 1;
+			for (int i = 0; i < rays.size; i++) {
+				rays.load(i, ray).computeInverseDirection();
+				for (int j = 0; j < BOXES_PER_RAY; j++)
+					consume(nodes[(i + 61 * j) & mask].entryDistance(ray));
+			}
+			return rays.size * BOXES_PER_RAY;
+		}
+	}
+
+	/**
+	 * First-hit or any-hit traversal of an acceleration structure over a mesh.
+	 */
+	static abstract class AccelBenchmark extends Benchmark {
+		final String meshDir, mesh;
+		final boolean anyHit;
+		AccelStruct accel;
+		RaySet rays;
+		final Ray ray = new Ray();
+		final IntersectionRecord record = new IntersectionRecord();
+
+		AccelBenchmark(String name, String meshDir, String mesh, boolean anyHit) {
+			super(name);
+			this.meshDir = meshDir;
+			this.mesh = mesh;
+			this.anyHit = anyHit;
+		}
+
+		abstract AccelStruct create();
+
+		public void setup() throws IOException {
+			Surface[] surfaces = loadTriangles(meshDir, mesh, false);
+			Vector3d[] box = bounds(surfaces);
+			accel = create();
+			accel.build(surfaces);
+			rays = RaySet.aimedAt(box[0], box[1], RAYS, SEED);
+		}
+
+		public int run() {
+			for (int i = 0; i < rays.size; i++) {
+				boolean hit = accel.intersect(record, rays.load(i, ray), anyHit);
+				consume(hit);
+				if (hit && !anyHit)
+					consume(record.t);
+			}
+			return rays.size;
+		}
+	}
+
+	/**
+	 * AccelStruct.occluded, the shadow-ray query, on the same rays as AccelBenchmark.
+	 */
+	static abstract class OcclusionBenchmark extends AccelBenchmark {
+
+		OcclusionBenchmark(String name, String meshDir, String mesh) {
+			super(name, meshDir, mesh, true);
+		}
+
+		public int run() {
+			for (int i = 0; i < rays.size; i++)
+				consume(accel.occluded(rays.load(i, ray)));
+			return rays.size;
+		}
+	}
+
+	/**
+	 * Building a Bvh over a baked mesh, on the common ForkJoinPool or on one thread.
+	 * Every surface counts as an operation.
+	 */
+	static class BuildBenchmark extends Benchmark {
+		final String meshDir, mesh, split;
+		final boolean parallel;
+		Surface[] surfaces;
+
+		BuildBenchmark(String meshDir, String mesh, String split, boolean parallel) {
+			super("Bvh[" + split + "].build" + (parallel ? "" : "Serial") + "/" + baseName(mesh));
+			this.meshDir = meshDir;
+			this.mesh = mesh;
+			this.split = split;
+			this.parallel = parallel;
+		}
+
+		public void setup() throws IOException {
+			surfaces = loadTriangles(meshDir, mesh, true);
+		}
+
+		public int run() {
+			Bvh bvh = new Bvh();
+			bvh.setSplitMethod(split);
+			bvh.setParallelBuild(parallel);
+			bvh.build(surfaces.clone());
+			consume(bvh.getStatistics().sahCost);
+			return surfaces.length;
+		}
+	}
+
+	/**
+	 * Parsing an OBJ file into an OBJMesh: with the original split-based parser, with
+	 * OBJParser, or with OBJParser in 64 KB chunks in parallel. Every line of the file
+	 * counts as an operation.
+	 */
+	static class ParseBenchmark extends Benchmark {
+		/** The chunk size of the chunked variant, small enough to split the bundled meshes. */
+		static final int CHUNK_SIZE = 1 << 16;
+
+		final String file, mode;
+		int lines;
+
+		ParseBenchmark(String meshDir, String mesh, String mode) {
+			super("OBJMesh.parse" + (mode.isEmpty() ? "" : "[" + mode + "]") + "/" + baseName(mesh));
+			this.file = new File(meshDir, mesh).getPath();
+			this.mode = mode;
+		}
+
+		public void setup() throws IOException {
+			lines = Files.readAllLines(Paths.get(file)).size();
+		}
+
+		public int run() {
+			OBJMesh mesh = new OBJMesh();
+			try {
+				if (mode.equals("split"))
+					mesh.parseOBJSplit(file);
+				else if (mode.equals("chunked"))
+					OBJParser.parseChunked(Files.readAllBytes(Paths.get(file)), CHUNK_SIZE).toMesh(mesh);
+				else
+					mesh.parseOBJ(file);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			consume(mesh.positions.get(mesh.positions.size() - 1).x + mesh.faces.size());
+			return lines;
+		}
+	}
+
+	/**
+	 * Single triangle tests, each ray aimed near the centroid of one triangle.
+	 */
+	static class TriangleBenchmark extends Benchmark {
+		final String meshDir;
+		final boolean bake;
+		Surface[] triangles;
+		RaySet rays;
+		final Ray ray = new Ray();
+		final IntersectionRecord record = new IntersectionRecord();
+
+		TriangleBenchmark(String name, String meshDir, boolean bake) {
+			super(name + "/" + baseName(MESHES[0]));
+			this.meshDir = meshDir;
+			this.bake = bake;
+		}
+
+		public void setup() throws IOException {
+			triangles = loadTriangles(meshDir, MESHES[0], bake);
+			Random random = new Random(SEED);
+			rays = new RaySet(RAYS);
+			Vector3d o = new Vector3d(), d = new Vector3d();
+			for (int i = 0; i < RAYS; i++) {
+				Surface t = triangles[i % triangles.length];
+				Vector3d size = new Vector3d(t.getMaxBound()).sub(t.getMinBound());
+				randomDirection(random, o).mul(3 * size.len() + 1).add(t.getAveragePosition());
+				d.set(t.getAveragePosition())
+					.add((random.nextDouble() - 0.5) * size.x, (random.nextDouble() - 0.5) * size.y, (random.nextDouble() - 0.5) * size.z)
+					.sub(o).normalize();
+				rays.set(i, o, d);
+			}
+		}
+
+		public int run() {
+			for (int i = 0; i < rays.size; i++)
+				consume(triangles[i % triangles.length].intersect(record, rays.load(i, ray)));
+			return rays.size;
+		}
+	}
+
+	/**
+	 * Sphere.intersect on a scaled and translated sphere.
+	 */
+	static class SphereBenchmark extends Benchmark {
+		Sphere sphere;
+		RaySet rays;
+		final Ray ray = new Ray();
+		final IntersectionRecord record = new IntersectionRecord();
+
+		SphereBenchmark() {
+			super("Sphere.intersect");
+		}
+
+		public void setup() {
+			sphere = new Sphere();
+			Matrix4d m = Matrix4d.createTranslation(1, 2, 3).mulBefore(Matrix4d.createScale(2, 1, 1));
+			sphere.setTransformation(m, m.clone().invert(), m.clone().transpose().invert());
+			rays = RaySet.aimedAt(sphere.getMinBound(), sphere.getMaxBound(), RAYS, SEED);
+		}
+
+		public int run() {
+			for (int i = 0; i < rays.size; i++)
+				consume(sphere.intersect(record, rays.load(i, ray)));
+			return rays.size;
+		}
+	}
+
+	/**
+	 * Cubemap.evaluate on a synthetic 3x4 cross written to a temporary PFM file.
+	 */
+	static class CubemapBenchmark extends Benchmark {
+		Cubemap cubemap;
+		Vector3d[] directions;
+		final Colord radiance = new Colord();
+
+		CubemapBenchmark() {
+			super("Cubemap.evaluate");
+		}
+
+		public void setup() throws IOException {
+			int block = 64, width = 3 * block, height = 4 * block;
+			File file = File.createTempFile("bench", ".pfm");
+			file.deleteOnExit();
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+			try {
+				out.writeBytes("PF\n" + width + " " + height + "\n-1.0\n");
+				for (int i = 0; i < width * height * 3; i++)
+					out.writeInt(Integer.reverseBytes(Float.floatToIntBits(0.25f + (i % 97) / 97f)));
+			} finally {
+				out.close();
+			}
+			cubemap = new Cubemap();
+			cubemap.setFilename(file.getPath());
+
+			Random random = new Random(SEED);
+			directions = new Vector3d[RAYS];
+			for (int i = 0; i < RAYS; i++)
+				directions[i] = randomDirection(random, new Vector3d());
+		}
+
+		public int run() {
+			for (int i = 0; i < directions.length; i++) {
+				cubemap.evaluate(directions[i], radiance);
+				consume(radiance.x);
+			}
+			return directions.length;
+		}
+	}
+
+	/**
+	 * Shader.shade for every camera ray that hits the bunny in a small scene with a
+	 * ground box and one point light. The hits are found once in setup().
+	 */
+	static abstract class ShaderBenchmark extends Benchmark {
+		final String meshDir;
+		Scene scene;
+		Shader shader;
+		RaySet rays;
+		IntersectionRecord[] records;
+		final Ray ray = new Ray();
+		final Colord color = new Colord();
+
+		ShaderBenchmark(String meshDir, String shaderName) {
+			super("Shader.shade/" + shaderName);
+			this.meshDir = meshDir;
+		}
+
+		abstract Shader create();
+
+		public void setup() throws IOException {
+			RayTracer.sceneWorkspace = new RayTracer.ScenePath(null, new File(meshDir, "bench.xml").getPath());
+			scene = new Scene();
+			shader = create();
+			Lambertian ground = new Lambertian();
+			ground.setDiffuseColor(new Colord(0.05, 1, 0.2));
+			scene.addShader(shader);
+			scene.addShader(ground);
+
+			Mesh mesh = new Mesh();
+			mesh.setData(MESHES[0]);
+			mesh.setShader(shader);
+			scene.addSurface(mesh);
+			Box box = new Box();
+			box.setMinPt(new Vector3d(-3, -2, -3));
+			box.setMaxPt(new Vector3d(3, -0.9, 3));
+			box.setShader(ground);
+			scene.addSurface(box);
+
+			PointLight light = new PointLight();
+			light.setPosition(new Vector3d(3, 10, 5));
+			light.setIntensity(new Colord(9, 9, 9));
+			scene.addLight(light);
+
+			PerspectiveCamera camera = new PerspectiveCamera();
+			camera.setViewPoint(new Vector3d(4, 6, 8));
+			camera.setViewDir(new Vector3d(-4, -6, -8));
+			camera.setViewUp(new Vector3d(0, 1, 0));
+			camera.setprojDistance(2);
+			camera.setViewWidth(0.5);
+			camera.setViewHeight(0.5);
+			scene.setCamera(camera);
+			scene.init();
+
+			// Keep the camera rays that hit something
+			Random random = new Random(SEED);
+			rays = new RaySet(RAYS);
+			records = new IntersectionRecord[RAYS];
+			int n = 0;
+			for (int tries = 0; n < RAYS && tries < 100 * RAYS; tries++) {
+				camera.getRay(ray, random.nextDouble(), random.nextDouble());
+				IntersectionRecord record = new IntersectionRecord();
+				if (scene.getFirstIntersection(record, ray)) {
+					rays.set(n, ray.origin, ray.direction);
+					records[n++] = record;
+				}
+			}
+			if (n < RAYS)
+				throw new IllegalStateException("Too few camera rays hit the scene");
+		}
+
+		public int run() {
+			for (int i = 0; i < rays.size; i++) {
+				shader.shade(color, scene, rays.load(i, ray), records[i], 1);
+				consume(color.x + color.y + color.z);
+			}
+			return rays.size;
+		}
+	}
+}
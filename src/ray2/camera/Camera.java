@@ -1,5 +1,8 @@
 package ray2.camera;
 
+import java.util.ArrayList;
+
+import ray2.Keyframe;
 import ray2.Ray;
 import egl.math.Vector3d;
 
@@ -52,6 +55,22 @@ public abstract class Camera {
 	protected double viewHeight = 1.0;
 	public void setViewHeight(double viewHeight) { this.viewHeight = viewHeight; }
 	
+	/** Keyframes of the viewPoint, viewDir and viewUp, sorted by frame. */
+	protected final ArrayList<Keyframe> keys = new ArrayList<Keyframe>();
+	public void addKey(Keyframe key) { Keyframe.insert(keys, key); }
+
+	/**
+	 * Move the camera to a frame of the scene's sequence, and initialize it there.
+	 *
+	 * @param frame the frame to move to
+	 */
+	public void setFrame(int frame) {
+		Keyframe.evaluate(keys, Keyframe.VIEW_POINT, frame, viewPoint);
+		Keyframe.evaluate(keys, Keyframe.VIEW_DIR, frame, viewDir);
+		Keyframe.evaluate(keys, Keyframe.VIEW_UP, frame, viewUp);
+		init();
+	}
+
 	/**
 	 * Generate a ray that points out into the scene for the given (u,v) coordinate.
 	 * This coordinate corresponds to a point on the viewing window, where (0,0) is the
@@ -8,6 +8,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+
+import ray2.ResourceCache;
 import egl.math.Vector2d;
 import egl.math.Vector3d;
 import egl.math.Colord;
@@ -27,11 +29,34 @@ public class Cubemap {
 
 	public Cubemap() { }
 
+	/**
+	 * Read the map from a PFM file, shared through the ResourceCache.
+	 */
 	public void setFilename(String filename) {
 		this.filename = filename;
 
-		PNMHeaderInfo hdr = new PNMHeaderInfo();
-		imageData = readPFM(new File(filename), hdr);
+		PFMImage image;
+		try {
+			image = ResourceCache.get(new File(filename), new ResourceCache.Loader<PFMImage>("pfm") {
+				public PFMImage load(File file) throws IOException {
+					PNMHeaderInfo hdr = new PNMHeaderInfo();
+					float[] data = readPFM(file, hdr);
+					if (data == null)
+						throw new IOException("Could not read " + file);
+					return new PFMImage(hdr, data);
+				}
+
+				public long size(PFMImage image) {
+					// The pixels, and the distribution of one float per pixel
+					return 4L * (image.data.length + image.hdr.width * image.hdr.height + 1);
+				}
+			});
+		} catch (IOException e) {
+			System.err.println("Error loading cubemap: " + e.getMessage());
+			image = new PFMImage(new PNMHeaderInfo(), null);
+		}
+		PNMHeaderInfo hdr = image.hdr;
+		imageData = image.data;
 
 		width = hdr.width;
 		height = hdr.height;
@@ -39,14 +64,21 @@ public class Cubemap {
 
 		for (mapBits = 0; (1 << mapBits) < width*height; mapBits++);
 
-		cumProb = new float[width*height+1];
-		cumProb[0] = 0;
+		// The distribution depends only on the pixels, so it is shared with them.
+		synchronized (image) {
+			if (image.cumProb == null) {
+				cumProb = new float[width*height+1];
+				cumProb[0] = 0;
 
-		for (int k = 1; k <= width*height; k++)
-			cumProb[k] = cumProb[k-1] + calcPixelProb(k-1);
+				for (int k = 1; k <= width*height; k++)
+					cumProb[k] = cumProb[k-1] + calcPixelProb(k-1);
 
-		for (int k = 1; k <= width*height; k++)
-			cumProb[k] /= cumProb[width*height];
+				for (int k = 1; k <= width*height; k++)
+					cumProb[k] /= cumProb[width*height];
+				image.cumProb = cumProb;
+			}
+			cumProb = image.cumProb;
+		}
 	}
 
 	public void setScaleFactor(double scaleFactor) {
@@ -186,6 +218,18 @@ public class Cubemap {
 		return Math.max(Math.max(r, g), b) / (float) Math.pow(1 + u*u + v*v, 1.5);
 	}
 
+	/** The header and pixels of a PFM file, and the distribution built from them. */
+	private static class PFMImage {
+		final PNMHeaderInfo hdr;
+		final float[] data;
+		float[] cumProb;
+
+		PFMImage(PNMHeaderInfo hdr, float[] data) {
+			this.hdr = hdr;
+			this.data = data;
+		}
+	}
+
 	public static class PNMHeaderInfo { 
 		int width, height, bands;
 		float maxval; 
@@ -0,0 +1,278 @@
+package ray2.mesh;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import egl.math.Vector2;
+import egl.math.Vector2d;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+
+/**
+ * A mesh stored in a compact binary file, which is memory-mapped instead of parsed:
+ * its arrays stay in the file mapping and are read through buffer views, so loading
+ * takes the same time whatever the size of the mesh, and the data never occupies the
+ * Java heap.
+ *
+ * The file is little-endian. After a header of MAGIC, VERSION, the position, uv,
+ * normal, face and face vertex counts and a reserved int, it holds the arrays
+ *
+ *   float positions[3 * positions], uvs[2 * uvs], normals[3 * normals]
+ *   int faceStarts[faces + 1]
+ *   int vertexPositions[vertices], vertexUVs[vertices], vertexNormals[vertices]
+ *
+ * Face f has the vertices faceStarts[f] to faceStarts[f + 1] - 1. Indices are
+ * 0-based, and -1 where a vertex has no uv or normal. Files are written from an
+ * OBJMesh by write(), or from the command line:
+ *
+ *   java ray2.mesh.BinaryMesh in.obj out.bmesh
+ */
+public class BinaryMesh implements MeshData {
+
+	/** The extension that marks a mesh file as a BinaryMesh. */
+	public static final String EXTENSION = ".bmesh";
+
+	/** The first bytes of a file: "RBMS" in little-endian order. */
+	static final int MAGIC = 0x534d4252;
+
+	/** Bumped whenever the layout of a file changes. */
+	static final int VERSION = 1;
+
+	/** The length of the header, in bytes. */
+	static final int HEADER_LENGTH = 8 * 4;
+
+	public final int positionCount, uvCount, normalCount, faceCount, vertexCount;
+
+	/** Views of the arrays in the file mapping. */
+	final FloatBuffer positions, uvs, normals;
+	final IntBuffer faceStarts, vertexPositions, vertexUVs, vertexNormals;
+
+	private BinaryMesh(int[] counts, FloatBuffer positions, FloatBuffer uvs, FloatBuffer normals, IntBuffer faceStarts,
+			IntBuffer vertexPositions, IntBuffer vertexUVs, IntBuffer vertexNormals) {
+		positionCount = counts[0];
+		uvCount = counts[1];
+		normalCount = counts[2];
+		faceCount = counts[3];
+		vertexCount = counts[4];
+		this.positions = positions;
+		this.uvs = uvs;
+		this.normals = normals;
+		this.faceStarts = faceStarts;
+		this.vertexPositions = vertexPositions;
+		this.vertexUVs = vertexUVs;
+		this.vertexNormals = vertexNormals;
+	}
+
+	/**
+	 * @return true if fileName names a BinaryMesh file
+	 */
+	public static boolean isBinaryMesh(String fileName) {
+		return fileName.toLowerCase().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Map a file written by write(). Each array is mapped on its own, so a file may be
+	 * larger than 2GB as long as no single array is.
+	 */
+	public static BinaryMesh map(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() < HEADER_LENGTH)
+				throw new IOException(file + " is not a binary mesh");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != MAGIC)
+				throw new IOException(file + " is not a binary mesh");
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException(file + " has binary mesh version " + version + ", not " + VERSION);
+			int[] counts = new int[5];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = header.getInt();
+				if (counts[i] < 0)
+					throw new IOException(file + " is corrupt");
+			}
+			long[] lengths = lengths(counts);
+			long expected = HEADER_LENGTH;
+			for (long length : lengths)
+				expected += length;
+			if (channel.size() != expected)
+				throw new IOException(file + " is " + channel.size() + " bytes long, not " + expected);
+
+			ByteBuffer[] arrays = new ByteBuffer[lengths.length];
+			long position = HEADER_LENGTH;
+			for (int i = 0; i < arrays.length; i++) {
+				if (lengths[i] > Integer.MAX_VALUE)
+					throw new IOException(file + " has an array too large to map");
+				arrays[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, lengths[i]).order(ByteOrder.LITTLE_ENDIAN);
+				position += lengths[i];
+			}
+			// The mappings stay valid after the channel is closed.
+			return new BinaryMesh(counts, arrays[0].asFloatBuffer(), arrays[1].asFloatBuffer(), arrays[2].asFloatBuffer(),
+					arrays[3].asIntBuffer(), arrays[4].asIntBuffer(), arrays[5].asIntBuffer(), arrays[6].asIntBuffer());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the length in bytes of each array of a file with the given counts
+	 */
+	private static long[] lengths(int[] counts) {
+		return new long[] { 4L * 3 * counts[0], 4L * 2 * counts[1], 4L * 3 * counts[2], 4L * (counts[3] + 1),
+				4L * counts[4], 4L * counts[4], 4L * counts[4] };
+	}
+
+	/**
+	 * Write mesh to file, replacing it.
+	 */
+	public static void write(OBJMesh mesh, File file) throws IOException {
+		int vertices = 0;
+		for (OBJFace face : mesh.faces)
+			vertices += face.numVerts();
+		int[] counts = { mesh.positions.size(), mesh.uvs.size(), mesh.normals.size(), mesh.faces.size(), vertices };
+		long length = HEADER_LENGTH;
+		for (long l : lengths(counts))
+			length += l;
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(length);
+			FileChannel channel = out.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION);
+			for (int count : counts)
+				header.putInt(count);
+			header.putInt(0);
+			header.flip();
+			channel.write(header, 0);
+
+			// Stream the arrays through a buffer rather than mapping the whole file,
+			// so that files over 2GB can be written.
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			channel.position(HEADER_LENGTH);
+			for (Vector3 v : mesh.positions) {
+				buffer = flushIfFull(channel, buffer, 12);
+				buffer.putFloat(v.x).putFloat(v.y).putFloat(v.z);
+			}
+			for (Vector2 v : mesh.uvs) {
+				buffer = flushIfFull(channel, buffer, 8);
+				buffer.putFloat(v.x).putFloat(v.y);
+			}
+			for (Vector3 v : mesh.normals) {
+				buffer = flushIfFull(channel, buffer, 12);
+				buffer.putFloat(v.x).putFloat(v.y).putFloat(v.z);
+			}
+			int start = 0;
+			for (OBJFace face : mesh.faces) {
+				buffer = flushIfFull(channel, buffer, 4);
+				buffer.putInt(start);
+				start += face.numVerts();
+			}
+			buffer = flushIfFull(channel, buffer, 4);
+			buffer.putInt(start);
+			for (int kind = 0; kind < 3; kind++) {
+				for (OBJFace face : mesh.faces) {
+					int[] indices = kind == 0 ? face.positions : kind == 1 ? face.uvs : face.normals;
+					for (int k = 0; k < face.numVerts(); k++) {
+						buffer = flushIfFull(channel, buffer, 4);
+						buffer.putInt(indices == null ? -1 : indices[k] - OBJFace.indexBase);
+					}
+				}
+			}
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static ByteBuffer flushIfFull(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+		if (buffer.remaining() >= needed)
+			return buffer;
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Copy this mesh onto the heap as an OBJMesh.
+	 */
+	public OBJMesh toOBJMesh() {
+		OBJMesh mesh = new OBJMesh();
+		for (int i = 0; i < positionCount; i++)
+			mesh.positions.add(new Vector3(positions.get(3 * i), positions.get(3 * i + 1), positions.get(3 * i + 2)));
+		for (int i = 0; i < uvCount; i++)
+			mesh.uvs.add(new Vector2(uvs.get(2 * i), uvs.get(2 * i + 1)));
+		for (int i = 0; i < normalCount; i++)
+			mesh.normals.add(new Vector3(normals.get(3 * i), normals.get(3 * i + 1), normals.get(3 * i + 2)));
+		for (int f = 0; f < faceCount; f++) {
+			int n = getVertexCount(f), first = faceStarts.get(f);
+			OBJFace face = new OBJFace(n, hasUVs(f), hasNormals(f));
+			for (int k = 0; k < n; k++) {
+				face.positions[k] = vertexPositions.get(first + k) + OBJFace.indexBase;
+				if (face.uvs != null)
+					face.uvs[k] = vertexUVs.get(first + k) + OBJFace.indexBase;
+				if (face.normals != null)
+					face.normals[k] = vertexNormals.get(first + k) + OBJFace.indexBase;
+			}
+			mesh.faces.add(face);
+		}
+		return mesh;
+	}
+
+	public int getFaceCount() {
+		return faceCount;
+	}
+
+	public int getVertexCount(int face) {
+		return faceStarts.get(face + 1) - faceStarts.get(face);
+	}
+
+	public boolean hasUVs(int face) {
+		return vertexUVs.get(faceStarts.get(face)) >= 0;
+	}
+
+	public boolean hasNormals(int face) {
+		return vertexNormals.get(faceStarts.get(face)) >= 0;
+	}
+
+	public Vector3d getPosition(int face, int k, Vector3d out) {
+		int i = 3 * vertexPositions.get(faceStarts.get(face) + k);
+		return out.set(positions.get(i), positions.get(i + 1), positions.get(i + 2));
+	}
+
+	public Vector3d getNormal(int face, int k, Vector3d out) {
+		int i = 3 * vertexNormals.get(faceStarts.get(face) + k);
+		return out.set(normals.get(i), normals.get(i + 1), normals.get(i + 2));
+	}
+
+	public Vector2d getUV(int face, int k, Vector2d out) {
+		int i = 2 * vertexUVs.get(faceStarts.get(face) + k);
+		return out.set(uvs.get(i), uvs.get(i + 1));
+	}
+
+	/**
+	 * Convert an OBJ file to a binary mesh file.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java ray2.mesh.BinaryMesh <in.obj> <out" + EXTENSION + ">");
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		write(new OBJMesh(args[0]), new File(args[1]));
+		System.out.println("Wrote " + args[1] + " in " + ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+	}
+}
@@ -0,0 +1,147 @@
+package ray2.mesh;
+
+import egl.math.Vector2;
+import egl.math.Vector2d;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+
+/**
+ * A mesh stored in a few flat arrays instead of an object per vertex and face.
+ *
+ * An OBJMesh holds a Vector3 or Vector2 per position, normal and uv and an OBJFace
+ * with up to three int[] per face, so a mesh of a million triangles is several
+ * million small objects. A FlatMesh holds the same data in seven arrays, laid out
+ * like a BinaryMesh file: positions, uvs and normals packed 3, 2 and 3 floats each,
+ * faceStarts giving the first vertex of each face (and the vertex count at the end),
+ * and the 0-based position, uv and normal index of each face vertex, -1 where a face
+ * has no uvs or normals. Triangle reads these arrays directly.
+ */
+public class FlatMesh implements MeshData {
+
+	/** Vertex positions, 3 per vertex. */
+	public final float[] positions;
+
+	/** Texture coordinates, 2 per uv. */
+	public final float[] uvs;
+
+	/** Vertex normals, 3 per normal. */
+	public final float[] normals;
+
+	/** The index of the first vertex of each face, and the number of vertices at the end. */
+	public final int[] faceStarts;
+
+	/** Per face vertex: the index of its position, uv and normal, or -1. */
+	public final int[] vertexPositions, vertexUVs, vertexNormals;
+
+	public FlatMesh(float[] positions, float[] uvs, float[] normals, int[] faceStarts, int[] vertexPositions,
+			int[] vertexUVs, int[] vertexNormals) {
+		this.positions = positions;
+		this.uvs = uvs;
+		this.normals = normals;
+		this.faceStarts = faceStarts;
+		this.vertexPositions = vertexPositions;
+		this.vertexUVs = vertexUVs;
+		this.vertexNormals = vertexNormals;
+	}
+
+	/**
+	 * Copy the data of mesh into flat arrays.
+	 */
+	public FlatMesh(OBJMesh mesh) {
+		positions = new float[3 * mesh.positions.size()];
+		uvs = new float[2 * mesh.uvs.size()];
+		normals = new float[3 * mesh.normals.size()];
+		for (int i = 0; i < mesh.positions.size(); i++)
+			set(positions, 3 * i, mesh.positions.get(i));
+		for (int i = 0; i < mesh.uvs.size(); i++) {
+			uvs[2 * i] = mesh.uvs.get(i).x;
+			uvs[2 * i + 1] = mesh.uvs.get(i).y;
+		}
+		for (int i = 0; i < mesh.normals.size(); i++)
+			set(normals, 3 * i, mesh.normals.get(i));
+
+		faceStarts = new int[mesh.faces.size() + 1];
+		for (int f = 0; f < mesh.faces.size(); f++)
+			faceStarts[f + 1] = faceStarts[f] + mesh.faces.get(f).numVerts();
+		int vertices = faceStarts[mesh.faces.size()];
+		vertexPositions = new int[vertices];
+		vertexUVs = new int[vertices];
+		vertexNormals = new int[vertices];
+		for (int f = 0; f < mesh.faces.size(); f++) {
+			OBJFace face = mesh.faces.get(f);
+			for (int k = 0; k < face.numVerts(); k++) {
+				int v = faceStarts[f] + k;
+				vertexPositions[v] = face.positions[k] - OBJFace.indexBase;
+				vertexUVs[v] = face.uvs == null ? -1 : face.uvs[k] - OBJFace.indexBase;
+				vertexNormals[v] = face.normals == null ? -1 : face.normals[k] - OBJFace.indexBase;
+			}
+		}
+	}
+
+	private static void set(float[] array, int offset, Vector3 v) {
+		array[offset] = v.x;
+		array[offset + 1] = v.y;
+		array[offset + 2] = v.z;
+	}
+
+	/**
+	 * Copy this mesh into an OBJMesh.
+	 */
+	public OBJMesh toOBJMesh() {
+		OBJMesh mesh = new OBJMesh();
+		mesh.positions.ensureCapacity(positions.length / 3);
+		mesh.uvs.ensureCapacity(uvs.length / 2);
+		mesh.normals.ensureCapacity(normals.length / 3);
+		mesh.faces.ensureCapacity(getFaceCount());
+		for (int i = 0; i < positions.length; i += 3)
+			mesh.positions.add(new Vector3(positions[i], positions[i + 1], positions[i + 2]));
+		for (int i = 0; i < uvs.length; i += 2)
+			mesh.uvs.add(new Vector2(uvs[i], uvs[i + 1]));
+		for (int i = 0; i < normals.length; i += 3)
+			mesh.normals.add(new Vector3(normals[i], normals[i + 1], normals[i + 2]));
+		for (int f = 0; f < getFaceCount(); f++) {
+			int first = faceStarts[f], n = getVertexCount(f);
+			OBJFace face = new OBJFace(n, hasUVs(f), hasNormals(f));
+			for (int k = 0; k < n; k++) {
+				face.positions[k] = vertexPositions[first + k] + OBJFace.indexBase;
+				if (face.uvs != null)
+					face.uvs[k] = vertexUVs[first + k] + OBJFace.indexBase;
+				if (face.normals != null)
+					face.normals[k] = vertexNormals[first + k] + OBJFace.indexBase;
+			}
+			mesh.faces.add(face);
+		}
+		return mesh;
+	}
+
+	public int getFaceCount() {
+		return faceStarts.length - 1;
+	}
+
+	public int getVertexCount(int face) {
+		return faceStarts[face + 1] - faceStarts[face];
+	}
+
+	public boolean hasUVs(int face) {
+		return vertexUVs[faceStarts[face]] >= 0;
+	}
+
+	public boolean hasNormals(int face) {
+		return vertexNormals[faceStarts[face]] >= 0;
+	}
+
+	public Vector3d getPosition(int face, int k, Vector3d out) {
+		int i = 3 * vertexPositions[faceStarts[face] + k];
+		return out.set(positions[i], positions[i + 1], positions[i + 2]);
+	}
+
+	public Vector3d getNormal(int face, int k, Vector3d out) {
+		int i = 3 * vertexNormals[faceStarts[face] + k];
+		return out.set(normals[i], normals[i + 1], normals[i + 2]);
+	}
+
+	public Vector2d getUV(int face, int k, Vector2d out) {
+		int i = 2 * vertexUVs[faceStarts[face] + k];
+		return out.set(uvs[i], uvs[i + 1]);
+	}
+}
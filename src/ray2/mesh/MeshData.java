@@ -0,0 +1,44 @@
+package ray2.mesh;
+
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+
+/**
+ * Read access to the faces of a mesh, independent of how the mesh is stored: an
+ * OBJMesh parsed onto the heap, or a BinaryMesh mapped from a file.
+ *
+ * Faces and their vertices are numbered from 0. A face either has a uv (or normal)
+ * at every vertex or at none.
+ */
+public interface MeshData {
+
+	/** @return the number of faces */
+	int getFaceCount();
+
+	/** @return the number of vertices of face */
+	int getVertexCount(int face);
+
+	/** @return true if face has texture coordinates */
+	boolean hasUVs(int face);
+
+	/** @return true if face has vertex normals */
+	boolean hasNormals(int face);
+
+	/**
+	 * Set out to the position of vertex k of face.
+	 * @return out
+	 */
+	Vector3d getPosition(int face, int k, Vector3d out);
+
+	/**
+	 * Set out to the normal of vertex k of face, which must have normals.
+	 * @return out
+	 */
+	Vector3d getNormal(int face, int k, Vector3d out);
+
+	/**
+	 * Set out to the texture coordinates of vertex k of face, which must have uvs.
+	 * @return out
+	 */
+	Vector2d getUV(int face, int k, Vector2d out);
+}
@@ -7,7 +7,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import egl.math.Vector2;
+import egl.math.Vector2d;
 import egl.math.Vector3;
+import egl.math.Vector3d;
 
 /**
  * Mesh Data Represented In An OBJ Format
@@ -15,10 +17,10 @@ import egl.math.Vector3;
  * @author Cristian, ers273
  *
  */
-public class OBJMesh {
+public class OBJMesh implements MeshData {
 
 	@SuppressWarnings("serial")
-	public class OBJFileFormatException extends IOException {
+	public static class OBJFileFormatException extends IOException {
 		public OBJFileFormatException() {
 			super();
 		}
@@ -87,12 +89,52 @@ public class OBJMesh {
 		return normals.get(face.normals[vertexIndex] - OBJFace.indexBase);
 	}
 
+	public int getFaceCount() {
+		return faces.size();
+	}
+
+	public int getVertexCount(int face) {
+		return faces.get(face).numVerts();
+	}
+
+	public boolean hasUVs(int face) {
+		return faces.get(face).hasUVs();
+	}
+
+	public boolean hasNormals(int face) {
+		return faces.get(face).hasNormals();
+	}
+
+	public Vector3d getPosition(int face, int k, Vector3d out) {
+		return out.set(getPosition(faces.get(face), k));
+	}
+
+	public Vector3d getNormal(int face, int k, Vector3d out) {
+		return out.set(getNormal(faces.get(face), k));
+	}
+
+	public Vector2d getUV(int face, int k, Vector2d out) {
+		return out.set(getUV(faces.get(face), k));
+	}
+
 	/**
 	 * Parses an OBJ file and sets this to its contents.
+	 * The file is read with OBJParser, which scans its bytes instead of splitting every line into Strings,
+	 * and parses large files in chunks on several threads.
 	 * @throws IOException if there is a problem reading the file.
 	 * @throws OBJFileFormatException if the input OBJ file is malformed.
 	 */
 	public void parseOBJ(String filename) throws IOException, OBJFileFormatException {
+		OBJParser.load(filename).toMesh(this);
+	}
+
+	/**
+	 * Parses an OBJ file and sets this to its contents, splitting each line with a regular expression.
+	 * This is the original parser, kept as the reference OBJParser is tested and benchmarked against.
+	 * @throws IOException if there is a problem reading the file.
+	 * @throws OBJFileFormatException if the input OBJ file is malformed.
+	 */
+	public void parseOBJSplit(String filename) throws IOException, OBJFileFormatException {
 		positions.clear();
 		uvs.clear();
 		normals.clear();
@@ -0,0 +1,586 @@
+package ray2.mesh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import egl.math.Vector2;
+import egl.math.Vector3;
+import ray2.mesh.OBJMesh.OBJFileFormatException;
+
+/**
+ * A streaming OBJ parser that scans the bytes of the file directly, without
+ * splitting lines into Strings, and appends what it reads to primitive arrays.
+ *
+ * Positions, normals and uvs are stored packed, 3 or 2 floats each. Faces are
+ * stored as runs of vertices: face f has the vertices faceStarts[f] to
+ * faceStarts[f + 1] - 1, and vertex v refers to position vertexPositions[v],
+ * uv vertexUVs[v] and normal vertexNormals[v], or MISSING where the vertex has
+ * none. Indices follow the same convention as OBJFace, including indexBase.
+ *
+ * Numbers of up to 19 significant digits with small exponents, which covers what
+ * OBJ exporters write, are converted with double arithmetic whenever that provably
+ * rounds to the same float as Float.parseFloat; anything else is handed to
+ * Float.parseFloat.
+ * The file is accepted and rejected as by the original split-based parser, except
+ * that blank and indented lines are allowed, each unrecognized specifier is only
+ * warned about once, and negative indices count back from the last element read,
+ * as the OBJ format specifies.
+ *
+ * A large file can also be parsed in chunks of whole lines in parallel (see
+ * parseChunked()). Positive indices do not depend on what came before, so each
+ * chunk is parsed on its own, and the negative indices it resolved against its
+ * own elements are moved by the elements of the chunks before it when the chunks
+ * are merged.
+ */
+public class OBJParser {
+
+	/** Marks a vertex without a uv or normal index. */
+	public static final int MISSING = Integer.MIN_VALUE;
+
+	/** The size of the blocks a file is read in. */
+	static final int BLOCK_SIZE = 1 << 20;
+
+	/** The size of the chunks a file is split into when it is parsed in parallel. */
+	public static final int CHUNK_SIZE = 1 << 20;
+
+	/** The largest file that is parsed in parallel; larger ones do not fit in a byte array. */
+	static final long MAX_PARALLEL_LENGTH = Integer.MAX_VALUE - 8;
+
+	/** Exact powers of ten: 10^22 is the largest one a double holds exactly. */
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+			1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/** The low bits of a double's mantissa that a float does not have, and their value halfway between two floats. */
+	private static final long FLOAT_DROPPED_BITS = (1L << 29) - 1;
+	private static final int FLOAT_HALFWAY = 1 << 28;
+
+	/** Vertex positions, 3 per vertex. */
+	public float[] positions = new float[3 * 1024];
+	public int positionCount;
+
+	/** Texture coordinates, 2 per uv. */
+	public float[] uvs = new float[2 * 1024];
+	public int uvCount;
+
+	/** Vertex normals, 3 per normal. */
+	public float[] normals = new float[3 * 1024];
+	public int normalCount;
+
+	/** The index of the first vertex of each face, and faceCount at the end. */
+	public int[] faceStarts = new int[1025];
+	public int faceCount;
+
+	/** Per face vertex: the index of its position, uv and normal. */
+	public int[] vertexPositions = new int[3 * 1024], vertexUVs = new int[3 * 1024], vertexNormals = new int[3 * 1024];
+	public int vertexCount;
+
+	/**
+	 * The face vertices whose index was negative, as 3 * vertex + 0, 1 or 2 for a
+	 * position, uv or normal. Their index was resolved against what this parser has
+	 * read, so merge() moves them by what the chunks before it read.
+	 */
+	int[] relative = new int[16];
+	int relativeCount;
+
+	/** The specifiers that have already been warned about, shared by all chunks of a file. */
+	private final Set<String> warned;
+
+	/** The error a chunk stopped at, rethrown once all chunks are done. */
+	private OBJFileFormatException error;
+
+	// The line being parsed, and the position in it
+	private byte[] buf;
+	private int pos, lineStart, lineEnd;
+
+	public OBJParser() {
+		this(new HashSet<String>());
+	}
+
+	private OBJParser(Set<String> warned) {
+		this.warned = warned;
+	}
+
+	/**
+	 * Parse a whole OBJ file, in parallel chunks if it is large enough for that to
+	 * pay off and there is more than one thread to run them on, and as a single
+	 * stream of blocks otherwise.
+	 */
+	public static OBJParser load(String filename) throws IOException {
+		long length = Files.size(Paths.get(filename));
+		if (length >= 2 * CHUNK_SIZE && length <= MAX_PARALLEL_LENGTH
+				&& ForkJoinPool.getCommonPoolParallelism() > 1)
+			return parseChunked(Files.readAllBytes(Paths.get(filename)), CHUNK_SIZE);
+		OBJParser parser = new OBJParser();
+		parser.parse(filename);
+		return parser;
+	}
+
+	/**
+	 * Parse data in chunks of about chunkSize bytes, split at line boundaries, on the
+	 * common ForkJoinPool, and merge the results. The result is the same as parsing
+	 * data in one piece.
+	 */
+	public static OBJParser parseChunked(byte[] data, int chunkSize) throws OBJFileFormatException {
+		// Each chunk ends after the first line break at or past its nominal end.
+		chunkSize = Math.max(1, chunkSize);
+		int[] bounds = new int[data.length / chunkSize + 2];
+		int chunks = 0;
+		for (int start = 0; start < data.length; chunks++) {
+			int end = (int) Math.min(data.length, (long) start + chunkSize);
+			while (end < data.length && data[end - 1] != '\n')
+				end++;
+			bounds[chunks + 1] = end;
+			start = end;
+		}
+
+		OBJParser[] parts = new OBJParser[Math.max(1, chunks)];
+		Set<String> warned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		for (int c = 0; c < parts.length; c++)
+			parts[c] = new OBJParser(warned);
+		if (chunks > 1)
+			ForkJoinPool.commonPool().invoke(new ChunkTask(parts, data, bounds, 0, chunks));
+		else
+			new ChunkTask(parts, data, bounds, 0, chunks).compute();
+
+		// Report the error that comes first in the file.
+		for (OBJParser part : parts)
+			if (part.error != null)
+				throw part.error;
+		return merge(parts);
+	}
+
+	/** Parses a range of chunks in a ForkJoinPool. */
+	@SuppressWarnings("serial")
+	static class ChunkTask extends RecursiveAction {
+		final OBJParser[] parts;
+		final byte[] data;
+		final int[] bounds;
+		final int start, end;
+
+		ChunkTask(OBJParser[] parts, byte[] data, int[] bounds, int start, int end) {
+			this.parts = parts;
+			this.data = data;
+			this.bounds = bounds;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if (end - start > 1) {
+				int mid = (start + end) / 2;
+				ChunkTask left = new ChunkTask(parts, data, bounds, start, mid);
+				left.fork();
+				new ChunkTask(parts, data, bounds, mid, end).compute();
+				left.join();
+			} else if (end > start) {
+				try {
+					parts[start].parse(data, bounds[start], bounds[start + 1]);
+				} catch (OBJFileFormatException e) {
+					parts[start].error = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Concatenate the elements and faces parsed from consecutive chunks of a file,
+	 * moving the negative indices each chunk resolved by the elements of the chunks
+	 * before it.
+	 */
+	static OBJParser merge(OBJParser[] parts) {
+		if (parts.length == 1)
+			return parts[0];
+		OBJParser out = new OBJParser();
+		int positionTotal = 0, uvTotal = 0, normalTotal = 0, faceTotal = 0, vertexTotal = 0;
+		for (OBJParser part : parts) {
+			positionTotal += part.positionCount;
+			uvTotal += part.uvCount;
+			normalTotal += part.normalCount;
+			faceTotal += part.faceCount;
+			vertexTotal += part.vertexCount;
+		}
+		out.positions = new float[3 * positionTotal];
+		out.uvs = new float[2 * uvTotal];
+		out.normals = new float[3 * normalTotal];
+		out.faceStarts = new int[faceTotal + 1];
+		out.vertexPositions = new int[vertexTotal];
+		out.vertexUVs = new int[vertexTotal];
+		out.vertexNormals = new int[vertexTotal];
+
+		for (OBJParser part : parts) {
+			System.arraycopy(part.positions, 0, out.positions, 3 * out.positionCount, 3 * part.positionCount);
+			System.arraycopy(part.uvs, 0, out.uvs, 2 * out.uvCount, 2 * part.uvCount);
+			System.arraycopy(part.normals, 0, out.normals, 3 * out.normalCount, 3 * part.normalCount);
+			System.arraycopy(part.vertexPositions, 0, out.vertexPositions, out.vertexCount, part.vertexCount);
+			System.arraycopy(part.vertexUVs, 0, out.vertexUVs, out.vertexCount, part.vertexCount);
+			System.arraycopy(part.vertexNormals, 0, out.vertexNormals, out.vertexCount, part.vertexCount);
+			for (int f = 0; f < part.faceCount; f++)
+				out.faceStarts[out.faceCount + f] = part.faceStarts[f] + out.vertexCount;
+			for (int r = 0; r < part.relativeCount; r++) {
+				int v = out.vertexCount + part.relative[r] / 3;
+				switch (part.relative[r] % 3) {
+				case 0: out.vertexPositions[v] += out.positionCount; break;
+				case 1: out.vertexUVs[v] += out.uvCount; break;
+				default: out.vertexNormals[v] += out.normalCount; break;
+				}
+			}
+			out.positionCount += part.positionCount;
+			out.uvCount += part.uvCount;
+			out.normalCount += part.normalCount;
+			out.faceCount += part.faceCount;
+			out.vertexCount += part.vertexCount;
+		}
+		out.faceStarts[out.faceCount] = out.vertexCount;
+		return out;
+	}
+
+	/**
+	 * Parse a whole OBJ file, reading it in blocks of complete lines.
+	 */
+	public void parse(String filename) throws IOException {
+		InputStream in = Files.newInputStream(Paths.get(filename));
+		try {
+			byte[] block = new byte[BLOCK_SIZE];
+			int have = 0;
+			while (true) {
+				int n = in.read(block, have, block.length - have);
+				if (n < 0) {
+					parse(block, 0, have);
+					break;
+				}
+				have += n;
+				int last = have - 1;
+				while (last >= 0 && block[last] != '\n')
+					last--;
+				if (last < 0) {
+					// A line longer than the block: grow it.
+					if (have == block.length)
+						block = Arrays.copyOf(block, 2 * block.length);
+					continue;
+				}
+				parse(block, 0, last + 1);
+				have -= last + 1;
+				System.arraycopy(block, last + 1, block, 0, have);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parse the lines in data[start] to data[end - 1]. The range must not end in
+	 * the middle of a line.
+	 */
+	public void parse(byte[] data, int start, int end) throws OBJFileFormatException {
+		buf = data;
+		faceStarts[faceCount] = vertexCount;
+		int next = start;
+		while (next < end) {
+			lineStart = next;
+			lineEnd = next;
+			while (lineEnd < end && data[lineEnd] != '\n')
+				lineEnd++;
+			next = lineEnd + 1;
+			pos = lineStart;
+			parseLine();
+		}
+		buf = null;
+	}
+
+	private void parseLine() throws OBJFileFormatException {
+		skipSpace();
+		if (pos == lineEnd || buf[pos] == '#')
+			return;
+		int keyStart = pos;
+		while (pos < lineEnd && !isSpace(buf[pos]))
+			pos++;
+		int keyLength = pos - keyStart;
+		byte c0 = buf[keyStart], c1 = keyLength > 1 ? buf[keyStart + 1] : 0;
+
+		if (keyLength == 1 && c0 == 'v') {
+			positions = ensure(positions, 3 * positionCount + 3);
+			readFloats(positions, 3 * positionCount, 3, "Malformed vertex position specification: ");
+			positionCount++;
+		} else if (keyLength == 2 && c0 == 'v' && c1 == 't') {
+			uvs = ensure(uvs, 2 * uvCount + 2);
+			readFloats(uvs, 2 * uvCount, 2, "Malformed vertex texture coordinate specification: ");
+			uvCount++;
+		} else if (keyLength == 2 && c0 == 'v' && c1 == 'n') {
+			normals = ensure(normals, 3 * normalCount + 3);
+			readFloats(normals, 3 * normalCount, 3, "Malformed vertex normal specification: ");
+			normalCount++;
+		} else if (keyLength == 1 && c0 == 'f') {
+			readFace();
+		} else if (keyLength == 1 && (c0 == 's' || c0 == 'o')) {
+			return;
+		} else {
+			String key = new String(buf, keyStart, keyLength, StandardCharsets.US_ASCII);
+			if (warned.add(key))
+				System.err.println("Warning: ignored unrecognized OBJ specifier: " + key);
+		}
+	}
+
+	/**
+	 * Read exactly count floats from the rest of the line into out[offset...].
+	 */
+	private void readFloats(float[] out, int offset, int count, String error) throws OBJFileFormatException {
+		for (int k = 0; k < count; k++) {
+			skipSpace();
+			if (pos == lineEnd)
+				throw new OBJFileFormatException(error + line());
+			int tokenStart = pos;
+			while (pos < lineEnd && !isSpace(buf[pos]))
+				pos++;
+			out[offset + k] = parseFloat(buf, tokenStart, pos);
+		}
+		skipSpace();
+		if (pos != lineEnd)
+			throw new OBJFileFormatException(error + line());
+	}
+
+	private void readFace() throws OBJFileFormatException {
+		int first = vertexCount;
+		while (true) {
+			skipSpace();
+			if (pos == lineEnd)
+				break;
+			if (vertexCount == vertexPositions.length) {
+				int n = 2 * vertexPositions.length;
+				vertexPositions = Arrays.copyOf(vertexPositions, n);
+				vertexUVs = Arrays.copyOf(vertexUVs, n);
+				vertexNormals = Arrays.copyOf(vertexNormals, n);
+			}
+			int end = pos;
+			while (end < lineEnd && !isSpace(buf[end]))
+				end++;
+
+			// p, p/t, p/t/n or p//n
+			int slash = indexOf('/', pos, end);
+			vertexPositions[vertexCount] = index(pos, slash, 0, positionCount);
+			vertexUVs[vertexCount] = MISSING;
+			vertexNormals[vertexCount] = MISSING;
+			if (slash < end) {
+				int slash2 = indexOf('/', slash + 1, end);
+				if (slash2 > slash + 1)
+					vertexUVs[vertexCount] = index(slash + 1, slash2, 1, uvCount);
+				if (slash2 < end) {
+					if (indexOf('/', slash2 + 1, end) < end)
+						throw new OBJFileFormatException("Malformed face specification: " + line());
+					if (end > slash2 + 1)
+						vertexNormals[vertexCount] = index(slash2 + 1, end, 2, normalCount);
+				}
+			}
+			vertexCount++;
+			pos = end;
+		}
+		if (vertexCount - first < 3) {
+			vertexCount = first;
+			throw new OBJFileFormatException("Malformed face specification: " + line());
+		}
+		faceCount++;
+		if (faceCount + 1 > faceStarts.length)
+			faceStarts = Arrays.copyOf(faceStarts, 2 * faceStarts.length);
+		faceStarts[faceCount] = vertexCount;
+	}
+
+	/**
+	 * @param kind 0, 1 or 2 for a position, uv or normal index
+	 * @param count the number of elements of that kind read so far
+	 * @return the OBJFace index of the OBJ index in buf[start] to buf[end - 1], which
+	 * is 1-based, or counts back from the last element read if it is negative
+	 */
+	private int index(int start, int end, int kind, int count) throws OBJFileFormatException {
+		if (start == end)
+			throw new OBJFileFormatException("Malformed face specification: " + line());
+		int index = parseInt(buf, start, end);
+		if (index >= 0)
+			return index + OBJFace.indexBase - 1;
+		if (relativeCount == relative.length)
+			relative = Arrays.copyOf(relative, 2 * relative.length);
+		relative[relativeCount++] = 3 * vertexCount + kind;
+		return count + index + OBJFace.indexBase;
+	}
+
+	private int indexOf(int b, int start, int end) {
+		while (start < end && buf[start] != b)
+			start++;
+		return start;
+	}
+
+	private void skipSpace() {
+		while (pos < lineEnd && isSpace(buf[pos]))
+			pos++;
+	}
+
+	private String line() {
+		int end = lineEnd;
+		if (end > lineStart && buf[end - 1] == '\r')
+			end--;
+		return new String(buf, lineStart, end - lineStart, StandardCharsets.US_ASCII);
+	}
+
+	/** The characters \s matches. */
+	static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B || b == '\n';
+	}
+
+	private static float[] ensure(float[] array, int length) {
+		return length <= array.length ? array : Arrays.copyOf(array, Math.max(length, 2 * array.length));
+	}
+
+	/**
+	 * Parse the decimal number in b[start] to b[end - 1] exactly as Float.parseFloat
+	 * would.
+	 */
+	static float parseFloat(byte[] b, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (b[i] == '-' || b[i] == '+'))
+			negative = b[i++] == '-';
+
+		// The significant digits, up to 19 of which fit in a long, and the power of
+		// ten they are scaled by.
+		long mantissa = 0;
+		int digits = 0, scale = 0;
+		boolean any = false;
+		for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+			mantissa = 10 * mantissa + (b[i] - '0');
+			if (mantissa != 0)
+				digits++;
+			any = true;
+		}
+		if (i < end && b[i] == '.') {
+			for (i++; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+				mantissa = 10 * mantissa + (b[i] - '0');
+				if (mantissa != 0)
+					digits++;
+				scale--;
+				any = true;
+			}
+		}
+		if (any && i < end && (b[i] == 'e' || b[i] == 'E')) {
+			int j = i + 1;
+			boolean negativeExponent = false;
+			if (j < end && (b[j] == '-' || b[j] == '+'))
+				negativeExponent = b[j++] == '-';
+			int exponent = 0;
+			int exponentStart = j;
+			for (; j < end && b[j] >= '0' && b[j] <= '9' && exponent < 1000; j++)
+				exponent = 10 * exponent + (b[j] - '0');
+			if (j > exponentStart) {
+				scale += negativeExponent ? -exponent : exponent;
+				i = j;
+			}
+		}
+
+		if (any && i == end && digits <= 19 && scale >= -22 && scale <= 22) {
+			// Converting the mantissa and scaling it by an exact power of ten rounds
+			// twice, so d is within 2 units in the last place of the exact value. Unless
+			// that is close to halfway between two floats, rounding d to a float then
+			// gives the same float as rounding the exact value.
+			double d = (double) mantissa;
+			d = scale < 0 ? d / POW10[-scale] : d * POW10[scale];
+			int low = (int) (Double.doubleToRawLongBits(d) & FLOAT_DROPPED_BITS);
+			if (Math.abs(low - FLOAT_HALFWAY) > 8 && (d == 0 || (d >= Float.MIN_NORMAL && d <= Float.MAX_VALUE))) {
+				float f = (float) d;
+				return negative ? -f : f;
+			}
+		}
+		return Float.parseFloat(new String(b, start, end - start, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Parse the integer in b[start] to b[end - 1] exactly as Integer.parseInt would.
+	 */
+	static int parseInt(byte[] b, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (b[i] == '-' || b[i] == '+'))
+			negative = b[i++] == '-';
+		// Nine digits cannot overflow an int.
+		if (i < end && end - i <= 9) {
+			int value = 0;
+			for (; i < end && b[i] >= '0' && b[i] <= '9'; i++)
+				value = 10 * value + (b[i] - '0');
+			if (i == end)
+				return negative ? -value : value;
+		}
+		return Integer.parseInt(new String(b, start, end - start, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * @return what has been parsed as a FlatMesh, which gives the same data as toMesh()
+	 * without an object per element and face
+	 */
+	public FlatMesh toFlatMesh() {
+		int[] starts = Arrays.copyOf(faceStarts, faceCount + 1);
+		int[] flatPositions = new int[vertexCount], flatUVs = new int[vertexCount], flatNormals = new int[vertexCount];
+		for (int f = 0; f < faceCount; f++) {
+			int first = faceStarts[f], last = faceStarts[f + 1];
+			boolean hasUVs = false, hasNormals = false;
+			for (int v = first; v < last; v++) {
+				hasUVs |= vertexUVs[v] != MISSING;
+				hasNormals |= vertexNormals[v] != MISSING;
+			}
+			// The same indices toMesh() gives the OBJFace, made 0-based
+			for (int v = first; v < last; v++) {
+				flatPositions[v] = vertexPositions[v] - OBJFace.indexBase;
+				flatUVs[v] = !hasUVs ? -1 : (vertexUVs[v] == MISSING ? 0 : vertexUVs[v]) - OBJFace.indexBase;
+				flatNormals[v] = !hasNormals ? -1 : (vertexNormals[v] == MISSING ? 0 : vertexNormals[v]) - OBJFace.indexBase;
+			}
+		}
+		return new FlatMesh(Arrays.copyOf(positions, 3 * positionCount), Arrays.copyOf(uvs, 2 * uvCount),
+				Arrays.copyOf(normals, 3 * normalCount), starts, flatPositions, flatUVs, flatNormals);
+	}
+
+	/**
+	 * Replace the contents of mesh with what has been parsed.
+	 */
+	public void toMesh(OBJMesh mesh) {
+		mesh.positions.clear();
+		mesh.uvs.clear();
+		mesh.normals.clear();
+		mesh.faces.clear();
+		mesh.positions.ensureCapacity(positionCount);
+		mesh.uvs.ensureCapacity(uvCount);
+		mesh.normals.ensureCapacity(normalCount);
+		mesh.faces.ensureCapacity(faceCount);
+		for (int i = 0; i < positionCount; i++)
+			mesh.positions.add(new Vector3(positions[3 * i], positions[3 * i + 1], positions[3 * i + 2]));
+		for (int i = 0; i < uvCount; i++)
+			mesh.uvs.add(new Vector2(uvs[2 * i], uvs[2 * i + 1]));
+		for (int i = 0; i < normalCount; i++)
+			mesh.normals.add(new Vector3(normals[3 * i], normals[3 * i + 1], normals[3 * i + 2]));
+
+		for (int f = 0; f < faceCount; f++) {
+			int first = faceStarts[f], n = faceStarts[f + 1] - first;
+			boolean hasUVs = false, hasNormals = false;
+			for (int v = first; v < first + n; v++) {
+				hasUVs |= vertexUVs[v] != MISSING;
+				hasNormals |= vertexNormals[v] != MISSING;
+			}
+			// As in the split-based parser, a vertex without an index of a kind the
+			// rest of its face has gets 0.
+			OBJFace face = new OBJFace(n, hasUVs, hasNormals);
+			for (int k = 0; k < n; k++) {
+				int v = first + k;
+				face.positions[k] = vertexPositions[v];
+				if (hasUVs)
+					face.uvs[k] = vertexUVs[v] == MISSING ? 0 : vertexUVs[v];
+				if (hasNormals)
+					face.normals[k] = vertexNormals[v] == MISSING ? 0 : vertexNormals[v];
+			}
+			mesh.faces.add(face);
+		}
+	}
+}
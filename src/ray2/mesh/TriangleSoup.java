@@ -0,0 +1,201 @@
+package ray2.mesh;
+
+import egl.math.Matrix4d;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+
+/**
+ * The triangles of a mesh baked into world space once, for static scenes.
+ *
+ * The data needed to intersect triangle i is kept in structure-of-arrays form:
+ * its first vertex (v0x, v0y, v0z) and the edge vectors v0 - v1 (ax, ay, az) and
+ * v0 - v2 (bx, by, bz), all already transformed by the mesh's transformation. A ray
+ * can then be tested against it directly, with no matrix multiply and no lookups
+ * through OBJFace and ArrayList<Vector3>.
+ *
+ * The data only needed once a hit has been found is stored per triangle: three
+ * world-space vertex normals (9 doubles) and, if the mesh has texture coordinates,
+ * three uvs (6 doubles). Faces without normals get their face normal at every vertex.
+ */
+public class TriangleSoup {
+
+	/** The number of triangles. */
+	public final int size;
+
+	/** The first vertex of each triangle. */
+	public final double[] v0x, v0y, v0z;
+
+	/** The edge v0 - v1 of each triangle. */
+	public final double[] ax, ay, az;
+
+	/** The edge v0 - v2 of each triangle. */
+	public final double[] bx, by, bz;
+
+	/** World-space vertex normals, 9 per triangle; not normalized. */
+	public final double[] normals;
+
+	/** Texture coordinates, 6 per triangle, or null if no face has any. */
+	public final double[] uvs;
+
+	/** Whether each triangle has texture coordinates. */
+	public final boolean[] hasUVs;
+
+	/** World-space bounds, 6 per triangle: minX, minY, minZ, maxX, maxY, maxZ. */
+	public final double[] bounds;
+
+	/** World-space vertex averages, 3 per triangle. */
+	public final double[] centroids;
+
+	/**
+	 * Allocate a soup of size triangles whose arrays are filled in by the caller, as
+	 * when it is read back from a cache file.
+	 *
+	 * @param size the number of triangles
+	 * @param withUVs whether to allocate texture coordinates
+	 */
+	public TriangleSoup(int size, boolean withUVs) {
+		this.size = size;
+		v0x = new double[size];
+		v0y = new double[size];
+		v0z = new double[size];
+		ax = new double[size];
+		ay = new double[size];
+		az = new double[size];
+		bx = new double[size];
+		by = new double[size];
+		bz = new double[size];
+		normals = new double[9 * size];
+		uvs = withUVs ? new double[6 * size] : null;
+		hasUVs = new boolean[size];
+		bounds = new double[6 * size];
+		centroids = new double[3 * size];
+	}
+
+	/**
+	 * Bake the triangles of mesh, transformed by tMat.
+	 *
+	 * @param mesh the mesh to bake, an OBJMesh or a BinaryMesh; only the first three
+	 * vertices of each face are used
+	 * @param tMat the object-to-world transformation
+	 * @param tMatTInv the inverse transpose of tMat, used for normals
+	 */
+	public TriangleSoup(MeshData mesh, Matrix4d tMat, Matrix4d tMatTInv) {
+		size = mesh.getFaceCount();
+		v0x = new double[size];
+		v0y = new double[size];
+		v0z = new double[size];
+		ax = new double[size];
+		ay = new double[size];
+		az = new double[size];
+		bx = new double[size];
+		by = new double[size];
+		bz = new double[size];
+		normals = new double[9 * size];
+		hasUVs = new boolean[size];
+		bounds = new double[6 * size];
+		centroids = new double[3 * size];
+
+		boolean anyUVs = false;
+		for (int i = 0; i < size; i++)
+			anyUVs |= mesh.hasUVs(i);
+		uvs = anyUVs ? new double[6 * size] : null;
+
+		Vector3d[] p = { new Vector3d(), new Vector3d(), new Vector3d() };
+		Vector3d n = new Vector3d();
+		Vector3d e0 = new Vector3d(), e1 = new Vector3d();
+		Vector2d uv = new Vector2d();
+		for (int i = 0; i < size; i++) {
+			for (int k = 0; k < 3; k++)
+				mesh.getPosition(i, k, p[k]);
+
+			// Normals first, while the positions are still in object space
+			if (mesh.hasNormals(i)) {
+				for (int k = 0; k < 3; k++) {
+					tMatTInv.mulDir(mesh.getNormal(i, k, n));
+					setTriple(normals, 9 * i + 3 * k, n);
+				}
+			} else {
+				e0.set(p[1]).sub(p[0]);
+				e1.set(p[2]).sub(p[0]);
+				tMatTInv.mulDir(n.set(e0).cross(e1).normalize()).normalize();
+				for (int k = 0; k < 3; k++)
+					setTriple(normals, 9 * i + 3 * k, n);
+			}
+
+			if (mesh.hasUVs(i)) {
+				hasUVs[i] = true;
+				for (int k = 0; k < 3; k++) {
+					mesh.getUV(i, k, uv);
+					uvs[6 * i + 2 * k] = uv.x;
+					uvs[6 * i + 2 * k + 1] = uv.y;
+				}
+			}
+
+			for (int k = 0; k < 3; k++)
+				tMat.mulPos(p[k]);
+			v0x[i] = p[0].x;
+			v0y[i] = p[0].y;
+			v0z[i] = p[0].z;
+			ax[i] = p[0].x - p[1].x;
+			ay[i] = p[0].y - p[1].y;
+			az[i] = p[0].z - p[1].z;
+			bx[i] = p[0].x - p[2].x;
+			by[i] = p[0].y - p[2].y;
+			bz[i] = p[0].z - p[2].z;
+
+			int b = 6 * i;
+			bounds[b] = Math.min(p[0].x, Math.min(p[1].x, p[2].x));
+			bounds[b + 1] = Math.min(p[0].y, Math.min(p[1].y, p[2].y));
+			bounds[b + 2] = Math.min(p[0].z, Math.min(p[1].z, p[2].z));
+			bounds[b + 3] = Math.max(p[0].x, Math.max(p[1].x, p[2].x));
+			bounds[b + 4] = Math.max(p[0].y, Math.max(p[1].y, p[2].y));
+			bounds[b + 5] = Math.max(p[0].z, Math.max(p[1].z, p[2].z));
+			setTriple(centroids, 3 * i, p[0].add(p[1]).add(p[2]).div(3d));
+		}
+	}
+
+	/**
+	 * @param order the index in this soup of each triangle of the new soup
+	 * @return a copy of this soup with its triangles in the given order
+	 */
+	public TriangleSoup permute(int[] order) {
+		TriangleSoup out = new TriangleSoup(order.length, uvs != null);
+		for (int i = 0; i < order.length; i++) {
+			int j = order[i];
+			out.v0x[i] = v0x[j];
+			out.v0y[i] = v0y[j];
+			out.v0z[i] = v0z[j];
+			out.ax[i] = ax[j];
+			out.ay[i] = ay[j];
+			out.az[i] = az[j];
+			out.bx[i] = bx[j];
+			out.by[i] = by[j];
+			out.bz[i] = bz[j];
+			System.arraycopy(normals, 9 * j, out.normals, 9 * i, 9);
+			if (uvs != null)
+				System.arraycopy(uvs, 6 * j, out.uvs, 6 * i, 6);
+			out.hasUVs[i] = hasUVs[j];
+			System.arraycopy(bounds, 6 * j, out.bounds, 6 * i, 6);
+			System.arraycopy(centroids, 3 * j, out.centroids, 3 * i, 3);
+		}
+		return out;
+	}
+
+	/**
+	 * Set min and max to the bounds of all the triangles.
+	 */
+	public void getBounds(Vector3d min, Vector3d max) {
+		min.set(Double.POSITIVE_INFINITY);
+		max.set(Double.NEGATIVE_INFINITY);
+		for (int b = 0; b < bounds.length; b += 6) {
+			min.set(Math.min(min.x, bounds[b]), Math.min(min.y, bounds[b + 1]), Math.min(min.z, bounds[b + 2]));
+			max.set(Math.max(max.x, bounds[b + 3]), Math.max(max.y, bounds[b + 4]), Math.max(max.z, bounds[b + 5]));
+		}
+	}
+
+	private static void setTriple(double[] array, int offset, Vector3d v) {
+		array[offset] = v.x;
+		array[offset + 1] = v.y;
+		array[offset + 2] = v.z;
+	}
+}
@@ -45,33 +45,39 @@ public abstract class BRDFShader extends Shader {
 		//    the intersection point from the light's position.
 		// 4) Compute the color of the point using the CookTorrance shading model. Add this value
 		//    to the output.
-		Colord texColor = new Colord();
+		// Look up the texture into a local color rather than the shared diffuseColor,
+		// so that shaders can be used from several render threads at once.
+		Colord kD = diffuseColor;
 		if (texture != null) {
-			texColor = texture.getTexColor(new Vector2d(iRec.texCoords));
-			setDiffuseColor(texColor);
+			kD = texture.getTexColor(new Vector2d(iRec.texCoords));
 		}
 		
+		// Scratch objects for the light loop. They are local to this call because
+		// shaders are shared between render threads.
+		LightSamplingRecord lRec = new LightSamplingRecord();
+		Ray shadowRay = new Ray();
+		Vector3d L = new Vector3d();
+		Vector3d V = new Vector3d(ray.direction).negate().normalize();
+		Vector3d N = new Vector3d(iRec.normal).normalize();
+		Colord outColor = new Colord();
+		Colord intensity = new Colord();
+
 		outIntensity.setZero();
 		for (Light light : scene.getLights()) {
-//			System.out.println("[BRDFshader]: getting lights");
-			LightSamplingRecord lRec = new LightSamplingRecord();
 			light.sample(lRec, iRec.location);
-//			System.out.println(iRec.location);
-			if (!isShadowed(scene, lRec, iRec, new Ray())) {
-				Vector3d L = lRec.direction.clone().normalize();
-				Vector3d V = ray.direction.clone().negate().normalize();
-				Vector3d N = iRec.normal.clone().normalize();
-				double cos = Math.max(0, L.clone().dot(N));
-				Colord outColor = new Colord();
-				evalBRDF(L, V, N, diffuseColor, outColor);
-				Vector3d intensity = light.intensity.clone();
+			if (!isShadowed(scene, lRec, iRec, shadowRay)) {
+				L.set(lRec.direction).normalize();
+				double cos = Math.max(0, L.dot(N));
+				evalBRDF(L, V, N, kD, outColor);
+				intensity.set(light.intensity);
 				
 				// extension : SpotLight
 				if (light instanceof SpotLight) {
-					Vector3d lDir = ((SpotLight) light).direction.clone().normalize();
-					double thetaF = ((SpotLight) light).falloffAngle;
-					double thetaB = ((SpotLight) light).beamAngle;
-					double angle = Math.acos(lRec.direction.clone().normalize().negate().dot(lDir));
+					SpotLight spot = (SpotLight) light;
+					Vector3d lDir = spot.direction.clone().normalize();
+					double thetaF = spot.falloffAngle;
+					double thetaB = spot.beamAngle;
+					double angle = Math.acos(-L.dot(lDir));
 					double ratio = 1d;
 					if (angle <= thetaB) ratio = 1d;
 					else if(angle <= thetaF) ratio = -(angle - thetaF) / (thetaF - thetaB);
@@ -20,7 +20,7 @@ public class Lambertian extends BRDFShader {
 	@Override
 	protected void evalBRDF(Vector3d L, Vector3d V, Vector3d N, Colord kD,
 			Colord outColor) {
-		outColor.set(diffuseColor);
+		outColor.set(kD);
 	}
 
 }
\ No newline at end of file
@@ -2,10 +2,12 @@ package ray2.shader;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 
 import javax.imageio.ImageIO;
 
 import ray2.RayTracer;
+import ray2.ResourceCache;
 import egl.math.Colord;
 import egl.math.Vector2d;
 
@@ -21,18 +23,32 @@ public abstract class Texture {
 	protected BufferedImage image;
 	/** Return the BufferedImage used for lookup. */
 	public BufferedImage getImage() { return image; }
-	/** Set the BufferedImage from a given file on disk. */
+	/** Set the BufferedImage from a given file on disk, shared through the ResourceCache. */
 	public void setImage(String filename) {
-		System.out.println("Loading: " + RayTracer.sceneWorkspace.resolve(filename));
 		try {
 			File f = new File(RayTracer.sceneWorkspace.resolve(filename));
-			image = ImageIO.read(f);
+			image = ResourceCache.get(f, IMAGE_LOADER);
 		} catch (Exception e) {
 			System.err.println("Error loading texture: " + e);
 			System.exit(1);
 		}
 	}
 	
+	/** Reads image files for the ResourceCache. */
+	private static final ResourceCache.Loader<BufferedImage> IMAGE_LOADER = new ResourceCache.Loader<BufferedImage>("image") {
+		public BufferedImage load(File file) throws IOException {
+			System.out.println("Loading: " + file);
+			BufferedImage image = ImageIO.read(file);
+			if (image == null)
+				throw new IOException("Unsupported image format: " + file);
+			return image;
+		}
+
+		public long size(BufferedImage image) {
+			return 4L * image.getWidth() * image.getHeight();
+		}
+	};
+
 	/** Default constructor. Creates an empty Texture object. */
 	public Texture() {	}
 	
@@ -0,0 +1,151 @@
+package ray2.surface;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.accel.AccelStruct;
+import ray2.accel.LinearBvh;
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
+
+/**
+ * A surface made of other surfaces that keep their own acceleration structure,
+ * such as the triangles of a mesh read back from a BVH cache file. The scene's
+ * acceleration structure sees it as a single surface with the bounds of all of
+ * them, and hands rays that reach it on to the inner structure.
+ *
+ * The inner surfaces are in world space, and intersection records name the inner
+ * surface that was hit, so shading is unchanged.
+ */
+public class AccelSurface extends Surface {
+
+	/** The structure holding the inner surfaces. */
+	final AccelStruct accel;
+
+	/** The bounds of the inner surfaces. */
+	final Vector3d innerMin, innerMax;
+
+	/**
+	 * @param accel an acceleration structure already built over the inner surfaces
+	 * @param min the smallest coordinates of the inner surfaces
+	 * @param max the largest coordinates of the inner surfaces
+	 */
+	public AccelSurface(AccelStruct accel, Vector3d min, Vector3d max) {
+		this.accel = accel;
+		this.innerMin = new Vector3d(min);
+		this.innerMax = new Vector3d(max);
+	}
+
+	/** @return the structure holding the inner surfaces */
+	public AccelStruct getAccelStruct() { return accel; }
+
+	/**
+	 * Per-thread stack of rays in the space of the inner surfaces, one per level of
+	 * placed structures nested in each other, so that intersectPlaced does not allocate.
+	 */
+	private static final ThreadLocal<RayStack> localRays = new ThreadLocal<RayStack>() {
+		@Override
+		protected RayStack initialValue() {
+			return new RayStack();
+		}
+	};
+
+	static class RayStack {
+		Ray[] rays = new Ray[0];
+		int depth;
+
+		Ray push() {
+			if (depth == rays.length) {
+				rays = Arrays.copyOf(rays, depth + 1);
+				rays[depth] = new Ray();
+			}
+			return rays[depth++];
+		}
+	}
+
+	/**
+	 * Build surfaces, already transformed into the space they are to be traced in, into
+	 * a LinearBvh with SAH splits.
+	 *
+	 * @param surfaces the renderable surfaces to build over
+	 * @return an AccelSurface over surfaces
+	 */
+	public static AccelSurface build(List<Surface> surfaces) {
+		Vector3d min = new Vector3d(Double.POSITIVE_INFINITY);
+		Vector3d max = new Vector3d(Double.NEGATIVE_INFINITY);
+		for (Surface s : surfaces) {
+			Vector3d sMin = s.getMinBound(), sMax = s.getMaxBound();
+			min.set(Math.min(min.x, sMin.x), Math.min(min.y, sMin.y), Math.min(min.z, sMin.z));
+			max.set(Math.max(max.x, sMax.x), Math.max(max.y, sMax.y), Math.max(max.z, sMax.z));
+		}
+		LinearBvh bvh = new LinearBvh();
+		bvh.setSplitMethod("sah");
+		bvh.build(surfaces.toArray(new Surface[surfaces.size()]));
+		AccelSurface surface = new AccelSurface(bvh, min, max);
+		Matrix4d identity = new Matrix4d();
+		surface.setTransformation(identity, identity, identity);
+		return surface;
+	}
+
+	/**
+	 * Intersect ray with the inner surfaces. As with any surface, outRecord may be
+	 * null when only the existence of a hit is needed; the inner structure then
+	 * answers with an occlusion query.
+	 *
+	 * @param outRecord the output IntersectionRecord, or null
+	 * @param ray the ray to intersect, in world space
+	 * @return true if an inner surface intersects the ray
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray ray) {
+		if (outRecord == null)
+			return accel.occluded(ray);
+		return accel.intersect(outRecord, ray, false);
+	}
+
+	/**
+	 * Intersect ray with the inner surfaces as placed in the scene by owner, whose
+	 * transformation takes them from their own space to world space. The ray is
+	 * transformed into their space once, and the hit back into world space. The
+	 * parameter t of the hit is the same in both spaces, since the direction is
+	 * transformed without being normalized.
+	 *
+	 * @param owner the surface that places this one, such as an Instance
+	 * @param outRecord the output IntersectionRecord, or null
+	 * @param ray the ray to intersect, in world space
+	 * @return true if an inner surface intersects the ray
+	 */
+	boolean intersectPlaced(Surface owner, IntersectionRecord outRecord, Ray ray) {
+		RayStack stack = localRays.get();
+		Ray local = owner.untransformRay(ray, stack.push());
+		try {
+			if (!intersect(outRecord, local))
+				return false;
+		} finally {
+			stack.depth--;
+		}
+		if (outRecord != null) {
+			owner.tMat.mulPos(outRecord.location);
+			owner.tMatTInv.mulDir(outRecord.normal).normalize();
+		}
+		return true;
+	}
+
+	/**
+	 * The inner surfaces are already in world space, so the bounds are the ones given
+	 * at construction.
+	 */
+	public void computeBoundingBox() {
+		minBound = new Vector3d(innerMin);
+		maxBound = new Vector3d(innerMax);
+		averagePosition = new Vector3d(innerMin).add(innerMax).mul(0.5);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "AccelSurface " + accel.getClass().getSimpleName();
+	}
+}
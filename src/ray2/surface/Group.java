@@ -1,9 +1,11 @@
 package ray2.surface;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import ray2.IntersectionRecord;
+import ray2.Keyframe;
 import ray2.Ray;
 import egl.math.Matrix4d;
 import egl.math.Vector3d;
@@ -18,6 +20,34 @@ public class Group extends Surface {
   
   /** A shared temporary matrix */
   static Matrix4d tmp = new Matrix4d();
+
+  /**
+   * Whether this group keeps its children in an acceleration structure of their own,
+   * built in the space of the group. The scene's structure then holds the group as a
+   * single surface, so moving the group only changes its bounds and the structure of
+   * the children is kept. Scene.setTwoLevel sets this for every top-level group.
+   */
+  boolean twoLevel;
+  public void setTwoLevel(boolean twoLevel) {
+    if (twoLevel != this.twoLevel)
+      local = null;
+    this.twoLevel = twoLevel;
+  }
+  public boolean isTwoLevel() { return twoLevel; }
+
+  /** The children built into their own structure, or null until it is next needed. */
+  private AccelSurface local;
+
+  /** Keyframes of the translate, rotate and scale of this group, sorted by frame. */
+  ArrayList<Keyframe> keys = new ArrayList<Keyframe>();
+  public void addKey(Keyframe key) { Keyframe.insert(keys, key); }
+
+  /**
+   * The transformation given by the keyframes at the current frame. It is applied
+   * before transformMat, so the fixed translate, rotate and scale of the group place
+   * the animated group in its parent.
+   */
+  private Matrix4d keyMat = new Matrix4d();
   
   public Group() {
     transformMat = new Matrix4d();
@@ -36,9 +66,17 @@ public class Group extends Surface {
     // i.e. The child's transformation will be applied to objects before its parent's.
 	    
 	/** To calculate tMatInv, we can also left compose pMatInv with the inverse of transformMat */
-	tMat = new Matrix4d(transformMat).mulAfter(pMat);
+	tMat = new Matrix4d(keyMat).mulAfter(transformMat).mulAfter(pMat);
     tMatInv = new Matrix4d(tMat).invert();
     tMatTInv = new Matrix4d(tMat).transpose().invert();
+
+    // A two-level group keeps its children in its own space, built once.
+    if (twoLevel) {
+      if (local == null)
+        buildLocal();
+      computeBoundingBox();
+      return;
+    }
     
     // Call setTransformation(tMat, tMatInv, tMatTInv) on each of the children.
     for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();) {
@@ -72,12 +110,102 @@ public class Group extends Surface {
   
   public void addSurface(Surface a) {
     objs.add(a);
+    local = null;
+  }
+
+  /**
+   * Move this group and the groups under it to a frame of the scene's sequence. The
+   * new transformations take effect at the next setTransformation.
+   *
+   * @param frame the frame to move to
+   * @return true if the transformation of this group or of anything under it changed
+   */
+  public boolean setFrame(int frame) {
+    boolean childMoved = false;
+    for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();) {
+      Surface currSurface = iter.next();
+      if (currSurface instanceof Group && ((Group) currSurface).setFrame(frame))
+        childMoved = true;
+    }
+    // The structure of a two-level group holds its children as they were.
+    if (childMoved)
+      local = null;
+    if (keys.isEmpty())
+      return childMoved;
+
+    Matrix4d mat = new Matrix4d();
+    Vector3d v = new Vector3d();
+    if (Keyframe.evaluate(keys, Keyframe.SCALE, frame, v))
+      mat.mulAfter(Matrix4d.createScale(v));
+    if (Keyframe.evaluate(keys, Keyframe.ROTATE, frame, v)) {
+      mat.mulAfter(Matrix4d.createRotationX(v.x * Math.PI/180));
+      mat.mulAfter(Matrix4d.createRotationY(v.y * Math.PI/180));
+      mat.mulAfter(Matrix4d.createRotationZ(v.z * Math.PI/180));
+    }
+    if (Keyframe.evaluate(keys, Keyframe.TRANSLATE, frame, v))
+      mat.mulAfter(Matrix4d.createTranslation(v));
+    boolean moved = !Arrays.equals(mat.m, keyMat.m);
+    keyMat = mat;
+    return moved || childMoved;
+  }
+
+  /**
+   * Mark the children of this group as changed, for instance after a group nested in it
+   * has moved, so that a two-level group rebuilds their structure when its
+   * transformation is next set.
+   */
+  public void invalidate() {
+    local = null;
+  }
+
+  /**
+   * Build the children, transformed into the space of this group, into their own
+   * acceleration structure.
+   */
+  private void buildLocal() {
+    long start = System.currentTimeMillis();
+    Matrix4d identity = new Matrix4d();
+    ArrayList<Surface> surfaces = new ArrayList<Surface>();
+    for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();) {
+      Surface currSurface = iter.next();
+      currSurface.setTransformation(identity, identity, identity);
+      currSurface.appendRenderableSurfaces(surfaces);
+    }
+    if (surfaces.isEmpty())
+      return;
+    if (surfaces.size() == 1 && surfaces.get(0) instanceof AccelSurface)
+      local = (AccelSurface) surfaces.get(0);
+    else
+      local = AccelSurface.build(surfaces);
+    System.out.println("Built group over " + surfaces.size() + " surfaces in "
+        + ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
   }
   
-  public boolean intersect(IntersectionRecord outRecord, Ray ray) { return false; }
-  public void computeBoundingBox() {  }
+  public boolean intersect(IntersectionRecord outRecord, Ray ray) {
+    if (local == null)
+      return false;
+    return local.intersectPlaced(this, outRecord, ray);
+  }
+
+  /**
+   * Only a two-level group is a surface of its own, with the bounds of its children
+   * transformed into the space of its parent.
+   */
+  public void computeBoundingBox() {
+    if (local == null)
+      return;
+    minBound = new Vector3d();
+    maxBound = new Vector3d();
+    averagePosition = new Vector3d();
+    getTransformedBoundingBox(local.innerMin, local.innerMax, tMat, minBound, maxBound, averagePosition);
+  }
 
   public void appendRenderableSurfaces (ArrayList<Surface> in) {
+    if (twoLevel) {
+      if (local != null)
+        in.add(this);
+      return;
+    }
     for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();)
       iter.next().appendRenderableSurfaces(in);
   }
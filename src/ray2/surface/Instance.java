@@ -0,0 +1,91 @@
+package ray2.surface;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
+
+/**
+ * One placement of a Prototype in the scene, with its own transformation.
+ *
+ * The scene's acceleration structure sees an instance as a single surface with the
+ * transformed bounds of its prototype. A ray that reaches it is transformed into the
+ * prototype's space once and traced through the shared bottom-level structure, and
+ * the hit is transformed back. However often a prototype is placed, its triangles
+ * and their structure exist once.
+ *
+ * Transformations are given as in a Group, and apply on top of those of the groups
+ * the instance is in.
+ */
+public class Instance extends Surface {
+
+	/** The geometry this instance places. */
+	protected Prototype prototype;
+	public void setPrototype(Prototype prototype) { this.prototype = prototype; }
+	public Prototype getPrototype() { return prototype; }
+
+	/** The transformation of this instance relative to its parent. */
+	private Matrix4d transformMat = new Matrix4d();
+
+	/** A shared temporary matrix */
+	private static Matrix4d tmp = new Matrix4d();
+
+	public void setTranslate(Vector3d T) {
+		Matrix4d.createTranslation(T, tmp);
+		transformMat.mulAfter(tmp);
+	}
+
+	public void setRotate(Vector3d R) {
+		Matrix4d.createRotationX(R.x * Math.PI / 180, tmp);
+		transformMat.mulAfter(tmp);
+		Matrix4d.createRotationY(R.y * Math.PI / 180, tmp);
+		transformMat.mulAfter(tmp);
+		Matrix4d.createRotationZ(R.z * Math.PI / 180, tmp);
+		transformMat.mulAfter(tmp);
+	}
+
+	public void setScale(Vector3d S) {
+		Matrix4d.createScale(S, tmp);
+		transformMat.mulAfter(tmp);
+	}
+
+	/**
+	 * Compose the transformation of this instance with that of its parent. The
+	 * prototype is not transformed: it stays in its own space.
+	 */
+	public void setTransformation(Matrix4d pMat, Matrix4d pMatInv, Matrix4d pMatTInv) {
+		tMat = new Matrix4d(transformMat).mulAfter(pMat);
+		tMatInv = new Matrix4d(tMat).invert();
+		tMatTInv = new Matrix4d(tMat).transpose().invert();
+		computeBoundingBox();
+	}
+
+	/**
+	 * Intersect ray with the prototype, in the prototype's space.
+	 *
+	 * @param outRecord the output IntersectionRecord, or null for an occlusion query
+	 * @param ray the ray to intersect
+	 * @return true if the prototype intersects the ray
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray ray) {
+		return prototype.getAccelSurface().intersectPlaced(this, outRecord, ray);
+	}
+
+	/**
+	 * The bounds of the prototype, transformed into the space of this instance.
+	 */
+	public void computeBoundingBox() {
+		AccelSurface inner = prototype.getAccelSurface();
+		minBound = new Vector3d();
+		maxBound = new Vector3d();
+		averagePosition = new Vector3d();
+		getTransformedBoundingBox(inner.innerMin, inner.innerMax, tMat, minBound, maxBound, averagePosition);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "Instance of " + prototype.getSurface();
+	}
+}
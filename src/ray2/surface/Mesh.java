@@ -1,14 +1,23 @@
 package ray2.surface;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import ray2.accel.BakedMeshBvh;
+import ray2.mesh.BinaryMesh;
+import ray2.mesh.FlatMesh;
+import ray2.mesh.MeshData;
 import ray2.mesh.OBJFace;
 import ray2.mesh.OBJMesh;
-import ray2.mesh.OBJMesh.OBJFileFormatException;
+import ray2.mesh.OBJParser;
+import ray2.mesh.TriangleSoup;
 import ray2.IntersectionRecord;
 import ray2.Ray;
 import ray2.RayTracer;
+import ray2.ResourceCache;
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
 
 /**
  * An interface between a MeshData and the ray tracer. When the Scene calls
@@ -21,9 +30,40 @@ import ray2.RayTracer;
  */
 public class Mesh extends Surface {
 
-	/** The underlying data of this Mesh. */
+	/**
+	 * The underlying data of this Mesh as an OBJMesh: the one it was constructed
+	 * with, or a copy of the data of its file made on request.
+	 */
 	private OBJMesh mesh = null;
 
+	/** The resolved path of the file the data is loaded from, or null. */
+	private String file = null;
+
+	/**
+	 * The data of the file, or null until it is first needed: a FlatMesh parsed from
+	 * an OBJ file, or the mapping of a BinaryMesh file.
+	 */
+	private MeshData data = null;
+
+	/**
+	 * If true, the triangles are baked into a world-space TriangleSoup when the
+	 * scene is built, instead of each Triangle transforming rays into object space.
+	 * BinaryMesh files are always baked, so that their data is read straight from
+	 * the file mapping instead of being copied into an OBJMesh for the Triangles.
+	 */
+	protected boolean bake = false;
+	public void setBake(boolean bake) { this.bake = bake; }
+
+	/**
+	 * If true, the mesh is baked and its triangles are built into their own BVH, which
+	 * is stored in a cache file next to the mesh file (see BakedMeshBvh). Later runs
+	 * with the same file contents and transformation read that file back instead of
+	 * parsing, baking and building again. The scene's acceleration structure then
+	 * holds the whole mesh as a single AccelSurface.
+	 */
+	protected boolean cache = false;
+	public void setCache(boolean cache) { this.cache = cache; }
+
 	/**
 	 * Default constructor; creates an empty mesh.
 	 */
@@ -38,12 +78,15 @@ public class Mesh extends Surface {
 	}
 	
 	/**
-	 * Set the data in this mesh to the data of a mesh on disk.
-	 * @param fileName the name of a .obj file on disk.
+	 * Set the data in this mesh to the data of a mesh on disk. The file is parsed
+	 * when the data is first needed, which with a cache hit is never.
+	 * @param fileName the name of a .obj file, or of a BinaryMesh file ending in
+	 * BinaryMesh.EXTENSION, which is memory-mapped instead of parsed.
 	 */
-	public void setData(String fileName) throws OBJFileFormatException, IOException {
-		System.out.println("Loading " + RayTracer.sceneWorkspace.resolve(fileName));
-		this.mesh = new OBJMesh(RayTracer.sceneWorkspace.resolve(fileName));
+	public void setData(String fileName) {
+		this.file = RayTracer.sceneWorkspace.resolve(fileName);
+		this.mesh = null;
+		this.data = null;
 	}
 	
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {	return false; }
@@ -51,8 +94,27 @@ public class Mesh extends Surface {
 
 	
 	public void appendRenderableSurfaces (ArrayList<Surface> in) {
+		if (cache && file != null) {
+			appendCachedSurfaces(in);
+			return;
+		}
+		if (bake || isBinary()) {
+			appendBakedSurfaces(in);
+			return;
+		}
+
+		MeshData data = getData();
+		if (data instanceof FlatMesh) {
+			for (int i = 0; i < data.getFaceCount(); i++) {
+				Triangle t = new Triangle(this, (FlatMesh) data, i, shader);
+				t.setTransformation(this.tMat, this.tMatInv, this.tMatTInv);
+				t.computeBoundingBox();
+				in.add(t);
+			}
+			return;
+		}
 
-		for (OBJFace f : mesh.faces) {
+		for (OBJFace f : getMesh().faces) {
 			Triangle t = new Triangle(this,f,shader);
 			t.setShader(this.shader);
 			t.setTransformation(this.tMat, this.tMatInv, this.tMatTInv);
@@ -62,7 +124,112 @@ public class Mesh extends Surface {
 		}
 	} 
 	
+	/**
+	 * Bake the mesh into world space and append one SoupTriangle per face.
+	 */
+	private void appendBakedSurfaces(ArrayList<Surface> in) {
+		TriangleSoup soup = new TriangleSoup(getData(), this.tMat, this.tMatTInv);
+		Matrix4d identity = new Matrix4d();
+		for (int i = 0; i < soup.size; i++) {
+			SoupTriangle t = new SoupTriangle(soup, i, shader);
+			t.setTransformation(identity, identity, identity);
+			in.add(t);
+		}
+	}
+
+	/**
+	 * Append the whole mesh as one AccelSurface over its baked triangles, reading
+	 * them and their BVH from the cache file if it is up to date and writing it
+	 * otherwise.
+	 */
+	private void appendCachedSurfaces(ArrayList<Surface> in) {
+		File meshFile = new File(file);
+		BakedMeshBvh bvh = null;
+		try {
+			long start = System.currentTimeMillis();
+			byte[] key = BakedMeshBvh.key(meshFile, this.tMat);
+			File cacheFile = BakedMeshBvh.cacheFile(meshFile, key);
+			bvh = BakedMeshBvh.read(cacheFile, key, shader);
+			if (bvh != null) {
+				System.out.println("Read " + cacheFile + " in " + ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+			} else {
+				bvh = BakedMeshBvh.build(new TriangleSoup(getData(), this.tMat, this.tMatTInv), shader);
+				try {
+					bvh.write(cacheFile, key);
+					System.out.println("Wrote " + cacheFile);
+				} catch (IOException e) {
+					System.err.println("Could not write BVH cache " + cacheFile + ": " + e.getMessage());
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Could not use the BVH cache of " + file + ": " + e.getMessage());
+			if (bvh == null)
+				bvh = BakedMeshBvh.build(new TriangleSoup(getData(), this.tMat, this.tMatTInv), shader);
+		}
+
+		Vector3d min = new Vector3d(), max = new Vector3d();
+		bvh.getSoup().getBounds(min, max);
+		AccelSurface surface = new AccelSurface(bvh, min, max);
+		surface.setShader(shader);
+		Matrix4d identity = new Matrix4d();
+		surface.setTransformation(identity, identity, identity);
+		in.add(surface);
+	}
+
+	/**
+	 * @return true if the data of this mesh is a BinaryMesh file
+	 */
+	private boolean isBinary() {
+		return file != null && BinaryMesh.isBinaryMesh(file);
+	}
+
+	/**
+	 * Parses OBJ files into FlatMeshes for the ResourceCache, so that meshes used by
+	 * several scenes in a run are parsed once.
+	 */
+	private static final ResourceCache.Loader<FlatMesh> OBJ_LOADER = new ResourceCache.Loader<FlatMesh>("mesh") {
+		public FlatMesh load(File file) throws IOException {
+			System.out.println("Loading " + file);
+			return OBJParser.load(file.getPath()).toFlatMesh();
+		}
+
+		public long size(FlatMesh mesh) {
+			return 4L * (mesh.positions.length + mesh.uvs.length + mesh.normals.length + mesh.faceStarts.length
+					+ mesh.vertexPositions.length + mesh.vertexUVs.length + mesh.vertexNormals.length);
+		}
+	};
+
+	/**
+	 * @return the data of this mesh: the OBJMesh it was constructed with, or the data
+	 * of its file, parsed into a FlatMesh or mapped as a BinaryMesh on first use.
+	 * Parsed files are shared through the ResourceCache.
+	 */
+	public MeshData getData() {
+		if (data == null && file != null) {
+			try {
+				if (isBinary()) {
+					System.out.println("Mapping " + file);
+					data = BinaryMesh.map(new File(file));
+				} else {
+					data = ResourceCache.get(new File(file), OBJ_LOADER);
+				}
+			} catch (IOException e) {
+				// Also covers OBJFileFormatException
+				throw new RuntimeException("Could not load mesh " + file, e);
+			}
+		}
+		return data != null ? data : mesh;
+	}
+
+	/**
+	 * @return the data of this mesh as an OBJMesh, copying the data of its file into
+	 * one on first use
+	 */
 	public OBJMesh getMesh() {
+		if (mesh == null && file != null) {
+			MeshData data = getData();
+			mesh = data instanceof BinaryMesh ? ((BinaryMesh) data).toOBJMesh() : ((FlatMesh) data).toOBJMesh();
+		}
 		return this.mesh;
 	}
 }
@@ -0,0 +1,63 @@
+package ray2.surface;
+
+import java.util.ArrayList;
+
+import egl.math.Matrix4d;
+
+/**
+ * Geometry that is placed in the scene any number of times by Instances.
+ *
+ * The surface of a prototype is built once, in its own space, into a bottom-level
+ * acceleration structure that all its instances share. It is never added to the
+ * scene itself; declare it at the top level of the scene, or inside the first
+ * Instance that uses it, and refer to it by name:
+ *
+ *   <prototype name="bunny">
+ *     <surface type="Mesh"> ... </surface>
+ *   </prototype>
+ *   <surface type="Instance">
+ *     <prototype ref="bunny" />
+ *     <translate>1 0 0</translate>
+ *   </surface>
+ *
+ * A baked Mesh (see Mesh.setBake) makes the cheapest prototype, since its triangles
+ * then need no transformation of their own; with Mesh.setCache the structure is
+ * also read from its cache file.
+ */
+public class Prototype {
+
+	/** The geometry, in its own space. */
+	protected Surface surface;
+	public void setSurface(Surface surface) { this.surface = surface; }
+	public Surface getSurface() { return surface; }
+
+	/** The bottom-level structure, built on first use. */
+	private AccelSurface accelSurface;
+
+	/**
+	 * @return the surface of this prototype built into its own acceleration
+	 * structure, building it on the first call
+	 */
+	public synchronized AccelSurface getAccelSurface() {
+		if (accelSurface != null)
+			return accelSurface;
+		if (surface == null)
+			throw new IllegalStateException("Prototype has no surface");
+
+		long start = System.currentTimeMillis();
+		Matrix4d identity = new Matrix4d();
+		surface.setTransformation(identity, identity, identity);
+		ArrayList<Surface> surfaces = new ArrayList<Surface>();
+		surface.appendRenderableSurfaces(surfaces);
+
+		if (surfaces.size() == 1 && surfaces.get(0) instanceof AccelSurface) {
+			// A cached mesh already comes with its own structure.
+			accelSurface = (AccelSurface) surfaces.get(0);
+		} else {
+			accelSurface = AccelSurface.build(surfaces);
+		}
+		System.out.println("Built prototype over " + surfaces.size() + " surfaces in "
+				+ ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+		return accelSurface;
+	}
+}
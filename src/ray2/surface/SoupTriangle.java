@@ -0,0 +1,121 @@
+package ray2.surface;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.mesh.TriangleSoup;
+import ray2.shader.Shader;
+import egl.math.Vector3d;
+
+/**
+ * A triangle of a Mesh that has been baked into a world-space TriangleSoup.
+ * Intersection works directly on the soup's arrays, so the ray is never
+ * transformed and the OBJMesh is never consulted.
+ */
+public class SoupTriangle extends Surface {
+
+	/** The soup holding this triangle's data. */
+	final TriangleSoup soup;
+
+	/** The index of this triangle in soup. */
+	final int index;
+
+	public SoupTriangle(TriangleSoup soup, int index, Shader shader) {
+		this.soup = soup;
+		this.index = index;
+		this.setShader(shader);
+	}
+
+	/** @return the index of this triangle in its soup */
+	public int getIndex() { return index; }
+
+	/**
+	 * Tests this surface for intersection with ray. If an intersection is found
+	 * record is filled out with the information about the intersection and the
+	 * method returns true. It returns false otherwise and the information in
+	 * outRecord is not modified.
+	 *
+	 * @param outRecord
+	 *            the output IntersectionRecord
+	 * @param ray
+	 *            the ray to intersect, in world space
+	 * @return true if the surface intersects the ray
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray ray) {
+		TriangleSoup s = soup;
+		int n = index;
+		double a = s.ax[n], b = s.ay[n], c = s.az[n];
+		double d = s.bx[n], e = s.by[n], f = s.bz[n];
+
+		double g = ray.direction.x;
+		double h = ray.direction.y;
+		double i = ray.direction.z;
+		double j = s.v0x[n] - ray.origin.x;
+		double k = s.v0y[n] - ray.origin.y;
+		double l = s.v0z[n] - ray.origin.z;
+
+		double ei_hf = e * i - h * f;
+		double gf_di = g * f - d * i;
+		double dh_eg = d * h - e * g;
+		double M = a * ei_hf + b * gf_di + c * dh_eg;
+
+		double ak_jb = a * k - j * b;
+		double jc_al = j * c - a * l;
+		double bl_kc = b * l - k * c;
+
+		double t = -(f * (ak_jb) + e * (jc_al) + d * (bl_kc)) / M;
+		if (t > ray.end || t < ray.start)
+			return false;
+
+		double beta = (j * (ei_hf) + k * (gf_di) + l * (dh_eg)) / M;
+		if (beta < 0 || beta > 1)
+			return false;
+
+		double gamma = (i * (ak_jb) + h * (jc_al) + g * (bl_kc)) / M;
+		if (gamma < 0 || gamma + beta > 1)
+			return false;
+
+		// There was an intersection, fill out the intersection record
+		if (outRecord != null) {
+			outRecord.t = t;
+			ray.evaluate(outRecord.location, t);
+			outRecord.surface = this;
+
+			double alpha = 1 - beta - gamma;
+			double[] nv = s.normals;
+			int o = 9 * n;
+			outRecord.normal.set(
+					alpha * nv[o] + beta * nv[o + 3] + gamma * nv[o + 6],
+					alpha * nv[o + 1] + beta * nv[o + 4] + gamma * nv[o + 7],
+					alpha * nv[o + 2] + beta * nv[o + 5] + gamma * nv[o + 8]).normalize();
+
+			if (s.hasUVs[n]) {
+				double[] uv = s.uvs;
+				int u = 6 * n;
+				outRecord.texCoords.set(
+						alpha * uv[u] + beta * uv[u + 2] + gamma * uv[u + 4],
+						alpha * uv[u + 1] + beta * uv[u + 3] + gamma * uv[u + 5]);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * The soup is already in world space, so the bounds are copied from it.
+	 */
+	public void computeBoundingBox() {
+		double[] bounds = soup.bounds;
+		int b = 6 * index;
+		this.minBound = new Vector3d(bounds[b], bounds[b + 1], bounds[b + 2]);
+		this.maxBound = new Vector3d(bounds[b + 3], bounds[b + 4], bounds[b + 5]);
+		int c = 3 * index;
+		this.averagePosition = new Vector3d(soup.centroids[c], soup.centroids[c + 1], soup.centroids[c + 2]);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "SoupTriangle " + index;
+	}
+}
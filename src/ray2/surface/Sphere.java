@@ -48,7 +48,7 @@ public class Sphere extends Surface {
 	  	//transform the resulting intersection point and normal to world space
 
 		//transform the ray into object space
-		Ray ray = untransformRay(rayIn);
+		Ray ray = untransformRay(rayIn, scratchRay.get());
 		
 		// Rename the common vectors so I don't have to type so much
 		Vector3d d = ray.direction;
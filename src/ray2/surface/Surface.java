@@ -45,6 +45,14 @@ public abstract class Surface {
 	public Vector3d getMinBound() { return minBound; }
 	public Vector3d getMaxBound() { return maxBound; }	
 	
+	/** Per-thread scratch ray for intersection code that works on an object-space Ray. */
+	protected static final ThreadLocal<Ray> scratchRay = new ThreadLocal<Ray>() {
+		@Override
+		protected Ray initialValue() {
+			return new Ray();
+		}
+	};
+
 	// initialization method
 	public void init() {
 		// do nothing
@@ -56,13 +64,24 @@ public abstract class Surface {
 	 * @return tMatInv * rayIn
 	 */
 	public Ray untransformRay(Ray rayIn) {
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
+		return untransformRay(rayIn, new Ray());
+	}
+
+	/**
+	 * Un-transform rayIn using tMatInv into caller-owned scratch space, so that
+	 * intersection code can avoid allocating a new Ray per test.
+	 * @param rayIn Input ray
+	 * @param outRay Output ray; may not be rayIn
+	 * @return outRay, set to tMatInv * rayIn
+	 */
+	public Ray untransformRay(Ray rayIn, Ray outRay) {
+		outRay.set(rayIn.origin, rayIn.direction);
+		outRay.start = rayIn.start;
+		outRay.end = rayIn.end;
 
-		tMatInv.mulDir(ray.direction);
-		tMatInv.mulPos(ray.origin);
-		return ray;
+		tMatInv.mulDir(outRay.direction);
+		tMatInv.mulPos(outRay.origin);
+		return outRay;
 	}
 	
 	public void setTransformation(Matrix4d a, Matrix4d aInv, Matrix4d aTInv) {
@@ -0,0 +1,763 @@
+package ray2.surface;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ray2.IntersectionRecord;
+import ray2.Keyframe;
+import ray2.Ray;
+import ray2.RayTracer;
+import ray2.ResourceCache;
+import ray2.mesh.BinaryMesh;
+import ray2.mesh.FlatMesh;
+import ray2.mesh.OBJFace;
+import ray2.mesh.OBJMesh;
+import ray2.mesh.OBJParser;
+import ray2.mesh.TriangleSoup;
+import egl.math.Matrix4d;
+import egl.math.Vector2;
+import egl.math.Vector3;
+import egl.math.Vector3d;
+
+public class SurfaceTests {
+
+    /**
+     * Build a surface with the transformation m, the way Group does.
+     */
+    static void transform(Surface s, Matrix4d m) {
+        Matrix4d mInv = m.clone().invert();
+        Matrix4d mTInv = m.clone().transpose().invert();
+        s.setTransformation(m, mInv, mTInv);
+    }
+
+    static Triangle makeTriangle() {
+        OBJMesh md = new OBJMesh();
+        md.positions.add(new Vector3(-1f, -1f, 0f));
+        md.positions.add(new Vector3(1f, -1f, 0f));
+        md.positions.add(new Vector3(0f, 1f, 0f));
+        OBJFace tri = new OBJFace(3, false, false);
+        tri.positions[0] = 0;
+        tri.positions[1] = 1;
+        tri.positions[2] = 2;
+        md.faces.add(tri);
+        return new Triangle(new Mesh(md), tri, null);
+    }
+
+    @Test
+    public void testTransformedTriangle() {
+        Triangle t = makeTriangle();
+        transform(t, Matrix4d.createTranslation(0, 0, -5).mulBefore(Matrix4d.createScale(2)));
+
+        Ray ray = new Ray(new Vector3d(0.5, 0.5, 0), new Vector3d(0, 0, -1));
+        ray.start = 0;
+        ray.end = Double.POSITIVE_INFINITY;
+        IntersectionRecord record = new IntersectionRecord();
+        assertTrue(t.intersect(record, ray));
+        assertEquals(5, record.t, 1e-9);
+        assertEquals(0.5, record.location.x, 1e-9);
+        assertEquals(0.5, record.location.y, 1e-9);
+        assertEquals(-5, record.location.z, 1e-9);
+        assertEquals(1, record.normal.z, 1e-9);
+
+        // Outside the untransformed triangle but inside the scaled one
+        ray.origin.set(1.9, -1.9, 0);
+        assertTrue(t.intersect(null, ray));
+        ray.origin.set(1.9, 1.9, 0);
+        assertFalse(t.intersect(null, ray));
+
+        // The segment ends before the triangle
+        ray.origin.set(0, 0, 0);
+        ray.end = 4;
+        assertFalse(t.intersect(null, ray));
+    }
+
+    @Test
+    public void testBakedMeshMatchesMesh() {
+        // A small fan with vertex normals on the first face only
+        OBJMesh md = new OBJMesh();
+        md.positions.add(new Vector3(0f, 0f, 0f));
+        md.positions.add(new Vector3(1f, 0f, 0f));
+        md.positions.add(new Vector3(0f, 1f, 0.5f));
+        md.positions.add(new Vector3(-1f, 0.2f, 0f));
+        md.normals.add(new Vector3(0f, 0f, 1f));
+        md.normals.add(new Vector3(0.3f, 0f, 1f));
+        md.normals.add(new Vector3(0f, 0.3f, 1f));
+        md.uvs.add(new Vector2(0f, 0f));
+        OBJFace smooth = new OBJFace(3, true, true);
+        smooth.setVertex(0, 0, 0, 0);
+        smooth.setVertex(1, 1, 0, 1);
+        smooth.setVertex(2, 2, 0, 2);
+        OBJFace flat = new OBJFace(3, false, false);
+        flat.positions[0] = 0;
+        flat.positions[1] = 2;
+        flat.positions[2] = 3;
+        md.faces.add(smooth);
+        md.faces.add(flat);
+
+        Matrix4d m = Matrix4d.createTranslation(0.5, -0.25, -4)
+                .mulBefore(Matrix4d.createRotationX(0.7))
+                .mulBefore(Matrix4d.createScale(1.5, 2, 0.5));
+        Mesh plain = new Mesh(md);
+        Mesh baked = new Mesh(md);
+        baked.setBake(true);
+        transform(plain, m);
+        transform(baked, m);
+        ArrayList<Surface> plainSurfaces = new ArrayList<Surface>();
+        ArrayList<Surface> bakedSurfaces = new ArrayList<Surface>();
+        plain.appendRenderableSurfaces(plainSurfaces);
+        baked.appendRenderableSurfaces(bakedSurfaces);
+        assertEquals(2, bakedSurfaces.size());
+
+        // The same rays go against each face of both meshes
+        RayGenerator rays = new RayGenerator() {
+            public void next(Random random, Ray ray) {
+                ray.origin.set(random.nextDouble() * 4 - 2, random.nextDouble() * 4 - 2, 0);
+                ray.direction.set(random.nextDouble() - 0.5, random.nextDouble() - 0.5, -1);
+            }
+        };
+        int hits = 0;
+        for (int f = 0; f < 2; f++) {
+            Surface p = plainSurfaces.get(f);
+            final Surface b = bakedSurfaces.get(f);
+            assertTrue(vectorsClose(p.getMinBound(), b.getMinBound()));
+            assertTrue(vectorsClose(p.getMaxBound(), b.getMaxBound()));
+            assertTrue(vectorsClose(p.getAveragePosition(), b.getAveragePosition()));
+            final boolean noUVs = f == 0;
+            hits += assertRaysAgree("Baked face " + f, tracer(p), new Tracer() {
+                public boolean intersect(IntersectionRecord record, Ray ray) {
+                    boolean hit = b.intersect(record, ray);
+                    if (hit && noUVs)
+                        assertEquals(0, record.texCoords.len(), 1e-9);
+                    return hit;
+                }
+            }, rays, 7, 2000);
+        }
+        assertTrue(hits > 100);
+    }
+
+    @Test
+    public void testOBJParserMatchesSplitParser() throws IOException {
+        // Numbers in the forms exporters write them, and some the fast path hands to Float.parseFloat
+        Random random = new Random(7);
+        String[] formats = { "%.6f", "%.4f", "%g", "%e", "%.9f", "%.1f" };
+        StringBuilder obj = new StringBuilder("# comment\no object\ns 1\ng group\n");
+        for (int i = 0; i < 300; i++) {
+            String f = formats[i % formats.length];
+            double scale = Math.pow(10, random.nextInt(9) - 4);
+            obj.append(String.format(Locale.US, "v " + f + " " + f + " " + f + "\n", (random.nextDouble() - 0.5) * scale,
+                    (random.nextDouble() - 0.5) * scale, random.nextFloat()));
+            obj.append(String.format(Locale.US, "vn " + f + " " + f + " " + f + "\n", random.nextGaussian(),
+                    -random.nextDouble(), 0.0));
+            obj.append(String.format(Locale.US, "vt %s %s\n", Float.toString(random.nextFloat()), "-0.0"));
+        }
+        obj.append("v 1 +2 3.\nv .5 1e3 12345678901234567890\nv 1.5f 0x1p3 -7E-2\n");
+        String[] forms = { "%d", "%d/%d", "%d/%d/%d", "%d//%d" };
+        for (int i = 0; i < 200; i++) {
+            String form = forms[i % forms.length];
+            obj.append("f");
+            int n = 3 + random.nextInt(2);
+            for (int k = 0; k < n; k++)
+                obj.append(' ').append(String.format(form, 1 + random.nextInt(300), 1 + random.nextInt(300),
+                        1 + random.nextInt(300)));
+            obj.append(i % 3 == 0 ? "\t\n" : "\n");
+        }
+        // Mixed forms within a face
+        obj.append("f 1/2/3 2//4 3/5/ 4");
+
+        File file = File.createTempFile("parser", ".obj");
+        try {
+            Files.write(file.toPath(), obj.toString().getBytes("US-ASCII"));
+            OBJMesh split = new OBJMesh();
+            split.parseOBJSplit(file.getPath());
+            OBJMesh fast = new OBJMesh(file.getPath());
+            assertSameMesh(split, fast);
+            assertSameMesh(split, OBJParser.load(file.getPath()).toFlatMesh().toOBJMesh());
+
+            // Blank lines, indentation and Windows line endings, which the split-based
+            // parser does not accept
+            Files.write(file.toPath(), ("\r\n" + obj.toString().replace("\n", "\r\n\r\n  ")).getBytes("US-ASCII"));
+            assertSameMesh(split, new OBJMesh(file.getPath()));
+
+            Files.write(file.toPath(), "v 1 2\n".getBytes("US-ASCII"));
+            try {
+                new OBJMesh(file.getPath());
+                fail("A position with two coordinates should be rejected");
+            } catch (OBJMesh.OBJFileFormatException e) {
+                assertEquals("Malformed vertex position specification: v 1 2", e.getMessage());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testChunkedOBJParsing() throws IOException {
+        // The same mesh twice: with absolute indices, and with a mix of absolute and
+        // negative ones, with elements and faces interleaved so that negative indices
+        // reach back into earlier chunks.
+        Random random = new Random(11);
+        StringBuilder absolute = new StringBuilder(), mixed = new StringBuilder();
+        int positions = 0, uvs = 0, normals = 0;
+        for (int i = 0; i < 2000; i++) {
+            int kind = random.nextInt(5);
+            String line;
+            if (kind == 0 || positions < 3) {
+                line = String.format(Locale.US, "v %.6f %.6f %.6f\n", random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+                positions++;
+            } else if (kind == 1 || uvs < 3) {
+                line = String.format(Locale.US, "vt %.5f %.5f\n", random.nextDouble(), random.nextDouble());
+                uvs++;
+            } else if (kind == 2 || normals < 3) {
+                line = String.format(Locale.US, "vn %.4f %.4f %.4f\n", random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+                normals++;
+            } else {
+                absolute.append("f");
+                mixed.append("f");
+                for (int k = 0; k < 3; k++) {
+                    // 1-based indices of recently read elements
+                    int p = positions - random.nextInt(Math.min(positions, 50));
+                    int t = uvs - random.nextInt(Math.min(uvs, 50));
+                    int n = normals - random.nextInt(Math.min(normals, 50));
+                    absolute.append(' ').append(p).append('/').append(t).append('/').append(n);
+                    mixed.append(' ').append(random.nextBoolean() ? p : p - positions - 1).append('/')
+                            .append(random.nextBoolean() ? t : t - uvs - 1).append('/')
+                            .append(random.nextBoolean() ? n : n - normals - 1);
+                }
+                line = "\n";
+            }
+            absolute.append(line);
+            mixed.append(line);
+        }
+
+        File file = File.createTempFile("absolute", ".obj");
+        try {
+            Files.write(file.toPath(), absolute.toString().getBytes("US-ASCII"));
+            OBJMesh expected = new OBJMesh();
+            expected.parseOBJSplit(file.getPath());
+
+            byte[] data = mixed.toString().getBytes("US-ASCII");
+            for (int chunkSize : new int[] { 1, 97, 4096, data.length }) {
+                OBJMesh chunked = new OBJMesh();
+                OBJParser.parseChunked(data, chunkSize).toMesh(chunked);
+                assertSameMesh(expected, chunked);
+                assertTrue(OBJMesh.compare(expected, chunked, true));
+            }
+        } finally {
+            file.delete();
+        }
+
+        // The error reported is the first one in the file, whichever chunk it is in.
+        byte[] bad = "v 1 2 3\nv 1 2\nv 4 5 6\nvn 1 2\n".getBytes("US-ASCII");
+        try {
+            OBJParser.parseChunked(bad, 1);
+            fail("Malformed lines should be rejected");
+        } catch (OBJMesh.OBJFileFormatException e) {
+            assertEquals("Malformed vertex position specification: v 1 2", e.getMessage());
+        }
+    }
+
+    /**
+     * @return a mesh of triangles and quads with every combination of uvs and normals
+     */
+    static OBJMesh randomMesh(Random random) {
+        OBJMesh md = new OBJMesh();
+        for (int i = 0; i < 50; i++)
+            md.positions.add(new Vector3(random.nextFloat(), random.nextFloat(), random.nextFloat() - 2));
+        for (int i = 0; i < 20; i++)
+            md.uvs.add(new Vector2(random.nextFloat(), random.nextFloat()));
+        for (int i = 0; i < 30; i++)
+            md.normals.add(new Vector3(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, 1f));
+        for (int i = 0; i < 40; i++) {
+            OBJFace face = new OBJFace(3 + i % 2, (i / 2) % 2 == 0, (i / 4) % 2 == 0);
+            for (int k = 0; k < face.numVerts(); k++) {
+                face.positions[k] = random.nextInt(md.positions.size()) + OBJFace.indexBase;
+                if (face.uvs != null)
+                    face.uvs[k] = random.nextInt(md.uvs.size()) + OBJFace.indexBase;
+                if (face.normals != null)
+                    face.normals[k] = random.nextInt(md.normals.size()) + OBJFace.indexBase;
+            }
+            md.faces.add(face);
+        }
+        return md;
+    }
+
+    /**
+     * Degenerate faces hit with t = NaN, which makes the closest hit depend on the order
+     * in which an acceleration structure visits them.
+     */
+    static OBJMesh removeDegenerateFaces(OBJMesh md) {
+        for (int f = md.faces.size() - 1; f >= 0; f--) {
+            int[] p = md.faces.get(f).positions;
+            for (int i = 0; i < p.length; i++)
+                if (p[i] == p[(i + 1) % p.length] || p[i] == p[(i + 2) % p.length]) {
+                    md.faces.remove(f);
+                    break;
+                }
+        }
+        return md;
+    }
+
+    @Test
+    public void testBinaryMeshRoundTrip() throws IOException {
+        OBJMesh md = randomMesh(new Random(5));
+        File file = File.createTempFile("mesh", BinaryMesh.EXTENSION);
+        try {
+            BinaryMesh.write(md, file);
+            BinaryMesh binary = BinaryMesh.map(file);
+            assertEquals(md.faces.size(), binary.getFaceCount());
+            assertSameMesh(md, binary.toOBJMesh());
+
+            // Baking reads the mapped arrays directly and gives the same soup.
+            Matrix4d m = Matrix4d.createTranslation(0.5, 0, -1).mulBefore(Matrix4d.createRotationX(0.4));
+            Matrix4d mTInv = m.clone().transpose().invert();
+            TriangleSoup expected = new TriangleSoup(md, m, mTInv), actual = new TriangleSoup(binary, m, mTInv);
+            assertArrayEquals(expected.v0x, actual.v0x, 0);
+            assertArrayEquals(expected.az, actual.az, 0);
+            assertArrayEquals(expected.by, actual.by, 0);
+            assertArrayEquals(expected.normals, actual.normals, 0);
+            assertArrayEquals(expected.uvs, actual.uvs, 0);
+            assertArrayEquals(expected.bounds, actual.bounds, 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMeshDataIsShared() throws IOException {
+        File file = File.createTempFile("shared", ".obj");
+        try {
+            Files.write(file.toPath(), "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n".getBytes("US-ASCII"));
+            RayTracer.sceneWorkspace = new RayTracer.ScenePath(null, file.getPath());
+            Mesh a = new Mesh(), b = new Mesh();
+            a.setData(file.getPath());
+            b.setData(file.getPath());
+            assertSame(a.getData(), b.getData());
+
+            // A changed file is parsed again.
+            Files.write(file.toPath(), "v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 1 0\nf 1 2 3\nf 2 4 3\n".getBytes("US-ASCII"));
+            Mesh c = new Mesh();
+            c.setData(file.getPath());
+            assertNotSame(a.getData(), c.getData());
+            assertEquals(2, c.getData().getFaceCount());
+
+            // Without room in the cache, every mesh is parsed on its own.
+            long capacity = ResourceCache.getCapacity();
+            ResourceCache.setCapacity(0);
+            try {
+                Mesh d = new Mesh();
+                d.setData(file.getPath());
+                assertNotSame(c.getData(), d.getData());
+            } finally {
+                ResourceCache.setCapacity(capacity);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFlatMeshMatchesOBJMesh() {
+        OBJMesh md = randomMesh(new Random(3));
+        FlatMesh flat = new FlatMesh(md);
+        assertSameMesh(md, flat.toOBJMesh());
+
+        Matrix4d m = Matrix4d.createTranslation(0.5, 0, -1).mulBefore(Matrix4d.createRotationY(0.4));
+        Mesh owner = new Mesh(md);
+        Random random = new Random(8);
+        IntersectionRecord expected = new IntersectionRecord();
+        IntersectionRecord actual = new IntersectionRecord();
+        Ray ray = new Ray();
+        int hits = 0;
+        for (int f = 0; f < md.faces.size(); f++) {
+            Triangle objTriangle = new Triangle(owner, md.faces.get(f), null);
+            Triangle flatTriangle = new Triangle(owner, flat, f, null);
+            transform(objTriangle, m);
+            transform(flatTriangle, m);
+            objTriangle.computeBoundingBox();
+            flatTriangle.computeBoundingBox();
+            assertTrue(vectorsClose(objTriangle.getMinBound(), flatTriangle.getMinBound()));
+            assertTrue(vectorsClose(objTriangle.getMaxBound(), flatTriangle.getMaxBound()));
+
+            // Rays from the camera towards the triangle, so that most of them hit it
+            Vector3d center = objTriangle.getAveragePosition();
+            for (int n = 0; n < 50; n++) {
+                ray.origin.set(0, 0, 1);
+                ray.direction.set(center).sub(ray.origin).add(
+                        new Vector3d(random.nextDouble() - 0.5, random.nextDouble() - 0.5, 0).mul(0.2));
+                ray.start = Ray.EPSILON;
+                ray.end = Double.POSITIVE_INFINITY;
+                boolean hit = objTriangle.intersect(expected, ray);
+                assertEquals(hit, flatTriangle.intersect(actual, ray));
+                if (!hit)
+                    continue;
+                hits++;
+                // The same arithmetic on the same floats
+                assertEquals(expected.t, actual.t, 0);
+                assertEquals(expected.normal.x, actual.normal.x, 0);
+                assertEquals(expected.normal.y, actual.normal.y, 0);
+                assertEquals(expected.normal.z, actual.normal.z, 0);
+                assertEquals(expected.texCoords.x, actual.texCoords.x, 0);
+                assertEquals(expected.texCoords.y, actual.texCoords.y, 0);
+            }
+        }
+        assertTrue(hits > 200);
+    }
+
+    @Test
+    public void testInstanceMatchesTransformedMesh() {
+        OBJMesh md = removeDegenerateFaces(randomMesh(new Random(5)));
+        Matrix4d m = Matrix4d.createTranslation(0.3, -0.2, -0.5)
+                .mulBefore(Matrix4d.createRotationZ(0.6))
+                .mulBefore(Matrix4d.createScale(1.2, 0.8, 1.5));
+
+        // The mesh transformed and built into a structure of its own
+        Mesh plain = new Mesh(md);
+        transform(plain, m);
+        final ArrayList<Surface> surfaces = new ArrayList<Surface>();
+        plain.appendRenderableSurfaces(surfaces);
+        final ray2.accel.Bvh bvh = new ray2.accel.Bvh();
+        bvh.build(surfaces.toArray(new Surface[surfaces.size()]));
+
+        // The same mesh placed twice through one prototype
+        Prototype prototype = new Prototype();
+        prototype.setSurface(new Mesh(md));
+        final Instance instance = new Instance();
+        instance.setPrototype(prototype);
+        transform(instance, m);
+        Instance other = new Instance();
+        other.setPrototype(prototype);
+        other.setTranslate(new Vector3d(5, 0, 0));
+        transform(other, new Matrix4d());
+        assertSame(prototype.getAccelSurface(), prototype.getAccelSurface());
+
+        // Rays towards a random triangle, so that most of them hit the mesh
+        int hits = assertRaysAgree("Instance", new Tracer() {
+            public boolean intersect(IntersectionRecord record, Ray ray) {
+                return bvh.intersect(record, ray, false);
+            }
+        }, new Tracer() {
+            public boolean intersect(IntersectionRecord record, Ray ray) {
+                boolean hit = instance.intersect(record, ray);
+                assertEquals(hit, instance.intersect(null, ray));
+                return hit;
+            }
+        }, new RayGenerator() {
+            public void next(Random random, Ray ray) {
+                Vector3d target = surfaces.get(random.nextInt(surfaces.size())).getAveragePosition();
+                ray.origin.set(random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, 2);
+                ray.direction.set(target).sub(ray.origin).add(
+                        new Vector3d(random.nextDouble() - 0.5, random.nextDouble() - 0.5, 0).mul(0.2));
+            }
+        }, 11, 1000);
+        assertTrue(hits > 100);
+
+        // The second instance is the untransformed mesh, moved along x
+        AccelSurface inner = prototype.getAccelSurface();
+        assertTrue(vectorsClose(new Vector3d(inner.innerMin).add(5, 0, 0), other.getMinBound()));
+        assertTrue(vectorsClose(new Vector3d(inner.innerMax).add(5, 0, 0), other.getMaxBound()));
+    }
+
+    /**
+     * A scene of a moved group holding a sphere and a mesh, next to a mesh of its own.
+     */
+    static ray2.Scene makeGroupScene(boolean twoLevel) {
+        ray2.Scene scene = new ray2.Scene();
+        Group group = new Group();
+        Sphere sphere = new Sphere();
+        sphere.setCenter(new Vector3d(0.5, 0.5, -1));
+        sphere.setRadius(0.3);
+        group.addSurface(sphere);
+        group.addSurface(new Mesh(removeDegenerateFaces(randomMesh(new Random(5)))));
+        group.setTranslate(new Vector3d(0.2, 0, -0.5));
+        group.setRotate(new Vector3d(0, 0, 20));
+        scene.addSurface(group);
+        Mesh mesh = new Mesh(removeDegenerateFaces(randomMesh(new Random(6))));
+        scene.addSurface(mesh);
+        scene.setTwoLevel(twoLevel);
+        return scene;
+    }
+
+    @Test
+    public void testTwoLevelSceneMatchesFlatScene() {
+        final ray2.Scene flat = makeGroupScene(false);
+        final ray2.Scene twoLevel = makeGroupScene(true);
+        Tracer flatTracer = new Tracer() {
+            public boolean intersect(IntersectionRecord record, Ray ray) {
+                return flat.getAccelStruct().intersect(record, ray, false);
+            }
+        };
+        Tracer twoLevelTracer = new Tracer() {
+            public boolean intersect(IntersectionRecord record, Ray ray) {
+                boolean hit = twoLevel.getAccelStruct().intersect(record, ray, false);
+                ray.end = Double.POSITIVE_INFINITY;
+                assertEquals(hit, twoLevel.getAccelStruct().occluded(ray));
+                return hit;
+            }
+        };
+        RayGenerator rays = new RayGenerator() {
+            public void next(Random random, Ray ray) {
+                ray.origin.set(random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, 2);
+                ray.direction.set(random.nextDouble() * 0.6 - 0.3, random.nextDouble() * 0.6 - 0.3, -1);
+            }
+        };
+        for (int frame = 0; frame < 2; frame++) {
+            if (frame > 0) {
+                // Move the group between frames
+                for (ray2.Scene scene : new ray2.Scene[] { flat, twoLevel })
+                    ((Group) scene.getSurfaces().get(0)).setTranslate(new Vector3d(-0.3, 0.1, 0));
+            }
+            flat.update();
+            twoLevel.update();
+            // The group and the mesh each stand for their whole structure
+            assertEquals(2, ((ray2.accel.Bvh) twoLevel.getAccelStruct()).surfaces.length);
+
+            assertTrue(assertRaysAgree("Two-level scene in frame " + frame, flatTracer, twoLevelTracer,
+                    rays, 13 + frame, 1000) > 100);
+        }
+    }
+
+    /**
+     * Assert that a and b hold exactly the same numbers and faces.
+     */
+    static void assertSameMesh(OBJMesh a, OBJMesh b) {
+        assertEquals(a.positions.size(), b.positions.size());
+        assertEquals(a.uvs.size(), b.uvs.size());
+        assertEquals(a.normals.size(), b.normals.size());
+        assertEquals(a.faces.size(), b.faces.size());
+        for (int i = 0; i < a.positions.size(); i++)
+            assertSameBits("position " + i, new float[] { a.positions.get(i).x, a.positions.get(i).y, a.positions.get(i).z },
+                    new float[] { b.positions.get(i).x, b.positions.get(i).y, b.positions.get(i).z });
+        for (int i = 0; i < a.uvs.size(); i++)
+            assertSameBits("uv " + i, new float[] { a.uvs.get(i).x, a.uvs.get(i).y },
+                    new float[] { b.uvs.get(i).x, b.uvs.get(i).y });
+        for (int i = 0; i < a.normals.size(); i++)
+            assertSameBits("normal " + i, new float[] { a.normals.get(i).x, a.normals.get(i).y, a.normals.get(i).z },
+                    new float[] { b.normals.get(i).x, b.normals.get(i).y, b.normals.get(i).z });
+        for (int i = 0; i < a.faces.size(); i++) {
+            OBJFace fa = a.faces.get(i), fb = b.faces.get(i);
+            assertArrayEquals("face " + i, fa.positions, fb.positions);
+            assertArrayEquals("face " + i, fa.uvs, fb.uvs);
+            assertArrayEquals("face " + i, fa.normals, fb.normals);
+        }
+    }
+
+    static void assertSameBits(String message, float[] expected, float[] actual) {
+        for (int k = 0; k < expected.length; k++)
+            assertEquals(message, Float.floatToRawIntBits(expected[k]), Float.floatToRawIntBits(actual[k]));
+    }
+
+    static boolean vectorsClose(Vector3d a, Vector3d b) {
+        return Math.abs(a.x - b.x) < 1e-9 && Math.abs(a.y - b.y) < 1e-9 && Math.abs(a.z - b.z) < 1e-9;
+    }
+
+    /**
+     * Something to trace a ray against: a surface, a structure or a whole scene.
+     */
+    interface Tracer {
+        boolean intersect(IntersectionRecord record, Ray ray);
+    }
+
+    /**
+     * Sets up the origin and direction of the next test ray.
+     */
+    interface RayGenerator {
+        void next(Random random, Ray ray);
+    }
+
+    static Tracer tracer(final Surface surface) {
+        return new Tracer() {
+            public boolean intersect(IntersectionRecord record, Ray ray) {
+                return surface.intersect(record, ray);
+            }
+        };
+    }
+
+    /**
+     * Trace count rays from the generator against both, and assert that the hits agree in t,
+     * location and normal. Tracing in a different space rounds differently, which only matters
+     * to rays grazing an edge, so up to two rays may hit only one of them.
+     * @return the number of rays that hit both
+     */
+    static int assertRaysAgree(String name, Tracer reference, Tracer tracer, RayGenerator rays, long seed, int count) {
+        Random random = new Random(seed);
+        IntersectionRecord expected = new IntersectionRecord();
+        IntersectionRecord actual = new IntersectionRecord();
+        Ray ray = new Ray();
+        int hits = 0, mismatches = 0;
+        for (int n = 0; n < count; n++) {
+            rays.next(random, ray);
+            ray.start = Ray.EPSILON;
+            ray.end = Double.POSITIVE_INFINITY;
+            boolean hitReference = reference.intersect(expected, ray);
+            ray.start = Ray.EPSILON;
+            ray.end = Double.POSITIVE_INFINITY;
+            boolean hit = tracer.intersect(actual, ray);
+            if (hitReference != hit)
+                mismatches++;
+            if (!hitReference || !hit)
+                continue;
+            hits++;
+            assertEquals(name + " found a different t on ray " + n, expected.t, actual.t, 1e-9);
+            assertTrue(name + " found a different location on ray " + n, vectorsClose(expected.location, actual.location));
+            assertTrue(name + " found a different normal on ray " + n + ": " + expected.normal + " vs " + actual.normal,
+                    vectorsClose(expected.normal, actual.normal));
+        }
+        assertTrue(name + ": " + mismatches + " rays hit only one of the two", mismatches <= 2);
+        return hits;
+    }
+
+    static Keyframe key(int frame, Vector3d translate, Vector3d rotate) {
+        Keyframe key = new Keyframe();
+        key.setFrame(frame);
+        if (translate != null)
+            key.setTranslate(translate);
+        if (rotate != null)
+            key.setRotate(rotate);
+        return key;
+    }
+
+    @Test
+    public void testKeyframeEvaluate() {
+        // Added out of order; rotate is set by the middle key only
+        ArrayList<Keyframe> keys = new ArrayList<Keyframe>();
+        Keyframe.insert(keys, key(20, new Vector3d(2, 4, 0), null));
+        Keyframe.insert(keys, key(10, null, new Vector3d(0, 90, 0)));
+        Keyframe.insert(keys, key(0, new Vector3d(0, 0, 0), null));
+        assertEquals(0, keys.get(0).getFrame());
+        assertEquals(10, keys.get(1).getFrame());
+        assertEquals(20, keys.get(2).getFrame());
+
+        Vector3d v = new Vector3d(7, 7, 7);
+        assertTrue(Keyframe.evaluate(keys, Keyframe.TRANSLATE, -5, v));
+        assertTrue(vectorsClose(new Vector3d(0, 0, 0), v));
+        assertTrue(Keyframe.evaluate(keys, Keyframe.TRANSLATE, 5, v));
+        assertTrue(vectorsClose(new Vector3d(0.5, 1, 0), v));
+        // The key between them that does not set translate is skipped
+        assertTrue(Keyframe.evaluate(keys, Keyframe.TRANSLATE, 10, v));
+        assertTrue(vectorsClose(new Vector3d(1, 2, 0), v));
+        assertTrue(Keyframe.evaluate(keys, Keyframe.TRANSLATE, 20, v));
+        assertTrue(vectorsClose(new Vector3d(2, 4, 0), v));
+        assertTrue(Keyframe.evaluate(keys, Keyframe.TRANSLATE, 100, v));
+        assertTrue(vectorsClose(new Vector3d(2, 4, 0), v));
+
+        // A property set by a single key holds its value at every frame
+        assertTrue(Keyframe.evaluate(keys, Keyframe.ROTATE, 0, v));
+        assertTrue(vectorsClose(new Vector3d(0, 90, 0), v));
+        assertTrue(Keyframe.evaluate(keys, Keyframe.ROTATE, 30, v));
+        assertTrue(vectorsClose(new Vector3d(0, 90, 0), v));
+
+        // A property no key sets leaves out alone
+        v.set(7, 7, 7);
+        assertFalse(Keyframe.evaluate(keys, Keyframe.SCALE, 5, v));
+        assertTrue(vectorsClose(new Vector3d(7, 7, 7), v));
+        assertFalse(Keyframe.evaluate(new ArrayList<Keyframe>(), Keyframe.TRANSLATE, 5, v));
+    }
+
+    @Test
+    public void testKeyframeDuplicateFrames() {
+        // Two keys at frame 10 make a jump: frames before it approach the first,
+        // and the second holds from frame 10 on.
+        ArrayList<Keyframe> keys = new ArrayList<Keyframe>();
+        Keyframe.insert(keys, key(0, new Vector3d(0, 0, 0), null));
+        Keyframe.insert(keys, key(20, new Vector3d(0, 0, 0), null));
+        Keyframe.insert(keys, key(10, new Vector3d(10, 0, 0), null));
+        Keyframe.insert(keys, key(10, new Vector3d(-10, 0, 0), null));
+        assertEquals(10, keys.get(1).getFrame());
+        assertEquals(10, keys.get(2).getFrame());
+
+        Vector3d v = new Vector3d();
+        Keyframe.evaluate(keys, Keyframe.TRANSLATE, 5, v);
+        assertTrue(vectorsClose(new Vector3d(5, 0, 0), v));
+        Keyframe.evaluate(keys, Keyframe.TRANSLATE, 10, v);
+        assertTrue(vectorsClose(new Vector3d(-10, 0, 0), v));
+        Keyframe.evaluate(keys, Keyframe.TRANSLATE, 15, v);
+        assertTrue(vectorsClose(new Vector3d(-5, 0, 0), v));
+    }
+
+    @Test
+    public void testGroupSetFrame() {
+        Group inner = new Group();
+        inner.addKey(key(0, null, new Vector3d(0, 0, 0)));
+        inner.addKey(key(10, null, new Vector3d(0, 90, 0)));
+        inner.addKey(key(20, null, new Vector3d(0, 90, 0)));
+        inner.addSurface(new Sphere());
+        Group outer = new Group();
+        outer.addSurface(inner);
+        Group still = new Group();
+        still.addKey(key(0, new Vector3d(1, 0, 0), null));
+        outer.addSurface(still);
+
+        outer.setFrame(0);
+        assertFalse(outer.setFrame(0));
+        assertTrue(inner.setFrame(5));
+        assertFalse(inner.setFrame(5));
+        // The outer group has no keys of its own, but a group in it moves
+        assertTrue(outer.setFrame(10));
+        assertFalse(outer.setFrame(10));
+        // The rotation holds between the last two keys
+        assertFalse(outer.setFrame(15));
+        assertFalse(still.setFrame(15));
+
+        Matrix4d identity = new Matrix4d();
+        outer.setTransformation(identity, identity, identity);
+        Vector3d x = new Vector3d(1, 0, 0);
+        inner.tMat.mulDir(x);
+        assertTrue(vectorsClose(new Vector3d(0, 0, -1), x));
+    }
+
+    @Test
+    public void testIntersectDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+            return;
+
+        Matrix4d m = Matrix4d.createTranslation(0.1, 0.2, -3).mulBefore(Matrix4d.createRotationY(0.3));
+        Triangle triangle = makeTriangle();
+        Surface[] surfaces = { triangle, new Triangle(triangle.owner, new FlatMesh(triangle.owner.getMesh()), 0, null),
+                new Sphere(), new Cylinder() };
+        for (Surface s : surfaces)
+            transform(s, m);
+
+        Ray ray = new Ray(new Vector3d(0, 0, 0), new Vector3d(0, 0, -1));
+        IntersectionRecord record = new IntersectionRecord();
+        int iterations = 100000;
+        for (Surface s : surfaces) {
+            // Warm up so that the per-thread scratch ray exists and the JIT has settled
+            int hits = intersectMany(s, record, ray, iterations);
+            assertTrue(s + " should be hit", hits > 0);
+
+            long id = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(id);
+            intersectMany(s, record, ray, iterations);
+            long allocated = threads.getThreadAllocatedBytes(id) - before;
+
+            // A single Ray or Vector3d per call would be several megabytes.
+            assertTrue(s.getClass().getSimpleName() + " allocated " + allocated + " bytes in "
+                    + iterations + " intersections", allocated < 64 * 1024);
+        }
+    }
+
+    static int intersectMany(Surface s, IntersectionRecord record, Ray ray, int iterations) {
+        int hits = 0;
+        for (int n = 0; n < iterations; n++) {
+            ray.origin.set((n % 7) * 0.1 - 0.3, (n % 5) * 0.1 - 0.2, 0);
+            ray.start = Ray.EPSILON;
+            ray.end = Double.POSITIVE_INFINITY;
+            if (s.intersect(record, ray))
+                hits++;
+        }
+        return hits;
+    }
+}
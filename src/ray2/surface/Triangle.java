@@ -4,6 +4,7 @@ import ray2.IntersectionRecord;
 import ray2.Ray;
 import egl.math.Vector3d;
 import ray2.shader.Shader;
+import ray2.mesh.FlatMesh;
 import ray2.mesh.OBJFace;
 
 /**
@@ -18,20 +19,60 @@ public class Triangle extends Surface {
 	/** The mesh that contains this triangle */
 	Mesh owner;
 
-	/** The face that contains this triangle */
+	/** The face that contains this triangle, if it is part of an OBJMesh */
 	OBJFace face = null;
 
+	/** The mesh and the index of the first vertex of the face, if it is part of a FlatMesh */
+	FlatMesh flat = null;
+	int first;
+
+	/** Whether the face has texture coordinates */
+	boolean hasUVs;
+
 	double a, b, c, d, e, f;
 
+	/** The first vertex, kept as primitives so intersect() does not need to look it up. */
+	double v0x, v0y, v0z;
+
 	  public Triangle(Mesh owner, OBJFace face, Shader shader) {
 		    this.owner = owner;
 		    this.face = face;
-	
-		    Vector3d v0 = new Vector3d(owner.getMesh().getPosition(face,0));
-		    Vector3d v1 = new Vector3d(owner.getMesh().getPosition(face,1));
-		    Vector3d v2 = new Vector3d(owner.getMesh().getPosition(face,2));
+		    this.hasUVs = face.hasUVs();
+		    init(face.hasNormals(), shader);
+	  }
+
+	/**
+	 * A triangle that reads its vertex data straight from the arrays of a FlatMesh.
+	 *
+	 * @param owner the Mesh surface
+	 * @param flat the data of the mesh
+	 * @param face the index of the face in flat
+	 * @param shader the shader of the triangle
+	 */
+	public Triangle(Mesh owner, FlatMesh flat, int face, Shader shader) {
+		this.owner = owner;
+		this.flat = flat;
+		this.first = flat.faceStarts[face];
+		this.hasUVs = flat.hasUVs(face);
+		init(flat.hasNormals(face), shader);
+	}
+
+	/**
+	 * @return a new vector holding the object-space position of vertex k
+	 */
+	private Vector3d vertex(int k) {
+		if (face != null)
+			return new Vector3d(owner.getMesh().getPosition(face, k));
+		int i = 3 * flat.vertexPositions[first + k];
+		return new Vector3d(flat.positions[i], flat.positions[i + 1], flat.positions[i + 2]);
+	}
+
+	  private void init(boolean hasNormals, Shader shader) {
+		    Vector3d v0 = vertex(0);
+		    Vector3d v1 = vertex(1);
+		    Vector3d v2 = vertex(2);
 		    
-		    if (!face.hasNormals()) {
+		    if (!hasNormals) {
 		      Vector3d e0 = new Vector3d(), e1 = new Vector3d();
 		      e0.set(v1).sub(v0);
 		      e1.set(v2).sub(v0);
@@ -39,6 +80,10 @@ public class Triangle extends Surface {
 		      norm.set(e0).cross(e1).normalize();
 		    }
 	
+		    v0x = v0.x;
+		    v0y = v0.y;
+		    v0z = v0.z;
+
 		    a = v0.x-v1.x;
 		    b = v0.y-v1.y;
 		    c = v0.z-v1.z;
@@ -66,17 +111,21 @@ public class Triangle extends Surface {
 
 	  	//transform the resulting intersection point and normal to world space
 
-		//transform ray into object space
-		Ray ray = untransformRay(rayIn);		
-		
-		Vector3d v0 = new Vector3d(owner.getMesh().getPosition(face,0));
-		
-		double g = ray.direction.x;
-		double h = ray.direction.y;
-		double i = ray.direction.z;
-		double j = v0.x - ray.origin.x;
-		double k = v0.y - ray.origin.y;
-		double l = v0.z - ray.origin.z;
+		//transform ray into object space, on primitives so that no Ray is allocated
+		double[] m = tMatInv.m;
+		double rox = rayIn.origin.x, roy = rayIn.origin.y, roz = rayIn.origin.z;
+		double rdx = rayIn.direction.x, rdy = rayIn.direction.y, rdz = rayIn.direction.z;
+		double invW = 1 / (m[3] * rox + m[7] * roy + m[11] * roz + m[15]);
+		double ox = (m[0] * rox + m[4] * roy + m[8]  * roz + m[12]) * invW;
+		double oy = (m[1] * rox + m[5] * roy + m[9]  * roz + m[13]) * invW;
+		double oz = (m[2] * rox + m[6] * roy + m[10] * roz + m[14]) * invW;
+
+		double g = m[0] * rdx + m[4] * rdy + m[8]  * rdz;
+		double h = m[1] * rdx + m[5] * rdy + m[9]  * rdz;
+		double i = m[2] * rdx + m[6] * rdy + m[10] * rdz;
+		double j = v0x - ox;
+		double k = v0y - oy;
+		double l = v0z - oz;
 		double M = a * (e * i - h * f) + b * (g * f - d * i) + c
 				* (d * h - e * g);
 
@@ -88,7 +137,7 @@ public class Triangle extends Surface {
 		double bl_kc = b * l - k * c;
 
 		double t = -(f * (ak_jb) + e * (jc_al) + d * (bl_kc)) / M;
-		if (t > ray.end || t < ray.start)
+		if (t > rayIn.end || t < rayIn.start)
 			return false;
 
 		double beta = (j * (ei_hf) + k * (gf_di) + l * (dh_eg)) / M;
@@ -102,7 +151,7 @@ public class Triangle extends Surface {
 		// There was an intersection, fill out the intersection record
 		if (outRecord != null) {
 			outRecord.t = t;
-			ray.evaluate(outRecord.location, t);
+			outRecord.location.set(ox, oy, oz).addMultiple(t, g, h, i);
 			
 			//transform back into world space
 			tMat.mulPos(outRecord.location);		
@@ -111,6 +160,14 @@ public class Triangle extends Surface {
 
 			if (norm != null) {
 				outRecord.normal.set(norm);
+			} else if (flat != null) {
+				float[] n = flat.normals;
+				int n0 = 3 * flat.vertexNormals[first], n1 = 3 * flat.vertexNormals[first + 1], n2 = 3 * flat.vertexNormals[first + 2];
+				outRecord.normal
+						.setZero()
+						.addMultiple(1 - beta - gamma, n[n0], n[n0 + 1], n[n0 + 2])
+						.addMultiple(beta, n[n1], n[n1 + 1], n[n1 + 2])
+						.addMultiple(gamma, n[n2], n[n2 + 1], n[n2 + 2]);
 			} else {
 				outRecord.normal
 						.setZero()
@@ -122,7 +179,14 @@ public class Triangle extends Surface {
 			tMatTInv.mulDir(outRecord.normal);
 			
 			outRecord.normal.normalize();
-			if (face.hasUVs()) {
+			if (hasUVs && flat != null) {
+				float[] uv = flat.uvs;
+				int t0 = 2 * flat.vertexUVs[first], t1 = 2 * flat.vertexUVs[first + 1], t2 = 2 * flat.vertexUVs[first + 2];
+				outRecord.texCoords.setZero()
+						.addMultiple(1 - beta - gamma, uv[t0], uv[t0 + 1])
+						.addMultiple(beta, uv[t1], uv[t1 + 1])
+						.addMultiple(gamma, uv[t2], uv[t2 + 1]);
+			} else if (hasUVs) {
 				outRecord.texCoords.setZero()
 						.addMultiple(1 - beta - gamma, owner.getMesh().getUV(face,0))
 						.addMultiple(beta, owner.getMesh().getUV(face,1))
@@ -137,9 +201,9 @@ public class Triangle extends Surface {
 	public void computeBoundingBox() {
 		// TODO#A7: Compute the bounding box and store the result in
 		// averagePosition, minBound, and maxBound.
-		Vector3d v0 = new Vector3d(owner.getMesh().getPosition(face,0));
-		Vector3d v1 = new Vector3d(owner.getMesh().getPosition(face,1));
-		Vector3d v2 = new Vector3d(owner.getMesh().getPosition(face,2));
+		Vector3d v0 = vertex(0);
+		Vector3d v1 = vertex(1);
+		Vector3d v2 = vertex(2);
 		v0 = this.tMat.clone().mulPos(v0);
 		v1 = this.tMat.clone().mulPos(v1);
 		v2 = this.tMat.clone().mulPos(v2);
@@ -9,7 +9,6 @@ import java.io.File;
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
-import egl.math.Colord;
 import ray2.Image;
 
 
@@ -23,6 +22,9 @@ public class PanelDisplay extends JPanel {
 	/** An internal image for display* */
 	private BufferedImage bufferedImage;
 	
+	/** Scratch space for the region being copied in bufferImage* */
+	private int[] rgbBuffer = new int[0];
+	
 	/** The type of local image buffer* */
 	private static final int BUFFER_TYPE = BufferedImage.TYPE_3BYTE_BGR;
 	
@@ -108,17 +110,15 @@ public class PanelDisplay extends JPanel {
 			bufferedImage = new BufferedImage(image.getWidth(), image.getHeight(), BUFFER_TYPE);
 		}
 		
-		//int w = image.getWidth();
+		// Convert the whole region at once and hand it over in one call
+		int w = xh - xl;
+		if (w <= 0 || yh <= yl)
+			return;
 		int h = image.getHeight();
-		Colord pixelColor = new Colord();
-		for (int y = h-yh; y < h-yl; y++) {
-			for (int x = xl; x < xh; x++) {
-				image.getPixelColor(pixelColor,x,h-y-1);
-				pixelColor.gammaCorrect(2.2);
-				int rgb = pixelColor.toColor().toIntRGB();
-				bufferedImage.setRGB(x,y,rgb);
-			}
-		}
+		if (rgbBuffer.length < w * (yh - yl))
+			rgbBuffer = new int[w * (yh - yl)];
+		image.getDisplayRGB(rgbBuffer, xl, yl, xh, yh, 2.2);
+		bufferedImage.setRGB(xl, h - yh, w, yh - yl, rgbBuffer, 0, w);
 	}
 	
 }
\ No newline at end of file